@@ -47,6 +47,15 @@ public class ServerRunner {
     private static final Logger LOG = Logger.getLogger(ServerRunner.class.getName());
 
     public static void executeInstance(NanoHTTPD server) {
+        executeInstance(server, 0);
+    }
+
+    /**
+     * @param drainTimeout
+     *            milliseconds the requests in flight are given to finish
+     *            when the server is stopped, 0 to cut them off.
+     */
+    public static void executeInstance(NanoHTTPD server, long drainTimeout) {
         try {
             server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, false);
         } catch (IOException ioe) {
@@ -61,8 +70,13 @@ public class ServerRunner {
         } catch (Throwable ignored) {
         }
 
-        server.stop();
-        System.out.println("Server stopped.\n");
+        if (drainTimeout > 0) {
+            NanoHTTPD.DrainResult result = server.stop(drainTimeout);
+            System.out.println("Server stopped, " + result.getDrained() + " requests drained, " + result.getAborted() + " aborted.\n");
+        } else {
+            server.stop();
+            System.out.println("Server stopped.\n");
+        }
     }
 
     public static <T extends NanoHTTPD> void run(Class<T> serverClass) {
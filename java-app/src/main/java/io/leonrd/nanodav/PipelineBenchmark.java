@@ -0,0 +1,200 @@
+package io.leonrd.nanodav;
+
+/*
+ * #%L
+ * nanodav
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd, 2015 Leonard Chioveanu
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many pipelined requests per second a running server answers
+ * on a few keep-alive connections. Each connection writes a batch of
+ * identical requests in one go and reads all the responses before sending
+ * the next batch.
+ * <p/>
+ * <p>
+ * Example, four connections with eight requests in flight each against a
+ * server started with <code>WebDavServerApp -p 8080 -d dir</code>:
+ * </p>
+ * 
+ * <pre>
+ * PipelineBenchmark -p 8080 -c 4 --depth 8 --method PROPFIND --path /a.txt
+ * </pre>
+ */
+public class PipelineBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        // Defaults
+        String host = "127.0.0.1";
+        int port = 8080;
+        int connections = 4;
+        int depth = 1;
+        int duration = 10;
+        String method = "GET";
+        String path = "/";
+
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equalsIgnoreCase("-h") || args[i].equalsIgnoreCase("--host")) {
+                host = args[i + 1];
+            } else if (args[i].equalsIgnoreCase("-p") || args[i].equalsIgnoreCase("--port")) {
+                port = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equalsIgnoreCase("-c") || args[i].equalsIgnoreCase("--connections")) {
+                connections = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equalsIgnoreCase("--depth")) {
+                depth = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equalsIgnoreCase("--duration")) {
+                duration = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equalsIgnoreCase("--method")) {
+                method = args[i + 1].toUpperCase();
+            } else if (args[i].equalsIgnoreCase("--path")) {
+                path = args[i + 1];
+            }
+        }
+
+        StringBuilder request = new StringBuilder();
+        request.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(host).append("\r\n");
+        if ("PROPFIND".equals(method)) {
+            request.append("Depth: 0\r\n");
+            request.append("Content-Length: 0\r\n");
+        }
+        request.append("\r\n");
+        byte[] single = request.toString().getBytes("US-ASCII");
+        byte[] batch = new byte[single.length * depth];
+        for (int i = 0; i < depth; i++) {
+            System.arraycopy(single, 0, batch, i * single.length, single.length);
+        }
+
+        AtomicLong answered = new AtomicLong();
+        long end = System.currentTimeMillis() + duration * 1000L;
+        Thread[] clients = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            clients[i] = new Thread(new Client(host, port, batch, depth, "HEAD".equals(method), end, answered), "Client " + i);
+            clients[i].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        System.out.println(connections + " connections, depth " + depth + ", " + method + " " + path + ": " + answered.get() / duration + " requests/s");
+    }
+
+    private static final class Client implements Runnable {
+
+        private final String host;
+
+        private final int port;
+
+        private final byte[] batch;
+
+        private final int depth;
+
+        private final boolean head;
+
+        private final long end;
+
+        private final AtomicLong answered;
+
+        private Client(String host, int port, byte[] batch, int depth, boolean head, long end, AtomicLong answered) {
+            this.host = host;
+            this.port = port;
+            this.batch = batch;
+            this.depth = depth;
+            this.head = head;
+            this.end = end;
+            this.answered = answered;
+        }
+
+        @Override
+        public void run() {
+            Socket socket = null;
+            try {
+                socket = new Socket(this.host, this.port);
+                socket.setTcpNoDelay(true);
+                OutputStream out = socket.getOutputStream();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                while (System.currentTimeMillis() < this.end) {
+                    out.write(this.batch);
+                    out.flush();
+                    for (int i = 0; i < this.depth; i++) {
+                        readResponse(in);
+                        this.answered.incrementAndGet();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println(Thread.currentThread().getName() + ": " + e);
+            } finally {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void readResponse(DataInputStream in) throws IOException {
+            long length = -1;
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                if (line.toLowerCase().startsWith("content-length:")) {
+                    length = Long.parseLong(line.substring("content-length:".length()).trim());
+                }
+            }
+            if (length < 0) {
+                throw new IOException("Response without Content-Length");
+            }
+            if (!this.head) {
+                in.readFully(new byte[(int) length]);
+            }
+        }
+
+        private static String readLine(DataInputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    throw new EOFException();
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+    }
+}
@@ -33,6 +33,7 @@ package io.leonrd.nanodav;
  * #L%
  */
 
+import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.util.ServerRunner;
 
 import java.io.File;
@@ -61,6 +62,20 @@ public class WebDavServerApp {
         String host = null; // bind to all interfaces by default
         File rootDir = null;
         boolean quiet = false;
+        int maxThreads = 0; // unbounded thread-per-connection by default
+        int queueCapacity = NanoHTTPD.BoundedAsyncRunner.DEFAULT_QUEUE_CAPACITY;
+        boolean virtualThreads = false;
+        boolean nonBlocking = false;
+        long cacheSize = 0;
+        long cacheFileSize = 1024 * 1024;
+        long maxUploadSize = 0;
+        long drainTimeout = 0;
+        long maxRate = 0;
+        long maxAddressRate = 0;
+        long maxConnectionRate = 0;
+        int maxBulkRequests = NanoHTTPD.RequestScheduler.DEFAULT_BULK_LIMIT;
+        int maxMetadataRequests = 0;
+        NanoHTTPD.ServerOptions options = new NanoHTTPD.ServerOptions();
 
         // Parse command-line, with short and long versions of the options.
         for (int i = 0; i < args.length; ++i) {
@@ -72,11 +87,92 @@ public class WebDavServerApp {
                 quiet = true;
             } else if (args[i].equalsIgnoreCase("-d") || args[i].equalsIgnoreCase("--dir")) {
                 rootDir = new File(args[i + 1]).getAbsoluteFile();
+            } else if (args[i].equalsIgnoreCase("-t") || args[i].equalsIgnoreCase("--threads")) {
+                maxThreads = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equalsIgnoreCase("--queue")) {
+                queueCapacity = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equalsIgnoreCase("--virtual-threads")) {
+                virtualThreads = true;
+            } else if (args[i].equalsIgnoreCase("--non-blocking")) {
+                nonBlocking = true;
+            } else if (args[i].equalsIgnoreCase("--cache")) {
+                cacheSize = Long.parseLong(args[i + 1]) * 1024 * 1024;
+            } else if (args[i].equalsIgnoreCase("--cache-file-size")) {
+                cacheFileSize = Long.parseLong(args[i + 1]) * 1024;
+            } else if (args[i].equalsIgnoreCase("--max-upload")) {
+                maxUploadSize = Long.parseLong(args[i + 1]) * 1024 * 1024;
+            } else if (args[i].equalsIgnoreCase("--backlog")) {
+                options.setBacklog(Integer.parseInt(args[i + 1]));
+            } else if (args[i].equalsIgnoreCase("--rcvbuf")) {
+                options.setReceiveBufferSize(Integer.parseInt(args[i + 1]) * 1024);
+            } else if (args[i].equalsIgnoreCase("--sndbuf")) {
+                options.setSendBufferSize(Integer.parseInt(args[i + 1]) * 1024);
+            } else if (args[i].equalsIgnoreCase("--nodelay")) {
+                options.setTcpNoDelay(true);
+            } else if (args[i].equalsIgnoreCase("--header-timeout")) {
+                options.setHeaderTimeout(Integer.parseInt(args[i + 1]) * 1000);
+            } else if (args[i].equalsIgnoreCase("--body-timeout")) {
+                options.setBodyTimeout(Integer.parseInt(args[i + 1]) * 1000);
+            } else if (args[i].equalsIgnoreCase("--keep-alive-timeout")) {
+                options.setKeepAliveTimeout(Integer.parseInt(args[i + 1]) * 1000);
+            } else if (args[i].equalsIgnoreCase("--write-timeout")) {
+                options.setWriteTimeout(Integer.parseInt(args[i + 1]) * 1000);
+            } else if (args[i].equalsIgnoreCase("--min-body-rate")) {
+                options.setMinBodyRate(Integer.parseInt(args[i + 1]));
+            } else if (args[i].equalsIgnoreCase("--max-requests")) {
+                options.setMaxRequestsPerConnection(Integer.parseInt(args[i + 1]));
+            } else if (args[i].equalsIgnoreCase("--drain-timeout")) {
+                drainTimeout = Long.parseLong(args[i + 1]) * 1000;
+            } else if (args[i].equalsIgnoreCase("--max-rate")) {
+                maxRate = Long.parseLong(args[i + 1]) * 1024;
+            } else if (args[i].equalsIgnoreCase("--max-address-rate")) {
+                maxAddressRate = Long.parseLong(args[i + 1]) * 1024;
+            } else if (args[i].equalsIgnoreCase("--max-connection-rate")) {
+                maxConnectionRate = Long.parseLong(args[i + 1]) * 1024;
+            } else if (args[i].equalsIgnoreCase("--max-bulk")) {
+                maxBulkRequests = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equalsIgnoreCase("--max-metadata")) {
+                maxMetadataRequests = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equalsIgnoreCase("--acceptors")) {
+                options.setAcceptorThreads(Integer.parseInt(args[i + 1]));
+            } else if (args[i].equalsIgnoreCase("--reuse-port")) {
+                options.setReusePort(true);
+            } else if (args[i].equalsIgnoreCase("--unix-socket")) {
+                options.setUnixDomainSocket(new File(args[i + 1]).getAbsoluteFile());
+            } else if (args[i].equalsIgnoreCase("--forwarded-header")) {
+                options.setForwardedHeader(args[i + 1]);
+            } else if (args[i].equalsIgnoreCase("--http2")) {
+                options.setHttp2(true);
             } else if (args[i].equalsIgnoreCase("--licence")) {
                 System.out.println(WebDavServerApp.LICENCE + "\n");
             }
         }
 
-        ServerRunner.executeInstance(new WebDavServer(host, port, rootDir, quiet));
+        WebDavServer server = new WebDavServer(host, port, rootDir, quiet, options);
+        server.setNonBlocking(nonBlocking);
+        server.setMaxUploadSize(maxUploadSize);
+        for (NanoHTTPD.BandwidthShaper shaper : new NanoHTTPD.BandwidthShaper[]{
+            server.getResponseShaper(),
+            server.getRequestShaper()
+        }) {
+            shaper.setGlobalLimit(maxRate);
+            shaper.setAddressLimit(maxAddressRate);
+            shaper.setConnectionLimit(maxConnectionRate);
+        }
+        server.getRequestScheduler().setLimit(NanoHTTPD.RequestClass.BULK, maxBulkRequests);
+        server.getRequestScheduler().setLimit(NanoHTTPD.RequestClass.METADATA, maxMetadataRequests);
+        if (cacheSize > 0) {
+            server.setFileCache(new FileCache(cacheSize, cacheFileSize));
+        }
+        if (virtualThreads) {
+            if (!NanoHTTPD.VirtualThreadAsyncRunner.isSupported()) {
+                System.err.println("Virtual threads require Java 21 or newer");
+                System.exit(-1);
+            }
+            server.setAsyncRunner(new NanoHTTPD.VirtualThreadAsyncRunner());
+        } else if (maxThreads > 0) {
+            server.setAsyncRunner(new NanoHTTPD.BoundedAsyncRunner(maxThreads, queueCapacity));
+        }
+        ServerRunner.executeInstance(server, drainTimeout);
     }
 }
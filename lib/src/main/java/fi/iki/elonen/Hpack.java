@@ -0,0 +1,696 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * HPACK header compression for HTTP/2, as specified in RFC 7541.
+ * <p/>
+ * <p>
+ * The decoder supports the whole format, including the dynamic table and
+ * Huffman coded strings. The encoder refers to the static table where it can
+ * and sends everything else as plain literals that are never added to the
+ * peer's dynamic table, so it keeps no state between header blocks.
+ * </p>
+ */
+final class Hpack {
+
+    private static final String[][] STATIC_TABLE = {
+        {
+            ":authority",
+            ""
+        },
+        {
+            ":method",
+            "GET"
+        },
+        {
+            ":method",
+            "POST"
+        },
+        {
+            ":path",
+            "/"
+        },
+        {
+            ":path",
+            "/index.html"
+        },
+        {
+            ":scheme",
+            "http"
+        },
+        {
+            ":scheme",
+            "https"
+        },
+        {
+            ":status",
+            "200"
+        },
+        {
+            ":status",
+            "204"
+        },
+        {
+            ":status",
+            "206"
+        },
+        {
+            ":status",
+            "304"
+        },
+        {
+            ":status",
+            "400"
+        },
+        {
+            ":status",
+            "404"
+        },
+        {
+            ":status",
+            "500"
+        },
+        {
+            "accept-charset",
+            ""
+        },
+        {
+            "accept-encoding",
+            "gzip, deflate"
+        },
+        {
+            "accept-language",
+            ""
+        },
+        {
+            "accept-ranges",
+            ""
+        },
+        {
+            "accept",
+            ""
+        },
+        {
+            "access-control-allow-origin",
+            ""
+        },
+        {
+            "age",
+            ""
+        },
+        {
+            "allow",
+            ""
+        },
+        {
+            "authorization",
+            ""
+        },
+        {
+            "cache-control",
+            ""
+        },
+        {
+            "content-disposition",
+            ""
+        },
+        {
+            "content-encoding",
+            ""
+        },
+        {
+            "content-language",
+            ""
+        },
+        {
+            "content-length",
+            ""
+        },
+        {
+            "content-location",
+            ""
+        },
+        {
+            "content-range",
+            ""
+        },
+        {
+            "content-type",
+            ""
+        },
+        {
+            "cookie",
+            ""
+        },
+        {
+            "date",
+            ""
+        },
+        {
+            "etag",
+            ""
+        },
+        {
+            "expect",
+            ""
+        },
+        {
+            "expires",
+            ""
+        },
+        {
+            "from",
+            ""
+        },
+        {
+            "host",
+            ""
+        },
+        {
+            "if-match",
+            ""
+        },
+        {
+            "if-modified-since",
+            ""
+        },
+        {
+            "if-none-match",
+            ""
+        },
+        {
+            "if-range",
+            ""
+        },
+        {
+            "if-unmodified-since",
+            ""
+        },
+        {
+            "last-modified",
+            ""
+        },
+        {
+            "link",
+            ""
+        },
+        {
+            "location",
+            ""
+        },
+        {
+            "max-forwards",
+            ""
+        },
+        {
+            "proxy-authenticate",
+            ""
+        },
+        {
+            "proxy-authorization",
+            ""
+        },
+        {
+            "range",
+            ""
+        },
+        {
+            "referer",
+            ""
+        },
+        {
+            "refresh",
+            ""
+        },
+        {
+            "retry-after",
+            ""
+        },
+        {
+            "server",
+            ""
+        },
+        {
+            "set-cookie",
+            ""
+        },
+        {
+            "strict-transport-security",
+            ""
+        },
+        {
+            "transfer-encoding",
+            ""
+        },
+        {
+            "user-agent",
+            ""
+        },
+        {
+            "vary",
+            ""
+        },
+        {
+            "via",
+            ""
+        },
+        {
+            "www-authenticate",
+            ""
+        }
+    };
+
+    /**
+     * Huffman codes of the 256 octets and the end-of-string symbol, from
+     * appendix B of RFC 7541.
+     */
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+    };
+
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    /**
+     * Decoding tree of the Huffman code. Inner nodes hold the indexes of
+     * their children, leaves the complement of their symbol.
+     */
+    private static final int[][] HUFFMAN_TREE = buildHuffmanTree();
+
+    private static final int EOS = 256;
+
+    /**
+     * Strings are kept as one char per octet while they are in the table,
+     * so that their length is the one the table size is accounted in.
+     */
+    private static final Charset OCTETS = Charset.forName("ISO-8859-1");
+
+    private static int[][] buildHuffmanTree() {
+        int[][] tree = new int[2][2 * HUFFMAN_CODES.length];
+        int nodes = 1;
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            int code = HUFFMAN_CODES[symbol];
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit > 0; bit--) {
+                int branch = code >>> bit & 1;
+                if (tree[branch][node] == 0) {
+                    tree[branch][node] = nodes++;
+                }
+                node = tree[branch][node];
+            }
+            tree[code & 1][node] = ~symbol;
+        }
+        return tree;
+    }
+
+    /**
+     * Size of an entry as counted against the dynamic table size, with both
+     * strings given as octets.
+     */
+    private static int entrySize(String name, String value) {
+        return name.length() + value.length() + 32;
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * Decoder for the header blocks of one connection. Header blocks must be
+     * decoded in the order they arrive, including those of streams that are
+     * refused, since each of them may change the dynamic table.
+     */
+    static final class Decoder {
+
+        /**
+         * Dynamic table as a ring of name/value pairs, newest first.
+         */
+        private String[] entries = new String[64];
+
+        private int first;
+
+        private int count;
+
+        private int size;
+
+        private int maxSize;
+
+        private final int maxSizeLimit;
+
+        /**
+         * Scratch space for string literals.
+         */
+        private byte[] scratch = new byte[256];
+
+        private byte[] block;
+
+        private int pos;
+
+        private int end;
+
+        Decoder(int maxSizeLimit) {
+            this.maxSizeLimit = maxSizeLimit;
+            this.maxSize = maxSizeLimit;
+        }
+
+        /**
+         * Decodes a complete header block and adds the fields to the given
+         * list as name, value, name, value and so on.
+         * 
+         * @return false if the decoded fields exceed maxListSize. The block is
+         *         decoded completely regardless, to keep the dynamic table in
+         *         step with the peer.
+         * @throws ProtocolException
+         *             if the block cannot be decoded, which is fatal for the
+         *             whole connection.
+         */
+        boolean decode(byte[] block, int off, int len, List<String> fields, int maxListSize) throws ProtocolException {
+            this.block = block;
+            this.pos = off;
+            this.end = off + len;
+            int listSize = 0;
+            boolean fieldSeen = false;
+            while (this.pos < this.end) {
+                int b = this.block[this.pos] & 0xff;
+                String name;
+                String value;
+                if ((b & 0x80) != 0) {
+                    int index = readInt(7);
+                    name = name(index);
+                    value = value(index);
+                } else if ((b & 0x40) != 0) {
+                    int index = readInt(6);
+                    name = index == 0 ? readString() : name(index);
+                    value = readString();
+                    add(name, value);
+                } else if ((b & 0x20) != 0) {
+                    if (fieldSeen) {
+                        throw new ProtocolException("HPACK: table size update after a header field");
+                    }
+                    int newSize = readInt(5);
+                    if (newSize > this.maxSizeLimit) {
+                        throw new ProtocolException("HPACK: table size " + newSize + " exceeds the limit");
+                    }
+                    this.maxSize = newSize;
+                    evict(0);
+                    continue;
+                } else {
+                    // literal without indexing or never indexed
+                    int index = readInt(4);
+                    name = index == 0 ? readString() : name(index);
+                    value = readString();
+                }
+                fieldSeen = true;
+                listSize += entrySize(name, value);
+                if (listSize <= maxListSize) {
+                    fields.add(utf8(name));
+                    fields.add(utf8(value));
+                }
+            }
+            this.block = null;
+            return listSize <= maxListSize;
+        }
+
+        private int readInt(int prefixBits) throws ProtocolException {
+            int max = (1 << prefixBits) - 1;
+            int value = this.block[this.pos++] & max;
+            if (value < max) {
+                return value;
+            }
+            int shift = 0;
+            int b;
+            do {
+                if (this.pos == this.end) {
+                    throw new ProtocolException("HPACK: truncated integer");
+                }
+                if (shift > 21) {
+                    throw new ProtocolException("HPACK: integer too large");
+                }
+                b = this.block[this.pos++] & 0xff;
+                value += (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private String readString() throws ProtocolException {
+            if (this.pos == this.end) {
+                throw new ProtocolException("HPACK: truncated string");
+            }
+            boolean huffman = (this.block[this.pos] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > this.end - this.pos) {
+                throw new ProtocolException("HPACK: truncated string");
+            }
+            int start = this.pos;
+            this.pos += length;
+            if (!huffman) {
+                return new String(this.block, start, length, OCTETS);
+            }
+            // Huffman codes are at least five bits long
+            if (this.scratch.length < length * 8 / 5) {
+                this.scratch = new byte[length * 8 / 5];
+            }
+            int n = 0;
+            int node = 0;
+            int depth = 0;
+            boolean ones = true;
+            for (int i = start; i < this.pos; i++) {
+                int b = this.block[i];
+                for (int bit = 7; bit >= 0; bit--) {
+                    int branch = b >>> bit & 1;
+                    ones &= branch == 1;
+                    depth++;
+                    node = HUFFMAN_TREE[branch][node];
+                    if (node < 0) {
+                        int symbol = ~node;
+                        if (symbol == EOS) {
+                            throw new ProtocolException("HPACK: EOS in Huffman string");
+                        }
+                        this.scratch[n++] = (byte) symbol;
+                        node = 0;
+                        depth = 0;
+                        ones = true;
+                    } else if (node == 0) {
+                        throw new ProtocolException("HPACK: invalid Huffman code");
+                    }
+                }
+            }
+            if (depth > 7 || !ones) {
+                throw new ProtocolException("HPACK: invalid Huffman padding");
+            }
+            return new String(this.scratch, 0, n, OCTETS);
+        }
+
+        /**
+         * Turns an octet string into text, reading non-ASCII octets as UTF-8.
+         */
+        private static String utf8(String octets) {
+            for (int i = 0; i < octets.length(); i++) {
+                if (octets.charAt(i) >= 0x80) {
+                    try {
+                        return new String(octets.getBytes(OCTETS), "UTF-8");
+                    } catch (UnsupportedEncodingException e) {
+                        break;
+                    }
+                }
+            }
+            return octets;
+        }
+
+        private String name(int index) throws ProtocolException {
+            return field(index, 0);
+        }
+
+        private String value(int index) throws ProtocolException {
+            return field(index, 1);
+        }
+
+        private String field(int index, int part) throws ProtocolException {
+            if (index > 0 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][part];
+            }
+            int dynamic = index - STATIC_TABLE.length - 1;
+            if (index <= 0 || dynamic >= this.count) {
+                throw new ProtocolException("HPACK: invalid index " + index);
+            }
+            return this.entries[((this.first + dynamic) % (this.entries.length / 2)) * 2 + part];
+        }
+
+        private void add(String name, String value) {
+            int entrySize = entrySize(name, value);
+            evict(entrySize);
+            if (entrySize > this.maxSize) {
+                return;
+            }
+            int capacity = this.entries.length / 2;
+            if (this.count == capacity) {
+                String[] grown = new String[this.entries.length * 2];
+                for (int i = 0; i < this.count; i++) {
+                    int from = (this.first + i) % capacity;
+                    grown[i * 2] = this.entries[from * 2];
+                    grown[i * 2 + 1] = this.entries[from * 2 + 1];
+                }
+                this.entries = grown;
+                this.first = 0;
+                capacity *= 2;
+            }
+            this.first = (this.first + capacity - 1) % capacity;
+            this.entries[this.first * 2] = name;
+            this.entries[this.first * 2 + 1] = value;
+            this.count++;
+            this.size += entrySize;
+        }
+
+        /**
+         * Drops the oldest entries until an entry of the given size fits.
+         */
+        private void evict(int entrySize) {
+            int capacity = this.entries.length / 2;
+            while (this.count > 0 && this.size + entrySize > this.maxSize) {
+                int last = (this.first + this.count - 1) % capacity;
+                this.size -= entrySize(this.entries[last * 2], this.entries[last * 2 + 1]);
+                this.entries[last * 2] = null;
+                this.entries[last * 2 + 1] = null;
+                this.count--;
+            }
+        }
+    }
+
+    /**
+     * Encodes a header field, referring to the static table where possible.
+     * Field names must be lower case.
+     */
+    static void encode(String name, String value, ByteArrayOutputStream out) {
+        int nameIndex = 0;
+        for (int i = 0; i < STATIC_TABLE.length; i++) {
+            if (STATIC_TABLE[i][0].equals(name)) {
+                if (STATIC_TABLE[i][1].equals(value)) {
+                    writeInt(out, 0x80, 7, i + 1);
+                    return;
+                }
+                if (nameIndex == 0) {
+                    nameIndex = i + 1;
+                }
+            }
+        }
+        // literal without indexing
+        writeInt(out, 0x00, 4, nameIndex);
+        if (nameIndex == 0) {
+            writeString(out, name);
+        }
+        writeString(out, value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes;
+        try {
+            bytes = value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        writeInt(out, 0x00, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,1478 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import fi.iki.elonen.NanoHTTPD.BufferPool;
+import fi.iki.elonen.NanoHTTPD.Method;
+
+/**
+ * Server side of an HTTP/2 connection, as specified in RFC 7540.
+ * <p/>
+ * <p>
+ * The thread that accepted the connection reads and dispatches the frames.
+ * Every stream the client opens is answered on a thread of its own through
+ * {@link NanoHTTPD#serveStream}, which runs the usual
+ * <code>serve(IHTTPSession)</code>, so concurrent requests share the
+ * connection without waiting for one another. Request bodies are buffered
+ * per stream up to the stream window and credited back to the client as the
+ * handler reads them; response DATA frames wait for send window. Frames are
+ * written whole under a lock, header blocks together with their
+ * continuations.
+ * </p>
+ * <p>
+ * Priorities are ignored and the server never pushes.
+ * </p>
+ */
+final class Http2Connection {
+
+    private static final Logger LOG = Logger.getLogger(Http2Connection.class.getName());
+
+    private static final byte[] PREFACE = {
+        'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n', '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'
+    };
+
+    /**
+     * Length of the part of the preface that looks like an HTTP/1 request
+     * header.
+     */
+    private static final int PREFACE_HEADER_LENGTH = 18;
+
+    private static final int DATA = 0x0;
+
+    private static final int HEADERS = 0x1;
+
+    private static final int PRIORITY = 0x2;
+
+    private static final int RST_STREAM = 0x3;
+
+    private static final int SETTINGS = 0x4;
+
+    private static final int PUSH_PROMISE = 0x5;
+
+    private static final int PING = 0x6;
+
+    private static final int GOAWAY = 0x7;
+
+    private static final int WINDOW_UPDATE = 0x8;
+
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+
+    private static final int FLAG_ACK = 0x1;
+
+    private static final int FLAG_END_HEADERS = 0x4;
+
+    private static final int FLAG_PADDED = 0x8;
+
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int NO_ERROR = 0x0;
+
+    private static final int PROTOCOL_ERROR = 0x1;
+
+    private static final int INTERNAL_ERROR = 0x2;
+
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+
+    private static final int STREAM_CLOSED = 0x5;
+
+    private static final int FRAME_SIZE_ERROR = 0x6;
+
+    private static final int REFUSED_STREAM = 0x7;
+
+    private static final int COMPRESSION_ERROR = 0x9;
+
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+
+    /**
+     * Frame payloads up to the size every peer must accept, in either
+     * direction unless the client allows larger ones.
+     */
+    private static final int MAX_FRAME_SIZE = 16384;
+
+    private static final int DEFAULT_WINDOW = 65535;
+
+    /**
+     * Request body bytes a stream may have buffered before its handler
+     * reads them.
+     */
+    private static final int STREAM_WINDOW = 1024 * 1024;
+
+    private static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+
+    private static final int MAX_HEADER_LIST_SIZE = NanoHTTPD.HTTPSession.MAX_HEADER_SIZE;
+
+    /**
+     * Header fields that only make sense for an HTTP/1 connection and must
+     * not appear in an HTTP/2 response.
+     */
+    private static final String[] CONNECTION_HEADERS = {
+        "connection",
+        "keep-alive",
+        "proxy-connection",
+        "transfer-encoding",
+        "upgrade"
+    };
+
+    private static final String[] APPLICATION_PROTOCOLS = {
+        "h2",
+        "http/1.1"
+    };
+
+    /**
+     * @return true if the buffered bytes start with the HTTP/2 connection
+     *         preface.
+     */
+    static boolean isPreface(byte[] buf, int off, int end) {
+        if (end - off < PREFACE_HEADER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < PREFACE_HEADER_LENGTH; i++) {
+            if (buf[off + i] != PREFACE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isConnectionHeader(String name) {
+        for (String connectionHeader : CONNECTION_HEADERS) {
+            if (connectionHeader.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Offers h2 through ALPN on a secure server socket. ALPN is only
+     * available from Java 9 on, so older runtimes keep speaking HTTP/1.1.
+     */
+    static void offerApplicationProtocols(SSLServerSocket serverSocket) {
+        SSLParameters parameters = serverSocket.getSSLParameters();
+        if (setApplicationProtocols(parameters)) {
+            serverSocket.setSSLParameters(parameters);
+        }
+    }
+
+    /**
+     * Offers h2 through ALPN on a connection of the non-blocking engine.
+     */
+    static void offerApplicationProtocols(SSLEngine engine) {
+        SSLParameters parameters = engine.getSSLParameters();
+        if (setApplicationProtocols(parameters)) {
+            engine.setSSLParameters(parameters);
+        }
+    }
+
+    private static boolean setApplicationProtocols(SSLParameters parameters) {
+        try {
+            SSLParameters.class.getMethod("setApplicationProtocols", String[].class).invoke(parameters, (Object) APPLICATION_PROTOCOLS);
+            return true;
+        } catch (Exception e) {
+            Http2Connection.LOG.log(Level.FINE, "ALPN is not supported, HTTP/2 is not offered on secure connections", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the client chose h2 through ALPN during the TLS
+     *         handshake, which this call completes if necessary.
+     */
+    static boolean isNegotiated(Socket socket) {
+        if (!(socket instanceof SSLSocket)) {
+            return false;
+        }
+        try {
+            // completes the handshake without starting another one
+            ((SSLSocket) socket).getSession();
+            return "h2".equals(SSLSocket.class.getMethod("getApplicationProtocol").invoke(socket));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the client chose h2 through ALPN during the completed
+     *         handshake of the engine.
+     */
+    static boolean isNegotiated(SSLEngine engine) {
+        try {
+            return "h2".equals(SSLEngine.class.getMethod("getApplicationProtocol").invoke(engine));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Connection error, answered with GOAWAY and the end of the connection.
+     */
+    private static final class ConnectionError extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int code;
+
+        ConnectionError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    /**
+     * One request and its response.
+     */
+    final class Stream implements Runnable, NanoHTTPD.RequestScheduler.Deferred {
+
+        private final int id;
+
+        private final List<String> fields;
+
+        private final NanoHTTPD.HTTPSession upgraded;
+
+        private final StreamInput input = new StreamInput(this);
+
+        private boolean headerListTooLarge;
+
+        /**
+         * Set if the request has no body, because the header block ended
+         * the stream.
+         */
+        private boolean empty;
+
+        /**
+         * Guarded by the connection.
+         */
+        private long sendWindow;
+
+        /**
+         * Set once the stream has been reset by either side. Guarded by the
+         * connection.
+         */
+        private boolean reset;
+
+        /**
+         * Set once the response has ended the stream.
+         */
+        private boolean ended;
+
+        /**
+         * Set once the stream has been admitted and handed to the executor,
+         * until then it only waits in the request scheduler. Guarded by the
+         * connection.
+         */
+        private boolean dispatched;
+
+        private NanoHTTPD.RequestClass requestClass;
+
+        /**
+         * Class the stream was admitted in, until its handler takes it over.
+         */
+        private final AtomicReference<NanoHTTPD.RequestClass> admitted = new AtomicReference<NanoHTTPD.RequestClass>();
+
+        private Stream(int id, List<String> fields, NanoHTTPD.HTTPSession upgraded) {
+            this.id = id;
+            this.fields = fields;
+            this.upgraded = upgraded;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Http2Connection.this.server.serveStream(this);
+            } finally {
+                end(this);
+            }
+        }
+
+        @Override
+        public void dispatch() {
+            boolean open;
+            synchronized (Http2Connection.this) {
+                open = this.dispatched = !Http2Connection.this.closed;
+            }
+            if (!open) {
+                // the connection closed while the stream waited for its turn
+                Http2Connection.this.server.getRequestScheduler().release(this.requestClass);
+                return;
+            }
+            this.admitted.set(this.requestClass);
+            execute(this);
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (Http2Connection.this) {
+                Http2Connection.this.streams.remove(this.id);
+                Http2Connection.this.notifyAll();
+            }
+            try {
+                writeReset(this.id, REFUSED_STREAM);
+            } catch (IOException e) {
+                Http2Connection.LOG.log(Level.FINE, "Could not refuse the stream", e);
+            }
+        }
+
+        /**
+         * @return the class the stream was admitted in, which the caller
+         *         releases, or null.
+         */
+        NanoHTTPD.RequestClass takeAdmitted() {
+            return this.admitted.getAndSet(null);
+        }
+
+        /**
+         * @return the session of the HTTP/1.1 request that was upgraded to
+         *         this stream, or null.
+         */
+        NanoHTTPD.HTTPSession getUpgradedSession() {
+            return this.upgraded;
+        }
+
+        boolean isHeaderListTooLarge() {
+            return this.headerListTooLarge;
+        }
+
+        Method getMethod() {
+            String method = field(":method");
+            return method == null ? null : Method.lookup(method);
+        }
+
+        String getPath() {
+            return field(":path");
+        }
+
+        /**
+         * @return the regular header fields, with the authority as host.
+         *         Repeated fields are joined into one.
+         */
+        Map<String, String> getHeaders() {
+            Map<String, String> headers = new LinkedHashMap<String, String>();
+            for (int i = 0; i < this.fields.size(); i += 2) {
+                String name = this.fields.get(i);
+                String value = this.fields.get(i + 1);
+                if (name.startsWith(":")) {
+                    continue;
+                }
+                String previous = headers.get(name);
+                headers.put(name, previous == null ? value : previous + ("cookie".equals(name) ? "; " : ", ") + value);
+            }
+            String authority = field(":authority");
+            if (authority != null && !headers.containsKey("host")) {
+                headers.put("host", authority);
+            }
+            return headers;
+        }
+
+        /**
+         * @return the declared length of the request body, 0 if there is
+         *         none, or -1 if it is only known at the end of the stream.
+         */
+        long getBodySize() {
+            if (this.empty) {
+                return 0;
+            }
+            String contentLength = field("content-length");
+            if (contentLength != null) {
+                try {
+                    return Long.parseLong(contentLength.trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        InputStream getInputStream() {
+            return this.input;
+        }
+
+        NanoHTTPD.BandwidthShaper.Throttle getRequestThrottle() {
+            return Http2Connection.this.requestThrottle;
+        }
+
+        InetAddress getRemoteAddress() {
+            return Http2Connection.this.socket != null ? Http2Connection.this.socket.getInetAddress() : null;
+        }
+
+        private String field(String name) {
+            for (int i = 0; i < this.fields.size(); i += 2) {
+                if (this.fields.get(i).equals(name)) {
+                    return this.fields.get(i + 1);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Sends the response header fields as one header block. Names must
+         * be lower case.
+         */
+        void writeHeaders(List<String> fields, boolean endStream) throws IOException {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            for (int i = 0; i < fields.size(); i += 2) {
+                Hpack.encode(fields.get(i), fields.get(i + 1), block);
+            }
+            byte[] bytes = block.toByteArray();
+            Http2Connection.this.writeLock.lock();
+            try {
+                checkOpen(this);
+                int maxFrameSize = Http2Connection.this.peerMaxFrameSize;
+                int off = 0;
+                int type = HEADERS;
+                do {
+                    int length = Math.min(bytes.length - off, maxFrameSize);
+                    int flags = off + length == bytes.length ? FLAG_END_HEADERS : 0;
+                    if (type == HEADERS && endStream) {
+                        flags |= FLAG_END_STREAM;
+                    }
+                    // a body follows right away and takes the header along
+                    writeFrame(type, flags, this.id, bytes, off, length, endStream && off + length == bytes.length);
+                    off += length;
+                    type = CONTINUATION;
+                } while (off < bytes.length);
+            } finally {
+                Http2Connection.this.writeLock.unlock();
+            }
+            this.ended = endStream;
+        }
+
+        /**
+         * Sends response body bytes, waiting for send window as needed.
+         */
+        void writeData(byte[] b, int off, int len, boolean endStream) throws IOException {
+            do {
+                int length = len == 0 ? 0 : acquireWindow(this, Math.min(len, Http2Connection.this.peerMaxFrameSize));
+                boolean last = endStream && length == len;
+                Http2Connection.this.writeLock.lock();
+                try {
+                    checkOpen(this);
+                    writeFrame(DATA, last ? FLAG_END_STREAM : 0, this.id, b, off, length, true);
+                } finally {
+                    Http2Connection.this.writeLock.unlock();
+                }
+                off += length;
+                len -= length;
+            } while (len > 0);
+            this.ended = endStream;
+        }
+    }
+
+    /**
+     * Request body of a stream, filled by the connection's reading thread
+     * and read by the stream's handler.
+     */
+    private final class StreamInput extends InputStream {
+
+        private final Stream stream;
+
+        /**
+         * Ring buffer, grown as needed up to the stream window.
+         */
+        private byte[] buf;
+
+        private int head;
+
+        private int count;
+
+        /**
+         * Set once the client has ended the stream.
+         */
+        private boolean finished;
+
+        /**
+         * Set once the handler is done with the stream or it has been reset.
+         */
+        private boolean closed;
+
+        /**
+         * Bytes read by the handler that have not been credited to the
+         * stream's window yet.
+         */
+        private int unacknowledged;
+
+        private StreamInput(Stream stream) {
+            this.stream = stream;
+        }
+
+        /**
+         * Buffers a DATA payload.
+         * 
+         * @return the number of bytes the connection should credit right away
+         *         because nobody is going to read them, or -1 if the payload
+         *         exceeds the stream window.
+         */
+        synchronized int offer(byte[] b, int off, int len) {
+            if (this.closed || this.finished) {
+                return len;
+            }
+            if (this.count + len > STREAM_WINDOW) {
+                return -1;
+            }
+            int capacity = this.buf == null ? 0 : this.buf.length;
+            if (this.count + len > capacity) {
+                byte[] grown = new byte[Math.min(STREAM_WINDOW, Math.max(this.count + len, Math.max(2 * capacity, MAX_FRAME_SIZE)))];
+                for (int i = 0; i < this.count; i++) {
+                    grown[i] = this.buf[(this.head + i) % capacity];
+                }
+                this.buf = grown;
+                this.head = 0;
+                capacity = grown.length;
+            }
+            int tail = (this.head + this.count) % capacity;
+            int first = Math.min(len, capacity - tail);
+            System.arraycopy(b, off, this.buf, tail, first);
+            System.arraycopy(b, off + first, this.buf, 0, len - first);
+            this.count += len;
+            notifyAll();
+            return 0;
+        }
+
+        synchronized void finish() {
+            this.finished = true;
+            notifyAll();
+        }
+
+        /**
+         * Ends the stream for the handler and drops what it has not read.
+         * 
+         * @return the number of dropped bytes.
+         */
+        synchronized int close(boolean reset) {
+            int dropped = this.count;
+            this.closed = true;
+            this.finished |= !reset;
+            this.count = 0;
+            this.buf = null;
+            notifyAll();
+            return dropped;
+        }
+
+        synchronized boolean isFinished() {
+            return this.finished;
+        }
+
+        @Override
+        public synchronized int available() {
+            return this.count;
+        }
+
+        @Override
+        public void close() {
+            // the stream stays open for the response
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int read;
+            int credit = 0;
+            synchronized (this) {
+                while (this.count == 0 && !this.finished && !this.closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (this.count == 0) {
+                    if (this.finished) {
+                        return -1;
+                    }
+                    throw new IOException("Stream " + this.stream.id + " was reset");
+                }
+                read = Math.min(len, Math.min(this.count, this.buf.length - this.head));
+                System.arraycopy(this.buf, this.head, b, off, read);
+                this.head = (this.head + read) % this.buf.length;
+                this.count -= read;
+                this.unacknowledged += read;
+                if (!this.finished && this.unacknowledged >= STREAM_WINDOW / 4) {
+                    credit = this.unacknowledged;
+                    this.unacknowledged = 0;
+                }
+            }
+            if (credit > 0) {
+                writeWindowUpdate(this.stream.id, credit);
+            }
+            creditConnection(read);
+            return read;
+        }
+    }
+
+    private final NanoHTTPD server;
+
+    private final Executor executor;
+
+    private final InputStream in;
+
+    private final OutputStream out;
+
+    /**
+     * Serializes frame writes. A lock rather than a monitor, so a stream
+     * blocked on a slow client does not pin a virtual thread's carrier.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final Socket socket;
+
+    /**
+     * Throttle the request bodies of the streams are read through, or null.
+     */
+    private final NanoHTTPD.BandwidthShaper.Throttle requestThrottle;
+
+    private final Hpack.Decoder decoder = new Hpack.Decoder(4096);
+
+    /**
+     * Open streams by id. Guarded by this.
+     */
+    private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+
+    private final byte[] frameHeader = new byte[9];
+
+    /**
+     * Header of the frame being written. Guarded by out.
+     */
+    private final byte[] writeHeader = new byte[9];
+
+    /**
+     * Header block being collected from HEADERS and CONTINUATION frames.
+     */
+    private byte[] headerBlock = new byte[MAX_FRAME_SIZE];
+
+    private int headerBlockLength;
+
+    private int headerStreamId;
+
+    private boolean headerEndStream;
+
+    /**
+     * Stream whose header block still lacks CONTINUATION frames, or 0.
+     */
+    private int continuationStreamId;
+
+    /**
+     * Written by the reader only, read when a GOAWAY is sent from another
+     * thread.
+     */
+    private volatile int lastStreamId;
+
+    /**
+     * Connection-level send window. Guarded by this.
+     */
+    private long sendWindow = DEFAULT_WINDOW;
+
+    /**
+     * Initial send window of new streams. Guarded by this.
+     */
+    private long peerInitialWindow = DEFAULT_WINDOW;
+
+    private volatile int peerMaxFrameSize = MAX_FRAME_SIZE;
+
+    /**
+     * Received bytes that have not been credited to the connection window
+     * yet. Guarded by this.
+     */
+    private int unacknowledged;
+
+    /**
+     * Guarded by this.
+     */
+    private boolean closed;
+
+    /**
+     * Set once a GOAWAY has told the client that no more streams are
+     * accepted. Guarded by this.
+     */
+    private boolean draining;
+
+    Http2Connection(NanoHTTPD server, Executor executor, InputStream in, OutputStream out, Socket socket, NanoHTTPD.BandwidthShaper.Throttle requestThrottle) {
+        this.server = server;
+        this.executor = executor;
+        this.in = in;
+        this.out = out;
+        this.socket = socket;
+        this.requestThrottle = requestThrottle;
+    }
+
+    /**
+     * Applies the settings an h2c upgrade request carries in its
+     * HTTP2-Settings header.
+     */
+    void applySettings(String http2Settings) throws ProtocolException {
+        byte[] payload = decodeBase64Url(http2Settings.trim());
+        if (payload == null || payload.length % 6 != 0) {
+            throw new ProtocolException("Malformed HTTP2-Settings header");
+        }
+        try {
+            applySettings(payload, payload.length);
+        } catch (ConnectionError e) {
+            throw new ProtocolException(e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the connection until the client closes it or a connection error
+     * occurs.
+     * 
+     * @param upgraded
+     *            session of the HTTP/1.1 request that asked for the upgrade to
+     *            h2c, answered as stream 1, or null.
+     */
+    void serve(NanoHTTPD.HTTPSession upgraded) throws IOException {
+        byte[] payload = BufferPool.getDefault().acquire(MAX_FRAME_SIZE);
+        try {
+            if (this.socket != null) {
+                // frames are coalesced here already, and Nagle's algorithm
+                // would hold back a response behind the reader's last frames
+                this.socket.setTcpNoDelay(true);
+            }
+            writeSettings();
+            writeWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+            readPreface();
+            if (upgraded != null) {
+                this.lastStreamId = 1;
+                Stream stream = new Stream(1, new ArrayList<String>(), upgraded);
+                stream.empty = true;
+                stream.input.finish();
+                start(stream);
+            }
+            while (readFrame(payload)) {
+                continue;
+            }
+        } catch (ConnectionError e) {
+            Http2Connection.LOG.log(Level.FINE, "HTTP/2 connection error", e);
+            writeGoAway(e.code);
+        } catch (ProtocolException e) {
+            Http2Connection.LOG.log(Level.FINE, "HTTP/2 header compression error", e);
+            writeGoAway(COMPRESSION_ERROR);
+        } catch (SocketTimeoutException e) {
+            writeGoAway(NO_ERROR);
+        } finally {
+            close();
+            BufferPool.getDefault().release(payload);
+        }
+    }
+
+    private void readPreface() throws IOException {
+        byte[] preface = new byte[PREFACE.length];
+        readFully(preface, 0, preface.length);
+        for (int i = 0; i < PREFACE.length; i++) {
+            if (preface[i] != PREFACE[i]) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Invalid connection preface");
+            }
+        }
+    }
+
+    /**
+     * Reads and handles one frame.
+     * 
+     * @return false once the client has closed the connection.
+     */
+    private boolean readFrame(byte[] payload) throws IOException {
+        if (!readFrameHeader()) {
+            return false;
+        }
+        byte[] h = this.frameHeader;
+        int length = (h[0] & 0xff) << 16 | (h[1] & 0xff) << 8 | h[2] & 0xff;
+        int type = h[3] & 0xff;
+        int flags = h[4] & 0xff;
+        int streamId = getInt(h, 5) & 0x7fffffff;
+        if (length > MAX_FRAME_SIZE) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+        }
+        readFully(payload, 0, length);
+        if (this.continuationStreamId != 0 && (type != CONTINUATION || streamId != this.continuationStreamId)) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Header block interrupted");
+        }
+        switch (type) {
+            case DATA:
+                onData(payload, length, flags, streamId);
+                break;
+            case HEADERS:
+                onHeaders(payload, length, flags, streamId);
+                break;
+            case CONTINUATION:
+                if (this.continuationStreamId == 0) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+                }
+                appendHeaderBlock(payload, 0, length);
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    this.continuationStreamId = 0;
+                    onHeaderBlock();
+                }
+                break;
+            case PRIORITY:
+                if (streamId == 0) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY frame on stream 0");
+                }
+                break;
+            case RST_STREAM:
+                if (streamId == 0) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM frame on stream 0");
+                }
+                if (length != 4) {
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM frame of " + length + " bytes");
+                }
+                if (streamId > this.lastStreamId) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM frame on idle stream " + streamId);
+                }
+                reset(streamId);
+                break;
+            case SETTINGS:
+                if (streamId != 0) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS frame on stream " + streamId);
+                }
+                if ((flags & FLAG_ACK) != 0) {
+                    if (length != 0) {
+                        throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS acknowledgement with payload");
+                    }
+                    break;
+                }
+                if (length % 6 != 0) {
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS frame of " + length + " bytes");
+                }
+                applySettings(payload, length);
+                writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0, false);
+                break;
+            case PUSH_PROMISE:
+                throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE frame from a client");
+            case PING:
+                if (streamId != 0) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "PING frame on stream " + streamId);
+                }
+                if (length != 8) {
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "PING frame of " + length + " bytes");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    writeFrame(PING, FLAG_ACK, 0, payload, 0, 8, false);
+                }
+                break;
+            case GOAWAY:
+                // the client opens no more streams and closes the connection
+                // once it has its responses
+                break;
+            case WINDOW_UPDATE:
+                if (length != 4) {
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE frame of " + length + " bytes");
+                }
+                onWindowUpdate(streamId, getInt(payload, 0) & 0x7fffffff);
+                break;
+            default:
+                // unknown frame types are ignored
+                break;
+        }
+        return true;
+    }
+
+    private void onData(byte[] payload, int length, int flags, int streamId) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA frame on stream 0");
+        }
+        int off = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (length < 1 || (payload[0] & 0xff) >= length) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Invalid padding");
+            }
+            off = 1;
+            end -= payload[0] & 0xff;
+        }
+        Stream stream;
+        synchronized (this) {
+            stream = this.streams.get(streamId);
+        }
+        if (stream == null) {
+            if (streamId > this.lastStreamId) {
+                throw new ConnectionError(PROTOCOL_ERROR, "DATA frame on idle stream " + streamId);
+            }
+            // a stream that has been answered and closed already
+            creditConnection(length);
+            return;
+        }
+        int credit = stream.input.offer(payload, off, end - off);
+        if (credit < 0) {
+            writeReset(streamId, FLOW_CONTROL_ERROR);
+            reset(streamId);
+            credit = end - off;
+        }
+        creditConnection(length - (end - off) + credit);
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.input.finish();
+        }
+    }
+
+    private void onHeaders(byte[] payload, int length, int flags, int streamId) throws IOException {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS frame on stream " + streamId);
+        }
+        int off = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (length < 1) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Invalid padding");
+            }
+            off = 1;
+            end -= payload[0] & 0xff;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            off += 5;
+        }
+        if (off > end) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid padding");
+        }
+        this.headerBlockLength = 0;
+        this.headerStreamId = streamId;
+        this.headerEndStream = (flags & FLAG_END_STREAM) != 0;
+        appendHeaderBlock(payload, off, end - off);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        } else {
+            this.continuationStreamId = streamId;
+        }
+    }
+
+    private void appendHeaderBlock(byte[] payload, int off, int length) throws ConnectionError {
+        if (this.headerBlockLength + length > 2 * MAX_HEADER_LIST_SIZE) {
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "Header block too large");
+        }
+        if (this.headerBlockLength + length > this.headerBlock.length) {
+            byte[] grown = new byte[Math.max(this.headerBlockLength + length, 2 * this.headerBlock.length)];
+            System.arraycopy(this.headerBlock, 0, grown, 0, this.headerBlockLength);
+            this.headerBlock = grown;
+        }
+        System.arraycopy(payload, off, this.headerBlock, this.headerBlockLength, length);
+        this.headerBlockLength += length;
+    }
+
+    /**
+     * Handles a complete header block: opens a stream, or ends one with
+     * trailers.
+     */
+    private void onHeaderBlock() throws IOException {
+        int streamId = this.headerStreamId;
+        List<String> fields = new ArrayList<String>();
+        boolean fits = this.decoder.decode(this.headerBlock, 0, this.headerBlockLength, fields, MAX_HEADER_LIST_SIZE);
+        if (streamId <= this.lastStreamId) {
+            Stream stream;
+            synchronized (this) {
+                stream = this.streams.get(streamId);
+            }
+            if (stream == null || stream.input.isFinished()) {
+                writeReset(streamId, STREAM_CLOSED);
+            } else if (!this.headerEndStream) {
+                writeReset(streamId, PROTOCOL_ERROR);
+                reset(streamId);
+            } else {
+                // trailers are dropped
+                stream.input.finish();
+            }
+            return;
+        }
+        this.lastStreamId = streamId;
+        Stream stream = new Stream(streamId, fields, null);
+        stream.headerListTooLarge = !fits;
+        if (this.headerEndStream) {
+            stream.empty = true;
+            stream.input.finish();
+        }
+        synchronized (this) {
+            if (this.draining || this.streams.size() >= MAX_CONCURRENT_STREAMS) {
+                stream = null;
+            }
+        }
+        if (stream == null) {
+            writeReset(streamId, REFUSED_STREAM);
+            return;
+        }
+        start(stream);
+    }
+
+    private void onWindowUpdate(int streamId, int increment) throws IOException {
+        if (increment == 0) {
+            if (streamId == 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE without increment");
+            }
+            writeReset(streamId, PROTOCOL_ERROR);
+            reset(streamId);
+            return;
+        }
+        boolean overflow = false;
+        synchronized (this) {
+            if (streamId == 0) {
+                this.sendWindow += increment;
+                if (this.sendWindow > Integer.MAX_VALUE) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+            } else {
+                Stream stream = this.streams.get(streamId);
+                if (stream != null) {
+                    stream.sendWindow += increment;
+                    overflow = stream.sendWindow > Integer.MAX_VALUE;
+                }
+            }
+            notifyAll();
+        }
+        if (overflow) {
+            writeReset(streamId, FLOW_CONTROL_ERROR);
+            reset(streamId);
+        }
+    }
+
+    private void applySettings(byte[] payload, int length) throws ConnectionError {
+        for (int i = 0; i < length; i += 6) {
+            int id = (payload[i] & 0xff) << 8 | payload[i + 1] & 0xff;
+            long value = getInt(payload, i + 2) & 0xffffffffL;
+            switch (id) {
+                case SETTINGS_ENABLE_PUSH:
+                    if (value > 1) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH " + value);
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > Integer.MAX_VALUE) {
+                        throw new ConnectionError(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE " + value);
+                    }
+                    synchronized (this) {
+                        long delta = value - this.peerInitialWindow;
+                        this.peerInitialWindow = value;
+                        for (Stream stream : this.streams.values()) {
+                            stream.sendWindow += delta;
+                        }
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE " + value);
+                    }
+                    this.peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    // the encoder never uses the dynamic table, so the
+                    // client's table size does not matter
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Classifies a new stream and hands it to the executor, or queues it
+     * without a thread until its class has room.
+     */
+    private void start(Stream stream) throws IOException {
+        synchronized (this) {
+            stream.sendWindow = this.peerInitialWindow;
+            this.streams.put(stream.id, stream);
+        }
+        if (stream.upgraded != null) {
+            stream.requestClass = this.server.classifyRequest(stream.upgraded.getMethod(), stream.upgraded.getUri());
+        } else {
+            String path = stream.getPath();
+            int query = path != null ? path.indexOf('?') : -1;
+            stream.requestClass = this.server.classifyRequest(stream.getMethod(), NanoHTTPD.decodePercent(query >= 0 ? path.substring(0, query) : path));
+        }
+        if (this.server.getRequestScheduler().admitOrDefer(stream.requestClass, stream)) {
+            stream.dispatch();
+        }
+    }
+
+    /**
+     * Runs an admitted stream, refusing it if the executor is full.
+     */
+    private void execute(Stream stream) {
+        try {
+            this.executor.execute(stream);
+        } catch (RejectedExecutionException e) {
+            NanoHTTPD.RequestClass admitted = stream.takeAdmitted();
+            if (admitted != null) {
+                this.server.getRequestScheduler().release(admitted);
+            }
+            stream.cancel();
+        }
+    }
+
+    /**
+     * Called when the handler of a stream is done.
+     */
+    private void end(Stream stream) {
+        boolean reset;
+        synchronized (this) {
+            this.streams.remove(stream.id);
+            reset = stream.reset || this.closed;
+            notifyAll();
+        }
+        boolean requestFinished = stream.input.isFinished();
+        creditConnection(stream.input.close(false));
+        if (reset) {
+            return;
+        }
+        try {
+            if (!stream.ended) {
+                writeReset(stream.id, INTERNAL_ERROR);
+            } else if (!requestFinished) {
+                // the response is complete, the rest of the request is not
+                // needed
+                writeReset(stream.id, NO_ERROR);
+            }
+        } catch (IOException e) {
+            Http2Connection.LOG.log(Level.FINE, "Could not reset stream " + stream.id, e);
+        }
+    }
+
+    private void reset(int streamId) {
+        Stream stream;
+        synchronized (this) {
+            stream = this.streams.get(streamId);
+            if (stream == null) {
+                return;
+            }
+            stream.reset = true;
+            notifyAll();
+        }
+        creditConnection(stream.input.close(true));
+    }
+
+    /**
+     * Tells the client with a GOAWAY that no new streams are accepted, and
+     * lets the streams in progress finish. Called from outside the
+     * connection when the server drains.
+     */
+    void drain() {
+        synchronized (this) {
+            if (this.draining || this.closed) {
+                return;
+            }
+            this.draining = true;
+        }
+        writeGoAway(NO_ERROR);
+    }
+
+    private void close() {
+        List<Stream> open;
+        synchronized (this) {
+            this.closed = true;
+            // streams still waiting for their turn have no handler to wait
+            // for, they are dropped when their turn comes
+            Iterator<Stream> it = this.streams.values().iterator();
+            while (it.hasNext()) {
+                if (!it.next().dispatched) {
+                    it.remove();
+                }
+            }
+            open = new ArrayList<Stream>(this.streams.values());
+            notifyAll();
+        }
+        for (Stream stream : open) {
+            stream.input.close(true);
+        }
+        // the handlers fail fast now, and their sessions must not outlive
+        // the connection
+        synchronized (this) {
+            while (!this.streams.isEmpty()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized void checkOpen(Stream stream) throws IOException {
+        if (this.closed || stream.reset) {
+            throw new IOException("Stream " + stream.id + " was reset");
+        }
+    }
+
+    /**
+     * Takes up to wanted bytes of send window from the connection and the
+     * stream, waiting until both have some.
+     */
+    private int acquireWindow(Stream stream, int wanted) throws IOException {
+        synchronized (this) {
+            while (this.sendWindow <= 0 || stream.sendWindow <= 0) {
+                checkOpen(stream);
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            checkOpen(stream);
+            int length = (int) Math.min(wanted, Math.min(this.sendWindow, stream.sendWindow));
+            this.sendWindow -= length;
+            stream.sendWindow -= length;
+            return length;
+        }
+    }
+
+    /**
+     * Hands received bytes back to the connection window, in batches.
+     */
+    private void creditConnection(int length) {
+        int credit = 0;
+        synchronized (this) {
+            this.unacknowledged += length;
+            if (this.unacknowledged >= CONNECTION_WINDOW / 8 && !this.closed) {
+                credit = this.unacknowledged;
+                this.unacknowledged = 0;
+            }
+        }
+        if (credit > 0) {
+            try {
+                writeWindowUpdate(0, credit);
+            } catch (IOException e) {
+                Http2Connection.LOG.log(Level.FINE, "Could not update the connection window", e);
+            }
+        }
+    }
+
+    private boolean readFrameHeader() throws IOException {
+        if (this.in.available() == 0) {
+            this.writeLock.lock();
+            try {
+                this.out.flush();
+            } finally {
+                this.writeLock.unlock();
+            }
+        }
+        int n = 0;
+        while (n < this.frameHeader.length) {
+            int read;
+            try {
+                read = this.in.read(this.frameHeader, n, this.frameHeader.length - n);
+            } catch (SocketTimeoutException e) {
+                boolean busy;
+                synchronized (this) {
+                    busy = !this.streams.isEmpty();
+                }
+                if (n == 0 && busy) {
+                    // quiet while responses are being sent
+                    continue;
+                }
+                throw e;
+            }
+            if (read == -1) {
+                if (n == 0) {
+                    return false;
+                }
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            n += read;
+        }
+        return true;
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int read = this.in.read(b, off, len);
+            if (read == -1) {
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            off += read;
+            len -= read;
+        }
+    }
+
+    /**
+     * @param flush
+     *            false if the frame may wait for the next one. Frames written
+     *            by the reading thread wait until it runs out of input.
+     */
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int off, int len, boolean flush) throws IOException {
+        this.writeLock.lock();
+        try {
+            byte[] h = this.writeHeader;
+            h[0] = (byte) (len >>> 16);
+            h[1] = (byte) (len >>> 8);
+            h[2] = (byte) len;
+            h[3] = (byte) type;
+            h[4] = (byte) flags;
+            putInt(h, 5, streamId);
+            this.out.write(h, 0, h.length);
+            if (len > 0) {
+                this.out.write(payload, off, len);
+            }
+            if (flush) {
+                this.out.flush();
+            }
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        byte[] payload = new byte[4 * 6];
+        putSetting(payload, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+        putSetting(payload, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+        putSetting(payload, 12, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        putSetting(payload, 18, SETTINGS_HEADER_TABLE_SIZE, 4096);
+        writeFrame(SETTINGS, 0, 0, payload, 0, payload.length, false);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, payload.length, true);
+    }
+
+    private void writeReset(int streamId, int code) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, code);
+        writeFrame(RST_STREAM, 0, streamId, payload, 0, payload.length, true);
+    }
+
+    private void writeGoAway(int code) {
+        byte[] payload = new byte[8];
+        putInt(payload, 0, this.lastStreamId);
+        putInt(payload, 4, code);
+        try {
+            writeFrame(GOAWAY, 0, 0, payload, 0, payload.length, true);
+        } catch (IOException e) {
+            Http2Connection.LOG.log(Level.FINE, "Could not send GOAWAY", e);
+        }
+    }
+
+    private static void putSetting(byte[] b, int off, int id, int value) {
+        b[off] = (byte) (id >>> 8);
+        b[off + 1] = (byte) id;
+        putInt(b, off + 2, value);
+    }
+
+    private static void putInt(byte[] b, int off, int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | b[off + 3] & 0xff;
+    }
+
+    /**
+     * Decodes base64url without padding, as used by the HTTP2-Settings
+     * header.
+     * 
+     * @return the decoded bytes or null if the text is not base64url.
+     */
+    private static byte[] decodeBase64Url(String text) {
+        while (text.endsWith("=")) {
+            text = text.substring(0, text.length() - 1);
+        }
+        if (text.length() % 4 == 1) {
+            return null;
+        }
+        byte[] decoded = new byte[text.length() * 3 / 4];
+        int bits = 0;
+        int buffer = 0;
+        int n = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int value;
+            if (c >= 'A' && c <= 'Z') {
+                value = c - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                value = c - 'a' + 26;
+            } else if (c >= '0' && c <= '9') {
+                value = c - '0' + 52;
+            } else if (c == '-' || c == '+') {
+                value = 62;
+            } else if (c == '_' || c == '/') {
+                value = 63;
+            } else {
+                return null;
+            }
+            buffer = buffer << 6 | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                decoded[n++] = (byte) (buffer >>> bits);
+            }
+        }
+        return decoded;
+    }
+}
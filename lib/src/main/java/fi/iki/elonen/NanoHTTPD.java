@@ -40,31 +40,45 @@ import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.PushbackInputStream;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.security.KeyStore;
 import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
@@ -73,8 +87,27 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.StringTokenizer;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -84,8 +117,11 @@ import java.util.zip.GZIPOutputStream;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManagerFactory;
 
 import fi.iki.elonen.NanoHTTPD.Response.IStatus;
@@ -105,8 +141,9 @@ import fi.iki.elonen.NanoHTTPD.Response.Status;
  * <b>Features + limitations: </b>
  * <ul>
  * <p/>
- * <li>Only one Java file</li>
- * <li>Java 5 compatible</li>
+ * <li>A handful of Java files in one package, no dependencies</li>
+ * <li>Java 7 compatible, Unix domain sockets need Java 16 and virtual threads
+ * Java 21 at run time</li>
  * <li>Released as open source, Modified BSD licence</li>
  * <li>No fixed config files, logging, authorization etc. (Implement yourself if
  * you need them.)</li>
@@ -117,7 +154,8 @@ import fi.iki.elonen.NanoHTTPD.Response.Status;
  * <li>Supports partial content (streaming)</li>
  * <li>Supports ETags</li>
  * <li>Never caches anything</li>
- * <li>Doesn't limit bandwidth, request time or simultaneous connections</li>
+ * <li>Limits bandwidth, request time and simultaneous connections only when
+ * configured to</li>
  * <li>Default code serves files and shows all HTTP parameters and headers</li>
  * <li>File server supports directory listing, index.html and index.htm</li>
  * <li>File server supports partial content (streaming)</li>
@@ -165,23 +203,175 @@ public abstract class NanoHTTPD {
 
         private final Socket acceptSocket;
 
+        /**
+         * Deadline of the connection, null if no timeouts apply.
+         */
+        private final TimerWheel.Deadline deadline;
+
+        private final BandwidthShaper.Throttle responseThrottle;
+
+        private final BandwidthShaper.Throttle requestThrottle;
+
+        /**
+         * Set while a request is being served. Guarded by this.
+         */
+        private boolean busy;
+
+        /**
+         * Set once a drain has closed the connection. Guarded by this.
+         */
+        private boolean closing;
+
+        /**
+         * HTTP/2 connection served over this one, or null. Guarded by this.
+         */
+        private Http2Connection http2;
+
+        /**
+         * Drain generation the request being served started in. Guarded by
+         * this.
+         */
+        private int generation;
+
         private ClientHandler(InputStream inputStream, Socket acceptSocket) {
             this.inputStream = inputStream;
             this.acceptSocket = acceptSocket;
+            TimerWheel timerWheel = NanoHTTPD.this.timerWheel;
+            this.deadline = timerWheel != null ? timerWheel.newDeadline(acceptSocket) : null;
+            this.responseThrottle = NanoHTTPD.this.responseShaper.newThrottle(acceptSocket.getInetAddress());
+            this.requestThrottle = NanoHTTPD.this.requestShaper.newThrottle(acceptSocket.getInetAddress());
         }
 
         public void close() {
+            if (this.deadline != null) {
+                this.deadline.disarm();
+            }
             safeClose(this.inputStream);
             safeClose(this.acceptSocket);
         }
 
+        /**
+         * Answers the client with the given status and closes the connection
+         * without reading the request. Used by runners that shed load, on the
+         * thread that accepted the connection, so the answer is only a single
+         * non-blocking write: a connection that cannot take it at once, or
+         * that would need a TLS handshake first, is just closed.
+         */
+        public void reject(Response.IStatus status, String message) {
+            try {
+                SocketChannel channel = this.acceptSocket.getChannel();
+                if (channel != null && !isSecure()) {
+                    Response response = newFixedLengthResponse(status, NanoHTTPD.MIME_PLAINTEXT, message);
+                    response.addHeader("Retry-After", "1");
+                    response.setKeepAlive(false);
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    response.send(bytes);
+                    channel.configureBlocking(false);
+                    channel.write(ByteBuffer.wrap(bytes.toByteArray()));
+                    this.acceptSocket.shutdownOutput();
+                }
+            } catch (IOException e) {
+                NanoHTTPD.LOG.log(Level.FINE, "Could not send rejection to the client", e);
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * @return whether the connection is wrapped in TLS.
+         */
+        boolean isSecure() {
+            return this.acceptSocket instanceof SSLSocket;
+        }
+
+        /**
+         * @return the stream responses to the client are written to.
+         */
+        OutputStream getOutputStream() throws IOException {
+            return this.acceptSocket.getOutputStream();
+        }
+
+        /**
+         * @return a session for the connection, with the client address if
+         *         the socket has one.
+         */
+        HTTPSession newSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
+            InetAddress address = this.acceptSocket.getInetAddress();
+            return address != null ? new HTTPSession(tempFileManager, inputStream, outputStream, address) : new HTTPSession(tempFileManager, inputStream, outputStream);
+        }
+
+        /**
+         * Marks the start of a request.
+         * 
+         * @return false if a drain has closed the connection already.
+         */
+        synchronized boolean beginRequest() {
+            if (this.closing) {
+                return false;
+            }
+            this.busy = true;
+            this.generation = NanoHTTPD.this.requestStarted();
+            return true;
+        }
+
+        synchronized void endRequest() {
+            if (this.busy) {
+                this.busy = false;
+                NanoHTTPD.this.requestFinished(this.generation);
+            }
+        }
+
+        /**
+         * @return true if the request being served started after a drain
+         *         began, so it is refused.
+         */
+        synchronized boolean isStartedWhileDraining() {
+            return this.busy && NanoHTTPD.this.isStartedWhileDraining(this.generation);
+        }
+
+        /**
+         * Hands the connection over to HTTP/2, whose streams are counted as
+         * requests of their own.
+         */
+        synchronized void setHttp2(Http2Connection http2) {
+            endRequest();
+            this.http2 = http2;
+        }
+
+        /**
+         * Closes the connection if it is between requests and asks an
+         * HTTP/2 connection to stop opening streams. A request in flight is
+         * left to finish; its response closes the connection.
+         */
+        void drain() {
+            Http2Connection http2;
+            synchronized (this) {
+                if (this.busy) {
+                    return;
+                }
+                http2 = this.http2;
+                this.closing = http2 == null;
+            }
+            if (http2 != null) {
+                http2.drain();
+            } else {
+                close();
+            }
+        }
+
         @Override
         public void run() {
             OutputStream outputStream = null;
+            HTTPSession session = null;
             try {
-                outputStream = this.acceptSocket.getOutputStream();
+                outputStream = getOutputStream();
                 TempFileManager tempFileManager = NanoHTTPD.this.tempFileManagerFactory.create();
-                HTTPSession session = new HTTPSession(tempFileManager, this.inputStream, outputStream, this.acceptSocket.getInetAddress());
+                NanoHTTPD.this.connections.add(this);
+                session = newSession(tempFileManager, this.inputStream, outputStream);
+                session.setSocket(this.acceptSocket);
+                session.setClientHandler(this);
+                // the first header is due counting from the start of service
+                arm(this.deadline, ConnectionPhase.HEADER, NanoHTTPD.this.headerTimeout);
                 while (!this.acceptSocket.isClosed()) {
                     session.execute();
                 }
@@ -197,6 +387,13 @@ public abstract class NanoHTTPD {
                     NanoHTTPD.LOG.log(Level.FINE, "Communication with the client broken", e);
                 }
             } finally {
+                NanoHTTPD.this.connections.remove(this);
+                if (this.deadline != null) {
+                    this.deadline.disarm();
+                }
+                if (session != null) {
+                    safeClose(session.inputStream);
+                }
                 safeClose(outputStream);
                 safeClose(this.inputStream);
                 safeClose(this.acceptSocket);
@@ -205,6 +402,288 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Client handler used by the {@link SelectorServerRunnable}. Instead of
+     * owning a thread for the whole lifetime of the connection, it is only
+     * run once a complete request header has arrived, serves the requests
+     * that are ready and then parks the connection back in the selector.
+     */
+    private class SelectorClientHandler extends ClientHandler implements RequestScheduler.Deferred {
+
+        private final SocketChannel channel;
+
+        private final InputStream socketInputStream;
+
+        private final SelectorServerRunnable selectorRunnable;
+
+        /**
+         * Bytes read by the selector thread that have not been handed to a
+         * session yet, in a pooled buffer of {@link HTTPSession#BUFSIZE}
+         * bytes that later reads append to. Null while nothing is pending.
+         */
+        private byte[] pending;
+
+        private int pendingLength;
+
+        /**
+         * Requests served on this connection, carried from one session to the
+         * next.
+         */
+        private int requestCount;
+
+        /**
+         * TLS of a secure connection, null for plain HTTP.
+         */
+        private final TlsConnection tls;
+
+        /**
+         * Operation the selector waits for while the connection is parked.
+         */
+        private int interest = SelectionKey.OP_READ;
+
+        /**
+         * Class of the pending request, once its header is complete.
+         */
+        private RequestClass requestClass;
+
+        /**
+         * Class the pending request was admitted in, until a session takes
+         * it over.
+         */
+        private final AtomicReference<RequestClass> admitted = new AtomicReference<RequestClass>();
+
+        private SelectorClientHandler(SocketChannel channel, Socket socket, InputStream inputStream, TlsConnection tls, SelectorServerRunnable selectorRunnable) {
+            super(inputStream, socket);
+            this.channel = channel;
+            this.socketInputStream = tls != null ? tls.getInputStream() : inputStream;
+            this.tls = tls;
+            this.selectorRunnable = selectorRunnable;
+            // the handshake and the first header are due counting from the
+            // accept
+            arm(super.deadline, ConnectionPhase.HEADER, NanoHTTPD.this.headerTimeout);
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            if (this.tls != null) {
+                this.tls.release();
+            }
+            releasePending();
+            RequestClass admitted = this.admitted.getAndSet(null);
+            if (admitted != null) {
+                NanoHTTPD.this.requestScheduler.release(admitted);
+            }
+        }
+
+        @Override
+        public void dispatch() {
+            this.admitted.set(this.requestClass);
+            NanoHTTPD.this.asyncRunner.exec(this);
+        }
+
+        @Override
+        public void cancel() {
+            close();
+        }
+
+        /**
+         * Called when the pending request is queued for its turn.
+         */
+        private void waitForTurn() {
+            if (super.deadline != null) {
+                // the time spent waiting for a turn is not the client's
+                super.deadline.disarm();
+            }
+        }
+
+        /**
+         * Classifies a request by its request line.
+         */
+        private RequestClass classify(byte[] buf, int from, int to) {
+            int methodEnd = from;
+            while (methodEnd < to && buf[methodEnd] != ' ') {
+                methodEnd++;
+            }
+            Method method = Method.lookup(buf, from, methodEnd - from);
+            String uri = null;
+            if (method != null) {
+                int uriEnd = methodEnd + 1;
+                while (uriEnd < to && buf[uriEnd] != ' ' && buf[uriEnd] != '?' && buf[uriEnd] != '\r' && buf[uriEnd] != '\n') {
+                    uriEnd++;
+                }
+                if (uriEnd > methodEnd + 1) {
+                    uri = decodePercent(new String(buf, methodEnd + 1, uriEnd - methodEnd - 1));
+                }
+            }
+            return classifyRequest(method, uri);
+        }
+
+        /**
+         * Classifies the pending request by its request line.
+         */
+        private RequestClass classifyPending() {
+            return classify(this.pending, 0, this.pendingLength);
+        }
+
+        /**
+         * Admits the next pipelined request on the worker that served the
+         * previous one if its class has room. Otherwise the worker is given
+         * back: the connection waits for its turn, or for the rest of the
+         * header in the selector, like a first request does.
+         * 
+         * @return true if the worker goes on with the next request.
+         */
+        private boolean admitNext(HTTPSession session) throws IOException {
+            SessionInputStream in = session.inputStream;
+            int length = in.limit - in.pos;
+            boolean complete = length >= HTTPSession.BUFSIZE || length > 0 && findHeaderEnd(in.buf, in.pos, in.limit) > 0;
+            if (complete) {
+                this.requestClass = classify(in.buf, in.pos, in.limit);
+                if (NanoHTTPD.this.requestScheduler.tryAdmit(this.requestClass)) {
+                    session.preAdmitted = this.requestClass;
+                    return true;
+                }
+            }
+            session.outputStream.flush();
+            if (length > 0) {
+                synchronized (this) {
+                    this.pending = BufferPool.getDefault().acquire(Math.max(HTTPSession.BUFSIZE, length));
+                    this.pendingLength = length;
+                    System.arraycopy(in.buf, in.pos, this.pending, 0, length);
+                }
+                in.pos = in.limit;
+            }
+            in.release();
+            this.requestCount = session.requestCount;
+            if (!complete) {
+                // the rest of the header is due like the rest of any other
+                arm(super.deadline, length > 0 ? ConnectionPhase.HEADER : ConnectionPhase.KEEP_ALIVE,
+                        length > 0 ? NanoHTTPD.this.headerTimeout : NanoHTTPD.this.keepAliveTimeout);
+                if (!this.selectorRunnable.park(this)) {
+                    throw new SocketException("NanoHttpd Shutdown");
+                }
+            } else if (NanoHTTPD.this.requestScheduler.admitOrDefer(this.requestClass, this)) {
+                dispatch();
+            } else {
+                waitForTurn();
+            }
+            return false;
+        }
+
+        private synchronized void releasePending() {
+            if (this.pending != null) {
+                BufferPool.getDefault().release(this.pending);
+                this.pending = null;
+                this.pendingLength = 0;
+            }
+        }
+
+        @Override
+        OutputStream getOutputStream() throws IOException {
+            return this.tls != null ? this.tls.getOutputStream() : super.acceptSocket.getOutputStream();
+        }
+
+        @Override
+        boolean isSecure() {
+            return this.tls != null;
+        }
+
+        /**
+         * Reads whatever is available from the channel into the pending
+         * buffer. Called on the selector thread only.
+         * 
+         * @return true once a complete request header (or as much of it as
+         *         will be accepted) is pending.
+         */
+        private boolean readHeader(ByteBuffer readBuffer) throws IOException {
+            int pendingLength = this.pendingLength;
+            readBuffer.clear();
+            readBuffer.limit(HTTPSession.BUFSIZE - pendingLength);
+            int read = this.tls != null ? this.tls.read(readBuffer) : this.channel.read(readBuffer);
+            if (read < 0) {
+                throw new ClosedChannelException();
+            }
+            if (read == 0) {
+                return false;
+            }
+            if (pendingLength == 0 && this.requestCount > 0) {
+                arm(super.deadline, ConnectionPhase.HEADER, NanoHTTPD.this.headerTimeout);
+            }
+            readBuffer.flip();
+            return appendPending(readBuffer);
+        }
+
+        /**
+         * Appends the bytes read to the pending buffer. Synchronized with
+         * {@link #releasePending()}, as the connection may be closed from
+         * another thread while the selector reads.
+         */
+        private synchronized boolean appendPending(ByteBuffer readBuffer) {
+            int pendingLength = this.pendingLength;
+            if (this.pending == null) {
+                this.pending = BufferPool.getDefault().acquire(HTTPSession.BUFSIZE);
+            }
+            this.pendingLength = pendingLength + readBuffer.remaining();
+            readBuffer.get(this.pending, pendingLength, readBuffer.remaining());
+            return findHeaderEnd(this.pending, Math.max(0, pendingLength - 2), this.pendingLength) > 0 || this.pendingLength >= HTTPSession.BUFSIZE;
+        }
+
+        @Override
+        public void run() {
+            OutputStream outputStream = null;
+            HTTPSession session = null;
+            boolean parked = false;
+            try {
+                NanoHTTPD.this.connections.add(this);
+                outputStream = getOutputStream();
+                TempFileManager tempFileManager = NanoHTTPD.this.tempFileManagerFactory.create();
+                session = newSession(tempFileManager, this.socketInputStream, outputStream);
+                session.setSocket(super.acceptSocket, this.tls);
+                session.setClientHandler(this);
+                session.requestCount = this.requestCount;
+                session.preAdmitted = this.admitted.getAndSet(null);
+                // Serve the bytes gathered by the selector first.
+                session.inputStream.prefill(this.pending, this.pendingLength);
+                releasePending();
+                boolean pipelined;
+                do {
+                    session.execute();
+                    pipelined = session.inputStream.available() > 0;
+                } while (pipelined && admitNext(session));
+                if (pipelined) {
+                    // handed back for the next request
+                    parked = true;
+                } else {
+                    session.inputStream.release();
+                    if (this.tls != null) {
+                        this.tls.releaseIdle();
+                    }
+                    this.requestCount = session.requestCount;
+                    arm(super.deadline, ConnectionPhase.KEEP_ALIVE, NanoHTTPD.this.keepAliveTimeout);
+                    parked = this.selectorRunnable.park(this);
+                }
+            } catch (Exception e) {
+                if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage())) && !(e instanceof SocketTimeoutException)) {
+                    NanoHTTPD.LOG.log(Level.FINE, "Communication with the client broken", e);
+                }
+            } finally {
+                NanoHTTPD.this.connections.remove(this);
+                if (!parked) {
+                    if (session != null) {
+                        safeClose(session.inputStream);
+                    }
+                    if (this.tls != null) {
+                        this.tls.closeOutbound();
+                    }
+                    safeClose(outputStream);
+                    close();
+                }
+                NanoHTTPD.this.asyncRunner.closed(this);
+            }
+        }
+    }
+
     public static class Cookie {
 
         public static String getHTTPTime(int days) {
@@ -372,78 +851,355 @@ public abstract class NanoHTTPD {
     }
 
     /**
-     * Default strategy for creating and cleaning up temporary files.
+     * Threading strategy backed by a bounded pool of worker threads.
      * <p/>
      * <p>
-     * By default, files are created by <code>File.createTempFile()</code> in
-     * the directory specified.
+     * Connections are run on at most <code>maxThreads</code> daemon threads.
+     * When all of them are busy, up to <code>queueCapacity</code> further
+     * connections wait for a free worker; anything beyond that is answered
+     * with <i>503 Service Unavailable</i> and closed. Idle workers are retired
+     * after <code>idleTimeout</code> milliseconds, so a burst of reconnecting
+     * clients no longer leaves thousands of threads behind.
      * </p>
      */
-    public static class DefaultTempFile implements TempFile {
+    public static class BoundedAsyncRunner implements AsyncRunner {
 
-        private final File file;
+        public static final int DEFAULT_MAX_THREADS = 256;
 
-        private final OutputStream fstream;
+        public static final int DEFAULT_QUEUE_CAPACITY = 1024;
 
-        public DefaultTempFile(String tempdir) throws IOException {
-            this.file = File.createTempFile("NanoHTTPD-", "", new File(tempdir));
-            this.fstream = new FileOutputStream(this.file);
+        public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+        private final AtomicLong requestCount = new AtomicLong();
+
+        private final AtomicLong rejectedCount = new AtomicLong();
+
+        private final Set<ClientHandler> running = Collections.newSetFromMap(new ConcurrentHashMap<ClientHandler, Boolean>());
+
+        /**
+         * Replaced when the runner is used again after a shutdown.
+         */
+        private volatile ThreadPoolExecutor executor;
+
+        private final int maxThreads;
+
+        private final int queueCapacity;
+
+        private final long idleTimeout;
+
+        public BoundedAsyncRunner() {
+            this(DEFAULT_MAX_THREADS, DEFAULT_QUEUE_CAPACITY);
         }
 
-        @Override
-        public void delete() throws Exception {
-            safeClose(this.fstream);
-            if (!this.file.delete()) {
-                throw new Exception("could not delete temporary file");
-            }
+        public BoundedAsyncRunner(int maxThreads, int queueCapacity) {
+            this(maxThreads, queueCapacity, DEFAULT_IDLE_TIMEOUT);
         }
 
-        @Override
-        public String getName() {
-            return this.file.getAbsolutePath();
+        /**
+         * @param maxThreads
+         *            maximum number of connections served concurrently.
+         * @param queueCapacity
+         *            maximum number of accepted connections waiting for a
+         *            worker.
+         * @param idleTimeout
+         *            time in milliseconds after which an idle worker thread
+         *            is retired.
+         */
+        public BoundedAsyncRunner(int maxThreads, int queueCapacity, long idleTimeout) {
+            if (maxThreads <= 0 || queueCapacity <= 0) {
+                throw new IllegalArgumentException("maxThreads and queueCapacity must be positive");
+            }
+            this.maxThreads = maxThreads;
+            this.queueCapacity = queueCapacity;
+            this.idleTimeout = idleTimeout;
+            this.executor = newExecutor();
         }
 
-        @Override
-        public OutputStream open() throws Exception {
-            return this.fstream;
+        private ThreadPoolExecutor newExecutor() {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(this.maxThreads, this.maxThreads, this.idleTimeout, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(this.queueCapacity), new ThreadFactory() {
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r);
+                            t.setDaemon(true);
+                            t.setName("NanoHttpd Request Processor (#" + requestCount.incrementAndGet() + ")");
+                            return t;
+                        }
+                    }, new RejectedExecutionHandler() {
+
+                        @Override
+                        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                            ClientHandler clientHandler = (ClientHandler) r;
+                            running.remove(clientHandler);
+                            rejectedCount.incrementAndGet();
+                            clientHandler.reject(Response.Status.SERVICE_UNAVAILABLE, "SERVICE UNAVAILABLE: Server is too busy, try again later.");
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
         }
-    }
 
-    /**
-     * Default strategy for creating and cleaning up temporary files.
-     * <p/>
-     * <p>
-     * This class stores its files in the standard location (that is, wherever
-     * <code>java.io.tmpdir</code> points to). Files are added to an internal
-     * list, and deleted when no longer needed (that is, when
-     * <code>clear()</code> is invoked at the end of processing a request).
-     * </p>
-     */
-    public static class DefaultTempFileManager implements TempFileManager {
+        /**
+         * @return a snapshot of the currently running and queued clients.
+         */
+        public List<ClientHandler> getRunning() {
+            return new ArrayList<ClientHandler>(this.running);
+        }
 
-        private final String tmpdir;
+        /**
+         * @return the number of connections waiting for a worker thread.
+         */
+        public int getQueued() {
+            return this.executor.getQueue().size();
+        }
 
-        private final List<TempFile> tempFiles;
+        /**
+         * @return the number of connections answered with 503 and HTTP/2
+         *         streams refused for lack of a worker so far.
+         */
+        public long getRejectedCount() {
+            return this.rejectedCount.get();
+        }
 
-        public DefaultTempFileManager() {
-            this.tmpdir = System.getProperty("java.io.tmpdir");
-            this.tempFiles = new ArrayList<TempFile>();
+        /**
+         * @return the maximum number of connections served concurrently.
+         */
+        public int getMaxThreads() {
+            return this.maxThreads;
         }
 
         @Override
-        public void clear() {
-            for (TempFile file : this.tempFiles) {
-                try {
-                    file.delete();
-                } catch (Exception ignored) {
-                    NanoHTTPD.LOG.log(Level.WARNING, "could not delete file ", ignored);
-                }
+        public void closeAll() {
+            for (ClientHandler clientHandler : this.running) {
+                clientHandler.close();
             }
-            this.tempFiles.clear();
         }
 
         @Override
-        public TempFile createTempFile(String filename_hint) throws Exception {
+        public void closed(ClientHandler clientHandler) {
+            this.running.remove(clientHandler);
+        }
+
+        @Override
+        public void exec(ClientHandler clientHandler) {
+            this.running.add(clientHandler);
+            ThreadPoolExecutor executor = this.executor;
+            if (executor.isShutdown()) {
+                executor = restart(executor);
+            }
+            executor.execute(clientHandler);
+        }
+
+        /**
+         * @return a pool for HTTP/2 streams with the same bounds as the one
+         *         for connections. A stream beyond them is refused and counts
+         *         as rejected.
+         */
+        ExecutorService newStreamExecutor() {
+            ThreadPoolExecutor streamExecutor = new ThreadPoolExecutor(this.maxThreads, this.maxThreads, this.idleTimeout, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(this.queueCapacity), new ThreadFactory() {
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r);
+                            t.setDaemon(true);
+                            t.setName("NanoHttpd HTTP/2 Stream (#" + requestCount.incrementAndGet() + ")");
+                            return t;
+                        }
+                    }, new RejectedExecutionHandler() {
+
+                        @Override
+                        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                            rejectedCount.incrementAndGet();
+                            throw new RejectedExecutionException("Too many HTTP/2 streams");
+                        }
+                    });
+            streamExecutor.allowCoreThreadTimeOut(true);
+            return streamExecutor;
+        }
+
+        /**
+         * Closes all connections and stops the worker threads.
+         * {@link NanoHTTPD#stop()} calls this once the acceptors have
+         * stopped. New workers are started if the runner is used again, for
+         * a server that is started once more.
+         */
+        public void shutdown() {
+            this.executor.shutdownNow();
+            closeAll();
+        }
+
+        private synchronized ThreadPoolExecutor restart(ThreadPoolExecutor stopped) {
+            if (this.executor == stopped) {
+                this.executor = newExecutor();
+            }
+            return this.executor;
+        }
+    }
+
+    /**
+     * Threading strategy that runs every connection on its own virtual
+     * thread.
+     * <p/>
+     * <p>
+     * A connection idling between keep-alive requests then only costs a parked
+     * continuation instead of a platform thread, which lets a single JVM hold
+     * tens of thousands of mostly idle mounts. Virtual threads need Java 21 or
+     * newer; they are looked up reflectively so this class still compiles
+     * for the Java 7 level used on Android. Check {@link #isSupported()}
+     * before installing it.
+     * </p>
+     * <p>
+     * The request path avoids blocking I/O while holding a monitor, which
+     * would pin the carrier thread: gzip output is compressed into memory and
+     * written to the socket outside of <code>GZIPOutputStream</code>'s locks.
+     * Logging through <code>java.util.logging</code> still writes under a
+     * lock, so run busy servers quietly.
+     * </p>
+     */
+    public static class VirtualThreadAsyncRunner implements AsyncRunner {
+
+        private static final ThreadFactory VIRTUAL_THREAD_FACTORY = createVirtualThreadFactory();
+
+        private final Set<ClientHandler> running = Collections.newSetFromMap(new ConcurrentHashMap<ClientHandler, Boolean>());
+
+        /**
+         * @throws IllegalStateException
+         *             if the running JVM has no virtual threads; see
+         *             {@link #isSupported()}.
+         */
+        public VirtualThreadAsyncRunner() {
+            if (VIRTUAL_THREAD_FACTORY == null) {
+                throw new IllegalStateException("Virtual threads require Java 21 or newer");
+            }
+        }
+
+        /**
+         * @return true if the running JVM supports virtual threads.
+         */
+        public static boolean isSupported() {
+            return VIRTUAL_THREAD_FACTORY != null;
+        }
+
+        private static ThreadFactory createVirtualThreadFactory() {
+            try {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "NanoHttpd Request Processor #", 1L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return a snapshot of the currently running clients.
+         */
+        public List<ClientHandler> getRunning() {
+            return new ArrayList<ClientHandler>(this.running);
+        }
+
+        @Override
+        public void closeAll() {
+            for (ClientHandler clientHandler : this.running) {
+                clientHandler.close();
+            }
+        }
+
+        @Override
+        public void closed(ClientHandler clientHandler) {
+            this.running.remove(clientHandler);
+        }
+
+        @Override
+        public void exec(ClientHandler clientHandler) {
+            this.running.add(clientHandler);
+            VIRTUAL_THREAD_FACTORY.newThread(clientHandler).start();
+        }
+
+        /**
+         * @return an executor that runs every HTTP/2 stream on a virtual
+         *         thread of its own.
+         */
+        ExecutorService newStreamExecutor() {
+            return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0L, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), VIRTUAL_THREAD_FACTORY);
+        }
+    }
+
+    /**
+     * Default strategy for creating and cleaning up temporary files.
+     * <p/>
+     * <p>
+     * By default, files are created by <code>File.createTempFile()</code> in
+     * the directory specified.
+     * </p>
+     */
+    public static class DefaultTempFile implements TempFile {
+
+        private final File file;
+
+        private final OutputStream fstream;
+
+        public DefaultTempFile(String tempdir) throws IOException {
+            this.file = File.createTempFile("NanoHTTPD-", "", new File(tempdir));
+            this.fstream = new FileOutputStream(this.file);
+        }
+
+        @Override
+        public void delete() throws Exception {
+            safeClose(this.fstream);
+            if (!this.file.delete()) {
+                throw new Exception("could not delete temporary file");
+            }
+        }
+
+        @Override
+        public String getName() {
+            return this.file.getAbsolutePath();
+        }
+
+        @Override
+        public OutputStream open() throws Exception {
+            return this.fstream;
+        }
+    }
+
+    /**
+     * Default strategy for creating and cleaning up temporary files.
+     * <p/>
+     * <p>
+     * This class stores its files in the standard location (that is, wherever
+     * <code>java.io.tmpdir</code> points to). Files are added to an internal
+     * list, and deleted when no longer needed (that is, when
+     * <code>clear()</code> is invoked at the end of processing a request).
+     * </p>
+     */
+    public static class DefaultTempFileManager implements TempFileManager {
+
+        private final String tmpdir;
+
+        private final List<TempFile> tempFiles;
+
+        public DefaultTempFileManager() {
+            this.tmpdir = System.getProperty("java.io.tmpdir");
+            this.tempFiles = new ArrayList<TempFile>();
+        }
+
+        @Override
+        public void clear() {
+            for (TempFile file : this.tempFiles) {
+                try {
+                    file.delete();
+                } catch (Exception ignored) {
+                    NanoHTTPD.LOG.log(Level.WARNING, "could not delete file ", ignored);
+                }
+            }
+            this.tempFiles.clear();
+        }
+
+        @Override
+        public TempFile createTempFile(String filename_hint) throws Exception {
             DefaultTempFile tempFile = new DefaultTempFile(this.tmpdir);
             this.tempFiles.add(tempFile);
             return tempFile;
@@ -473,1003 +1229,4042 @@ public abstract class NanoHTTPD {
 
     private static final Pattern CONTENT_DISPOSITION_ATTRIBUTE_PATTERN = Pattern.compile(CONTENT_DISPOSITION_ATTRIBUTE_REGEX);
 
-    protected class HTTPSession implements IHTTPSession {
-
-        private static final int REQUEST_BUFFER_LEN = 512;
+    /**
+     * Shared pool of I/O buffers.
+     * <p/>
+     * <p>
+     * Sessions, responses and file copies borrow their buffers from here
+     * instead of allocating fresh arrays for every request. Buffers come in a
+     * few fixed size classes; requests for more than the largest class are
+     * served with plain, unpooled allocations. Each platform thread keeps one
+     * heap buffer per size class to itself, everything else goes through
+     * lock-free shared free lists. Direct buffers are carved out of larger
+     * slabs so the native memory is allocated in few, big chunks.
+     * </p>
+     * <p>
+     * Buffers must be released exactly once and must not be used afterwards.
+     * Releasing a buffer that did not come from the pool is harmless.
+     * </p>
+     */
+    public static final class BufferPool {
 
-        private static final int MEMORY_STORE_LIMIT = 1024;
+        private static final int[] SIZE_CLASSES = {
+            1024,
+            8 * 1024,
+            16 * 1024,
+            32 * 1024,
+            64 * 1024
+        };
 
-        public static final int BUFSIZE = 8192;
+        private static final int SLAB_SIZE = 256 * 1024;
 
-        private final TempFileManager tempFileManager;
+        private static final BufferPool DEFAULT = new BufferPool(16 * 1024 * 1024, 16 * 1024 * 1024);
 
-        private final OutputStream outputStream;
+        private static final java.lang.reflect.Method IS_VIRTUAL = lookupIsVirtual();
 
-        private final PushbackInputStream inputStream;
+        /**
+         * @return the pool shared by all servers in this JVM.
+         */
+        public static BufferPool getDefault() {
+            return DEFAULT;
+        }
 
-        private int splitbyte;
+        private static java.lang.reflect.Method lookupIsVirtual() {
+            try {
+                return Thread.class.getMethod("isVirtual");
+            } catch (Exception e) {
+                return null;
+            }
+        }
 
-        private int rlen;
+        private static int sizeClass(int size) {
+            for (int i = 0; i < SIZE_CLASSES.length; i++) {
+                if (size <= SIZE_CLASSES[i]) {
+                    return i;
+                }
+            }
+            return -1;
+        }
 
-        private String uri;
+        private static int exactSizeClass(int size) {
+            int sizeClass = sizeClass(size);
+            return sizeClass >= 0 && SIZE_CLASSES[sizeClass] == size ? sizeClass : -1;
+        }
 
-        private Method method;
+        private final long maxPooledBytes;
 
-        private Map<String, String> parms;
+        private final long maxDirectBytes;
 
-        private Map<String, String> headers;
+        private final List<Queue<byte[]>> heapBuffers = new ArrayList<Queue<byte[]>>();
 
-        private CookieHandler cookies;
+        private final List<Queue<ByteBuffer>> directBuffers = new ArrayList<Queue<ByteBuffer>>();
 
-        private String queryParameterString;
+        private final AtomicLong pooledBytes = new AtomicLong();
 
-        private String remoteIp;
+        private final AtomicLong directBytes = new AtomicLong();
 
-        private String protocolVersion;
+        private final AtomicLong hits = new AtomicLong();
 
-        public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
-            this.tempFileManager = tempFileManager;
-            this.inputStream = new PushbackInputStream(inputStream, HTTPSession.BUFSIZE);
-            this.outputStream = outputStream;
-        }
+        private final AtomicLong misses = new AtomicLong();
 
-        public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, InetAddress inetAddress) {
-            this.tempFileManager = tempFileManager;
-            this.inputStream = new PushbackInputStream(inputStream, HTTPSession.BUFSIZE);
-            this.outputStream = outputStream;
-            this.remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
-            this.headers = new HashMap<String, String>();
-        }
+        private final AtomicLong outstanding = new AtomicLong();
 
         /**
-         * Decodes the sent headers and loads the data into Key/value pairs
+         * Per-thread cache holding at most one heap buffer per size class.
+         * Virtual threads get none: there may be one per connection, which
+         * would keep every idle connection's buffers alive.
          */
-        private void decodeHeader(BufferedReader in, Map<String, String> pre, Map<String, String> parms, Map<String, String> headers) throws ResponseException {
-            try {
-                // Read the request line
-                String inLine = in.readLine();
-                if (inLine == null) {
-                    return;
-                }
+        private final ThreadLocal<byte[][]> threadCache = new ThreadLocal<byte[][]>() {
 
-                StringTokenizer st = new StringTokenizer(inLine);
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+            @Override
+            protected byte[][] initialValue() {
+                try {
+                    if (IS_VIRTUAL != null && Boolean.TRUE.equals(IS_VIRTUAL.invoke(Thread.currentThread()))) {
+                        return null;
+                    }
+                } catch (Exception ignored) {
+                    // treat as a platform thread
                 }
+                return new byte[SIZE_CLASSES.length][];
+            }
+        };
 
-                pre.put("method", st.nextToken());
+        /**
+         * @param maxPooledBytes
+         *            upper bound for the heap memory kept in the shared free
+         *            lists.
+         * @param maxDirectBytes
+         *            upper bound for the native memory allocated for pooled
+         *            direct buffers.
+         */
+        public BufferPool(long maxPooledBytes, long maxDirectBytes) {
+            this.maxPooledBytes = maxPooledBytes;
+            this.maxDirectBytes = maxDirectBytes;
+            for (int i = 0; i < SIZE_CLASSES.length; i++) {
+                this.heapBuffers.add(new ConcurrentLinkedQueue<byte[]>());
+                this.directBuffers.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            }
+        }
 
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+        /**
+         * Borrows a heap buffer of at least the given size. Its contents are
+         * undefined.
+         */
+        public byte[] acquire(int size) {
+            this.outstanding.incrementAndGet();
+            int sizeClass = sizeClass(size);
+            if (sizeClass < 0) {
+                this.misses.incrementAndGet();
+                return new byte[size];
+            }
+            byte[][] cache = this.threadCache.get();
+            byte[] buffer = null;
+            if (cache != null && cache[sizeClass] != null) {
+                buffer = cache[sizeClass];
+                cache[sizeClass] = null;
+            } else {
+                buffer = this.heapBuffers.get(sizeClass).poll();
+                if (buffer != null) {
+                    this.pooledBytes.addAndGet(-buffer.length);
                 }
+            }
+            if (buffer == null) {
+                this.misses.incrementAndGet();
+                return new byte[SIZE_CLASSES[sizeClass]];
+            }
+            this.hits.incrementAndGet();
+            return buffer;
+        }
 
-                String uri = st.nextToken();
-
-                // Decode parameters from the URI
-                int qmi = uri.indexOf('?');
-                if (qmi >= 0) {
-                    decodeParms(uri.substring(qmi + 1), parms);
-                    uri = decodePercent(uri.substring(0, qmi));
-                } else {
-                    uri = decodePercent(uri);
-                }
+        /**
+         * Borrows a direct buffer with at least the given capacity, cleared
+         * and with its limit set to its capacity.
+         */
+        public ByteBuffer acquireDirect(int size) {
+            this.outstanding.incrementAndGet();
+            int sizeClass = sizeClass(size);
+            if (sizeClass < 0) {
+                this.misses.incrementAndGet();
+                return ByteBuffer.allocateDirect(size);
+            }
+            ByteBuffer buffer = this.directBuffers.get(sizeClass).poll();
+            if (buffer != null) {
+                this.hits.incrementAndGet();
+                buffer.clear();
+                return buffer;
+            }
+            this.misses.incrementAndGet();
+            int bufferSize = SIZE_CLASSES[sizeClass];
+            if (this.directBytes.get() + SLAB_SIZE > this.maxDirectBytes) {
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+            this.directBytes.addAndGet(SLAB_SIZE);
+            ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            for (int offset = bufferSize; offset + bufferSize <= SLAB_SIZE; offset += bufferSize) {
+                slab.limit(offset + bufferSize).position(offset);
+                this.directBuffers.get(sizeClass).add(slab.slice());
+            }
+            slab.limit(bufferSize).position(0);
+            return slab.slice();
+        }
 
-                // If there's another token, its protocol version,
-                // followed by HTTP headers.
-                // NOTE: this now forces header names lower case since they are
-                // case insensitive and vary by client.
-                if (st.hasMoreTokens()) {
-                    protocolVersion = st.nextToken();
-                } else {
-                    protocolVersion = "HTTP/1.1";
-                    NanoHTTPD.LOG.log(Level.FINE, "no protocol version specified, strange. Assuming HTTP/1.1.");
-                }
-                String line = in.readLine();
-                while (line != null && line.trim().length() > 0) {
-                    int p = line.indexOf(':');
-                    if (p >= 0) {
-                        headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
-                    }
-                    line = in.readLine();
-                }
+        /**
+         * Returns a heap buffer obtained from {@link #acquire(int)}.
+         */
+        public void release(byte[] buffer) {
+            if (buffer == null) {
+                return;
+            }
+            this.outstanding.decrementAndGet();
+            int sizeClass = exactSizeClass(buffer.length);
+            if (sizeClass < 0) {
+                return;
+            }
+            byte[][] cache = this.threadCache.get();
+            if (cache != null && cache[sizeClass] == null) {
+                cache[sizeClass] = buffer;
+            } else if (this.pooledBytes.addAndGet(buffer.length) <= this.maxPooledBytes) {
+                this.heapBuffers.get(sizeClass).add(buffer);
+            } else {
+                this.pooledBytes.addAndGet(-buffer.length);
+            }
+        }
 
-                pre.put("uri", uri);
-            } catch (IOException ioe) {
-                throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
+        /**
+         * Returns a direct buffer obtained from {@link #acquireDirect(int)}.
+         */
+        public void release(ByteBuffer buffer) {
+            if (buffer == null) {
+                return;
+            }
+            this.outstanding.decrementAndGet();
+            int sizeClass = exactSizeClass(buffer.capacity());
+            if (buffer.isDirect() && sizeClass >= 0) {
+                this.directBuffers.get(sizeClass).add(buffer);
             }
         }
 
         /**
-         * Decodes the Multipart Body data and put it into Key/Value pairs.
+         * @return the number of buffers handed out from the pool.
          */
-        private void decodeMultipartFormData(String boundary, ByteBuffer fbuf, Map<String, String> parms, Map<String, String> files) throws ResponseException {
-            try {
-                int[] boundary_idxs = getBoundaryPositions(fbuf, boundary.getBytes());
-                if (boundary_idxs.length < 2) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but contains less than two boundary strings.");
-                }
+        public long getHits() {
+            return this.hits.get();
+        }
 
-                final int MAX_HEADER_SIZE = 1024;
-                byte[] part_header_buff = new byte[MAX_HEADER_SIZE];
-                for (int bi = 0; bi < boundary_idxs.length - 1; bi++) {
-                    fbuf.position(boundary_idxs[bi]);
-                    int len = (fbuf.remaining() < MAX_HEADER_SIZE) ? fbuf.remaining() : MAX_HEADER_SIZE;
-                    fbuf.get(part_header_buff, 0, len);
-                    ByteArrayInputStream bais = new ByteArrayInputStream(part_header_buff, 0, len);
-                    BufferedReader in = new BufferedReader(new InputStreamReader(bais, Charset.forName("UTF-8")));
+        /**
+         * @return the number of buffers that had to be allocated.
+         */
+        public long getMisses() {
+            return this.misses.get();
+        }
 
-                    // First line is boundary string
-                    String mpline = in.readLine();
-                    if (!mpline.contains(boundary)) {
-                        throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but chunk does not start with boundary.");
-                    }
+        /**
+         * @return the number of buffers currently borrowed.
+         */
+        public long getOutstanding() {
+            return this.outstanding.get();
+        }
 
-                    String part_name = null, file_name = null, content_type = null;
-                    // Parse the reset of the header lines
-                    mpline = in.readLine();
-                    while (mpline != null && mpline.trim().length() > 0) {
-                        Matcher matcher = CONTENT_DISPOSITION_PATTERN.matcher(mpline);
-                        if (matcher.matches()) {
-                            String attributeString = matcher.group(2);
-                            matcher = CONTENT_DISPOSITION_ATTRIBUTE_PATTERN.matcher(attributeString);
-                            while (matcher.find()) {
-                                String key = matcher.group(1);
-                                if (key.equalsIgnoreCase("name")) {
-                                    part_name = matcher.group(2);
-                                } else if (key.equalsIgnoreCase("filename")) {
-                                    file_name = matcher.group(2);
-                                }
-                            }
-                        }
-                        matcher = CONTENT_TYPE_PATTERN.matcher(mpline);
-                        if (matcher.matches()) {
-                            content_type = matcher.group(2).trim();
-                        }
-                        mpline = in.readLine();
-                    }
+        /**
+         * @return the heap memory held in the shared free lists.
+         */
+        public long getPooledBytes() {
+            return this.pooledBytes.get();
+        }
 
-                    // Read the part data
-                    int part_header_len = len - (int) in.skip(MAX_HEADER_SIZE);
-                    if (part_header_len >= len - 4) {
-                        throw new ResponseException(Response.Status.INTERNAL_ERROR, "Multipart header size exceeds MAX_HEADER_SIZE.");
-                    }
-                    int part_data_start = boundary_idxs[bi] + part_header_len;
-                    int part_data_end = boundary_idxs[bi + 1] - 4;
+        /**
+         * @return the native memory allocated for pooled direct buffers.
+         */
+        public long getDirectBytes() {
+            return this.directBytes.get();
+        }
 
-                    fbuf.position(part_data_start);
-                    if (content_type == null) {
-                        // Read the part into a string
-                        byte[] data_bytes = new byte[part_data_end - part_data_start];
-                        fbuf.get(data_bytes);
-                        parms.put(part_name, new String(data_bytes));
-                    } else {
-                        // Read it into a file
-                        String path = saveTmpFile(fbuf, part_data_start, part_data_end - part_data_start, file_name);
-                        if (!files.containsKey(part_name)) {
-                            files.put(part_name, path);
-                        } else {
-                            int count = 2;
-                            while (files.containsKey(part_name + count)) {
-                                count++;
-                            }
-                            files.put(part_name + count, path);
-                        }
-                        parms.put(part_name, file_name);
-                    }
-                }
-            } catch (ResponseException re) {
-                throw re;
-            } catch (Exception e) {
-                throw new ResponseException(Response.Status.INTERNAL_ERROR, e.toString());
-            }
+        @Override
+        public String toString() {
+            return "BufferPool[hits=" + getHits() + ", misses=" + getMisses() + ", outstanding=" + getOutstanding() + ", pooledBytes=" + getPooledBytes() + ", directBytes="
+                    + getDirectBytes() + "]";
         }
+    }
+
+    /**
+     * Request body of a session, bounded by its Content-Length or decoded
+     * from chunked transfer coding as it is read. The stream ends with the
+     * body, so a handler cannot read into the next request, and closing it
+     * leaves the connection open. A body of unknown length that is not
+     * chunked, as on an HTTP/2 stream, runs to the end of the wrapped stream.
+     */
+    static final class BodyInputStream extends InputStream {
 
         /**
-         * Decodes parameters in percent-encoded URI-format ( e.g.
-         * "name=Jack%20Daniels&pass=Single%20Malt" ) and adds them to given
-         * Map. NOTE: this doesn't support multiple identical keys due to the
-         * simplicity of Map.
+         * Upper bound for chunk size lines and trailer lines.
          */
-        private void decodeParms(String parms, Map<String, String> p) {
-            if (parms == null) {
-                this.queryParameterString = "";
-                return;
-            }
+        private static final int MAX_LINE_LENGTH = 4096;
 
-            this.queryParameterString = parms;
-            StringTokenizer st = new StringTokenizer(parms, "&");
-            while (st.hasMoreTokens()) {
-                String e = st.nextToken();
-                int sep = e.indexOf('=');
-                if (sep >= 0) {
-                    p.put(decodePercent(e.substring(0, sep)).trim(), decodePercent(e.substring(sep + 1)));
-                } else {
-                    p.put(decodePercent(e).trim(), "");
+        private final InputStream in;
+
+        private final boolean chunked;
+
+        private final boolean toEnd;
+
+        /**
+         * Bytes left in the body or, if chunked, in the current chunk.
+         */
+        private long remaining;
+
+        private boolean started;
+
+        private boolean finished;
+
+        /**
+         * Deadline of the connection, its body phase ends with the body.
+         */
+        private TimerWheel.Deadline deadline;
+
+        /**
+         * Throttle of the connection the body is read from, or null.
+         */
+        private BandwidthShaper.Throttle throttle;
+
+        BodyInputStream(InputStream in, long length, boolean chunked) {
+            this.in = in;
+            this.chunked = chunked;
+            this.toEnd = !chunked && length < 0;
+            this.remaining = chunked ? 0 : this.toEnd ? Long.MAX_VALUE : length;
+            this.finished = !chunked && length == 0;
+        }
+
+        /**
+         * Moves on to the next chunk if the current one is used up.
+         * 
+         * @return false at the end of the body.
+         */
+        private boolean ensureData() throws IOException {
+            if (this.remaining > 0) {
+                return true;
+            }
+            if (this.finished) {
+                return false;
+            }
+            if (!this.chunked) {
+                finish();
+                return false;
+            }
+            if (this.started && readLine().length() > 0) {
+                throw new ProtocolException("Malformed chunked request body: missing CRLF after chunk data");
+            }
+            this.started = true;
+            String line = readLine();
+            int end = line.indexOf(';');
+            String size = (end < 0 ? line : line.substring(0, end)).trim();
+            if (size.length() == 0 || size.length() > 15) {
+                throw new ProtocolException("Malformed chunked request body: bad chunk size '" + line + "'");
+            }
+            try {
+                this.remaining = Long.parseLong(size, 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Malformed chunked request body: bad chunk size '" + line + "'");
+            }
+            if (this.remaining < 0) {
+                throw new ProtocolException("Malformed chunked request body: bad chunk size '" + line + "'");
+            }
+            if (this.remaining == 0) {
+                // skip the trailer fields
+                while (readLine().length() > 0) {
+                    continue;
                 }
+                finish();
+                return false;
             }
+            return true;
         }
 
-        @Override
-        public void execute() throws IOException {
-            Response r = null;
-            try {
-                // Read the first 8192 bytes.
-                // The full header should fit in here.
-                // Apache's default header limit is 8KB.
-                // Do NOT assume that a single read will get the entire header
-                // at once!
-                byte[] buf = new byte[HTTPSession.BUFSIZE];
-                this.splitbyte = 0;
-                this.rlen = 0;
+        private void finish() {
+            this.finished = true;
+            if (this.deadline != null && this.deadline.getPhase() == ConnectionPhase.BODY) {
+                this.deadline.disarm();
+            }
+        }
 
-                int read = -1;
-                try {
-                    read = this.inputStream.read(buf, 0, HTTPSession.BUFSIZE);
-                } catch (Exception e) {
-                    safeClose(this.inputStream);
-                    safeClose(this.outputStream);
-                    throw new SocketException("NanoHttpd Shutdown");
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = this.in.read()) != '\n') {
+                if (b == -1) {
+                    throw new EOFException("Request body ended in the middle of a chunk header");
                 }
-                if (read == -1) {
-                    // socket was been closed
-                    safeClose(this.inputStream);
-                    safeClose(this.outputStream);
-                    throw new SocketException("NanoHttpd Shutdown");
+                if (line.length() >= MAX_LINE_LENGTH) {
+                    throw new ProtocolException("Malformed chunked request body: line too long");
                 }
-                while (read > 0) {
-                    this.rlen += read;
-                    this.splitbyte = findHeaderEnd(buf, this.rlen);
-                    if (this.splitbyte > 0) {
-                        break;
+                line.append((char) b);
+            }
+            int length = line.length();
+            if (length > 0 && line.charAt(length - 1) == '\r') {
+                line.setLength(length - 1);
+            }
+            return line.toString();
+        }
+
+        /**
+         * @return true once the whole body, including the end of the chunked
+         *         framing, has been read.
+         */
+        boolean isFinished() {
+            return this.finished;
+        }
+
+        /**
+         * Reads and drops what is left of the body, unless that is more than
+         * limit bytes.
+         * 
+         * @return true if the body has been read completely.
+         */
+        boolean discard(long limit) throws IOException {
+            if (this.finished) {
+                return true;
+            }
+            if (!this.chunked && this.remaining > limit) {
+                return false;
+            }
+            byte[] buf = BufferPool.getDefault().acquire(HTTPSession.BUFSIZE);
+            try {
+                long discarded = 0;
+                while (discarded <= limit) {
+                    int read = read(buf, 0, buf.length);
+                    if (read == -1) {
+                        return true;
                     }
-                    read = this.inputStream.read(buf, this.rlen, HTTPSession.BUFSIZE - this.rlen);
+                    discarded += read;
                 }
+                return false;
+            } finally {
+                BufferPool.getDefault().release(buf);
+            }
+        }
 
-                if (this.splitbyte < this.rlen) {
-                    this.inputStream.unread(buf, this.splitbyte, this.rlen - this.splitbyte);
-                }
+        private int end() throws EOFException {
+            if (!this.toEnd) {
+                throw new EOFException("Request body ended " + this.remaining + " bytes early");
+            }
+            finish();
+            return -1;
+        }
 
-                this.parms = new HashMap<String, String>();
-                if (null == this.headers) {
-                    this.headers = new HashMap<String, String>();
-                } else {
-                    this.headers.clear();
-                }
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(this.remaining, this.in.available());
+        }
 
-                if (null != this.remoteIp) {
-                    this.headers.put("remote-addr", this.remoteIp);
-                    this.headers.put("http-client-ip", this.remoteIp);
-                }
+        @Override
+        public void close() {
+            // the connection stays open
+        }
 
-                // Create a BufferedReader for parsing the header.
-                BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, this.rlen)));
+        @Override
+        public int read() throws IOException {
+            if (!ensureData()) {
+                return -1;
+            }
+            int b = this.in.read();
+            if (b == -1) {
+                return end();
+            }
+            if (this.throttle != null) {
+                this.throttle.consume(1);
+            }
+            if (--this.remaining == 0 && !this.chunked) {
+                finish();
+            }
+            return b;
+        }
 
-                // Decode the header into parms and header java properties
-                Map<String, String> pre = new HashMap<String, String>();
-                decodeHeader(hin, pre, this.parms, this.headers);
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensureData()) {
+                return -1;
+            }
+            long max = Math.min(len, this.remaining);
+            if (this.throttle != null) {
+                max = this.throttle.chunk(max);
+            }
+            int read = this.in.read(b, off, (int) max);
+            if (read == -1) {
+                return end();
+            }
+            if (this.throttle != null) {
+                this.throttle.consume(read);
+            }
+            this.remaining -= read;
+            if (this.remaining == 0 && !this.chunked) {
+                finish();
+            }
+            return read;
+        }
+    }
 
-                this.method = Method.lookup(pre.get("method"));
-                if (this.method == null) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
-                }
+    /**
+     * Output stream of a session. Small writes are collected in a buffer
+     * borrowed from the {@link BufferPool} until the stream is flushed, so a
+     * response header and a small body, or the responses to several
+     * pipelined requests, reach the socket in one write. Large writes bypass
+     * the buffer; when the socket has a channel, the buffered bytes go out
+     * ahead of them in the same gathering write.
+     * <p/>
+     * <p>
+     * With a deadline, every write to the socket has to be done within the
+     * write timeout, and large writes are cut into pieces of
+     * {@link #WRITE_CHUNK} so that a client reading slowly but steadily
+     * keeps making progress.
+     * </p>
+     * <p>
+     * With a throttle, every write first takes its tokens, and writes are cut
+     * into pieces of {@link BandwidthShaper#SHAPED_CHUNK} while a limit is
+     * set. Waiting for tokens does not count against the write timeout.
+     * </p>
+     */
+    private static final class SessionOutputStream extends FilterOutputStream {
 
-                this.uri = pre.get("uri");
+        /**
+         * The buffer grows up to this size before it is written out, so a
+         * burst of pipelined responses does not end in a small trailing
+         * segment that Nagle's algorithm holds back.
+         */
+        private static final int MAX_BUFFER_SIZE = 64 * 1024;
 
-                this.cookies = new CookieHandler(this.headers);
+        /**
+         * Largest write that has to be done within the write timeout.
+         */
+        static final int WRITE_CHUNK = 64 * 1024;
 
-                String connection = this.headers.get("connection");
-                boolean keepAlive = protocolVersion.equals("HTTP/1.1") && (connection == null || !connection.matches("(?i).*close.*"));
+        private byte[] buf;
 
-                // Ok, now do the serve()
+        private int count;
 
-                // TODO: long body_size = getBodySize();
-                // TODO: long pos_before_serve = this.inputStream.totalRead()
-                // (requires implementaion for totalRead())
-                r = serve(this);
-                // TODO: this.inputStream.skip(body_size -
-                // (this.inputStream.totalRead() - pos_before_serve))
+        private GatheringByteChannel channel;
 
-                if (r == null) {
-                    throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
+        private TimerWheel.Deadline deadline;
+
+        private int writeTimeout;
+
+        private BandwidthShaper.Throttle throttle;
+
+        public SessionOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        /**
+         * @return the part of a write of len bytes that goes out in one go.
+         */
+        long chunk(long len) {
+            if (this.throttle != null) {
+                len = this.throttle.chunk(len);
+            }
+            return this.deadline != null ? Math.min(len, WRITE_CHUNK) : len;
+        }
+
+        /**
+         * Waits until the throttle lets the given number of bytes pass.
+         */
+        void shape(long bytes) throws InterruptedIOException {
+            if (this.throttle != null) {
+                this.throttle.consume((int) bytes);
+            }
+        }
+
+        void beginWrite() {
+            if (this.deadline != null) {
+                this.deadline.beginWrite(this.writeTimeout);
+            }
+        }
+
+        void endWrite() {
+            if (this.deadline != null) {
+                this.deadline.endWrite();
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            int off = 0;
+            while (off < this.count) {
+                int n = (int) chunk(this.count - off);
+                shape(n);
+                beginWrite();
+                try {
+                    out.write(this.buf, off, n);
+                } finally {
+                    endWrite();
+                }
+                off += n;
+            }
+            this.count = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (this.buf == null) {
+                this.buf = BufferPool.getDefault().acquire(HTTPSession.BUFSIZE);
+            } else if (this.count == this.buf.length) {
+                flushBuffer();
+            }
+            this.buf[this.count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= HTTPSession.BUFSIZE) {
+                if (this.count > 0 && this.channel != null) {
+                    int first = (int) chunk(len);
+                    ByteBuffer[] buffers = {
+                        ByteBuffer.wrap(this.buf, 0, this.count),
+                        ByteBuffer.wrap(b, off, first)
+                    };
+                    shape(this.count + first);
+                    this.count = 0;
+                    beginWrite();
+                    try {
+                        while (buffers[1].hasRemaining()) {
+                            this.channel.write(buffers);
+                        }
+                    } finally {
+                        endWrite();
+                    }
+                    off += first;
+                    len -= first;
                 } else {
-                    String acceptEncoding = this.headers.get("accept-encoding");
-                    this.cookies.unloadQueue(r);
-                    r.setRequestMethod(this.method);
-                    r.setGzipEncoding(useGzipWhenAccepted(r) && acceptEncoding != null && acceptEncoding.contains("gzip"));
-                    r.setKeepAlive(keepAlive);
-                    r.send(this.outputStream);
+                    flushBuffer();
                 }
-                if (!keepAlive || "close".equalsIgnoreCase(r.getHeader("connection"))) {
-                    throw new SocketException("NanoHttpd Shutdown");
+                while (len > 0) {
+                    int n = (int) chunk(len);
+                    shape(n);
+                    beginWrite();
+                    try {
+                        out.write(b, off, n);
+                    } finally {
+                        endWrite();
+                    }
+                    off += n;
+                    len -= n;
                 }
-            } catch (SocketException e) {
-                // throw it out to close socket object (finalAccept)
-                throw e;
-            } catch (SocketTimeoutException ste) {
-                // treat socket timeouts the same way we treat socket exceptions
-                // i.e. close the stream & finalAccept object by throwing the
-                // exception up the call stack.
-                throw ste;
-            } catch (IOException ioe) {
+                return;
+            }
+            if (this.buf == null) {
+                this.buf = BufferPool.getDefault().acquire(HTTPSession.BUFSIZE);
+            } else if (len > this.buf.length - this.count) {
+                if (this.count + len <= MAX_BUFFER_SIZE) {
+                    byte[] larger = BufferPool.getDefault().acquire(Math.max(this.count + len, this.buf.length * 2));
+                    System.arraycopy(this.buf, 0, larger, 0, this.count);
+                    BufferPool.getDefault().release(this.buf);
+                    this.buf = larger;
+                } else {
+                    flushBuffer();
+                }
+            }
+            System.arraycopy(b, off, this.buf, this.count, len);
+            this.count += len;
+        }
+
+        /**
+         * Writes out the buffered bytes and gives the buffer back to the
+         * pool.
+         */
+        @Override
+        public void flush() throws IOException {
+            try {
+                flushBuffer();
+            } finally {
+                if (this.buf != null) {
+                    BufferPool.getDefault().release(this.buf);
+                    this.buf = null;
+                    this.count = 0;
+                }
+            }
+            beginWrite();
+            try {
+                out.flush();
+            } finally {
+                endWrite();
+            }
+        }
+    }
+
+    /**
+     * Input stream of a session. Bytes read ahead while looking for the end of
+     * a request header stay in the buffer and are handed out before the
+     * underlying stream is read again, so pipelined requests and the start of
+     * a body are never lost or waited for.
+     */
+    private static final class SessionInputStream extends InputStream {
+
+        private final InputStream in;
+
+        private final int bufferSize;
+
+        /**
+         * Read buffer borrowed from the {@link BufferPool}, null while the
+         * connection is idle.
+         */
+        private byte[] buf;
+
+        private int pos;
+
+        private int limit;
+
+        /**
+         * Deadline of the connection, told about the bytes that arrive.
+         */
+        private TimerWheel.Deadline deadline;
+
+        public SessionInputStream(InputStream in, int bufferSize) {
+            this.in = in;
+            this.bufferSize = bufferSize;
+        }
+
+        /**
+         * Waits for the next request. An idle connection gives its buffer
+         * back to the pool while it blocks, and borrows one again once the
+         * client sends something.
+         * 
+         * @return false at the end of the stream.
+         */
+        boolean await() throws IOException {
+            compact();
+            if (this.limit > 0) {
+                return true;
+            }
+            release();
+            int b = this.in.read();
+            if (b == -1) {
+                return false;
+            }
+            this.buf = BufferPool.getDefault().acquire(this.bufferSize);
+            this.buf[0] = (byte) b;
+            this.limit = 1;
+            return true;
+        }
+
+        /**
+         * Moves the unread bytes to the start of the buffer.
+         */
+        void compact() {
+            if (this.pos > 0) {
+                System.arraycopy(this.buf, this.pos, this.buf, 0, this.limit - this.pos);
+                this.limit -= this.pos;
+                this.pos = 0;
+            }
+        }
+
+        /**
+         * Reads more bytes from the underlying stream into the buffer, growing
+         * it up to maxSize if it is full.
+         * 
+         * @return the number of bytes read, -1 at the end of the stream or 0
+         *         if the buffer is full and may not grow any further.
+         */
+        int fill(int maxSize) throws IOException {
+            if (this.buf == null) {
+                this.buf = BufferPool.getDefault().acquire(this.bufferSize);
+            } else if (this.limit == this.buf.length) {
+                if (this.pos > 0) {
+                    compact();
+                } else if (this.buf.length < maxSize) {
+                    grow(Math.min(this.buf.length * 2, maxSize));
+                } else {
+                    return 0;
+                }
+            }
+            int read = this.in.read(this.buf, this.limit, this.buf.length - this.limit);
+            if (read > 0) {
+                this.limit += read;
+                received(read);
+            }
+            return read;
+        }
+
+        private void grow(int size) {
+            byte[] grown = BufferPool.getDefault().acquire(size);
+            if (this.buf != null) {
+                System.arraycopy(this.buf, 0, grown, 0, this.limit);
+                BufferPool.getDefault().release(this.buf);
+            }
+            this.buf = grown;
+        }
+
+        /**
+         * Queues bytes that were already read from the underlying stream.
+         */
+        void prefill(byte[] bytes, int length) {
+            if (this.buf == null) {
+                this.buf = BufferPool.getDefault().acquire(Math.max(this.bufferSize, length));
+            }
+            compact();
+            if (this.buf.length - this.limit < length) {
+                grow(this.limit + length);
+            }
+            System.arraycopy(bytes, 0, this.buf, this.limit, length);
+            this.limit += length;
+        }
+
+        /**
+         * Gives the read buffer back to the pool unless it still holds unread
+         * bytes.
+         */
+        void release() {
+            if (this.buf != null && this.pos == this.limit) {
+                BufferPool.getDefault().release(this.buf);
+                this.buf = null;
+                this.pos = 0;
+                this.limit = 0;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return this.limit - this.pos + this.in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.pos = this.limit;
+            release();
+            this.in.close();
+        }
+
+        private void received(int bytes) {
+            if (this.deadline != null) {
+                this.deadline.received(bytes);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.pos < this.limit) {
+                return this.buf[this.pos++] & 0xff;
+            }
+            int b = this.in.read();
+            if (b != -1) {
+                received(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (this.pos < this.limit) {
+                int count = Math.min(len, this.limit - this.pos);
+                System.arraycopy(this.buf, this.pos, b, off, count);
+                this.pos += count;
+                return count;
+            }
+            int read = this.in.read(b, off, len);
+            received(read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            if (this.pos < this.limit) {
+                int count = (int) Math.min(n, this.limit - this.pos);
+                this.pos += count;
+                return count;
+            }
+            return this.in.skip(n);
+        }
+    }
+
+    /**
+     * Request header map that keeps header values as slices of the read
+     * buffer and only decodes the ones that are actually looked up. Requests
+     * carry few headers, so a linear scan over the (mostly interned) names is
+     * cheaper than hashing.
+     */
+    private static final class HeaderMap extends AbstractMap<String, String> {
+
+        private String[] names = new String[16];
+
+        private String[] values = new String[16];
+
+        private int[] offsets = new int[16];
+
+        /**
+         * Length of the raw value in source, or -1 once values[i] holds the
+         * value.
+         */
+        private int[] lengths = new int[16];
+
+        private byte[] source;
+
+        private int size;
+
+        void putRaw(String name, byte[] source, int offset, int length) {
+            this.source = source;
+            int i = indexOf(name);
+            if (i < 0) {
+                i = append(name);
+            }
+            this.values[i] = null;
+            this.offsets[i] = offset;
+            this.lengths[i] = length;
+        }
+
+        @Override
+        public void clear() {
+            Arrays.fill(this.names, 0, this.size, null);
+            Arrays.fill(this.values, 0, this.size, null);
+            this.source = null;
+            this.size = 0;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return indexOf(key) >= 0;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String>>() {
+
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<Map.Entry<String, String>>() {
+
+                        private int next;
+
+                        private int current = -1;
+
+                        @Override
+                        public boolean hasNext() {
+                            return this.next < HeaderMap.this.size;
+                        }
+
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            this.current = this.next++;
+                            final String name = HeaderMap.this.names[this.current];
+                            return new AbstractMap.SimpleEntry<String, String>(name, HeaderMap.this.value(this.current)) {
+
+                                private static final long serialVersionUID = 1L;
+
+                                @Override
+                                public String setValue(String value) {
+                                    HeaderMap.this.put(name, value);
+                                    return super.setValue(value);
+                                }
+                            };
+                        }
+
+                        @Override
+                        public void remove() {
+                            if (this.current < 0) {
+                                throw new IllegalStateException();
+                            }
+                            HeaderMap.this.removeAt(this.current);
+                            this.next = this.current;
+                            this.current = -1;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return HeaderMap.this.size;
+                }
+            };
+        }
+
+        @Override
+        public String get(Object key) {
+            int i = indexOf(key);
+            return i < 0 ? null : value(i);
+        }
+
+        @Override
+        public String put(String key, String value) {
+            int i = indexOf(key);
+            String old = null;
+            if (i < 0) {
+                i = append(key);
+            } else {
+                old = value(i);
+            }
+            this.values[i] = value;
+            this.lengths[i] = -1;
+            return old;
+        }
+
+        @Override
+        public String remove(Object key) {
+            int i = indexOf(key);
+            if (i < 0) {
+                return null;
+            }
+            String old = value(i);
+            removeAt(i);
+            return old;
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        private int append(String name) {
+            if (this.size == this.names.length) {
+                int capacity = this.size * 2;
+                this.names = Arrays.copyOf(this.names, capacity);
+                this.values = Arrays.copyOf(this.values, capacity);
+                this.offsets = Arrays.copyOf(this.offsets, capacity);
+                this.lengths = Arrays.copyOf(this.lengths, capacity);
+            }
+            this.names[this.size] = name;
+            return this.size++;
+        }
+
+        private int indexOf(Object key) {
+            if (key == null) {
+                return -1;
+            }
+            for (int i = 0; i < this.size; i++) {
+                if (this.names[i] == key || this.names[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void removeAt(int i) {
+            int moved = this.size - i - 1;
+            System.arraycopy(this.names, i + 1, this.names, i, moved);
+            System.arraycopy(this.values, i + 1, this.values, i, moved);
+            System.arraycopy(this.offsets, i + 1, this.offsets, i, moved);
+            System.arraycopy(this.lengths, i + 1, this.lengths, i, moved);
+            this.size--;
+            this.names[this.size] = null;
+            this.values[this.size] = null;
+        }
+
+        private String value(int i) {
+            if (this.lengths[i] >= 0) {
+                this.values[i] = decodeText(this.source, this.offsets[i], this.lengths[i]);
+                this.lengths[i] = -1;
+            }
+            return this.values[i];
+        }
+    }
+
+    /**
+     * Table of well-known request header names. Names found here are
+     * returned as shared lower case constants instead of being lower-cased
+     * into a new string for every request.
+     */
+    private static final class KnownHeaders {
+
+        private static final String[] NAMES = {
+            "accept",
+            "accept-charset",
+            "accept-encoding",
+            "accept-language",
+            "authorization",
+            "brief",
+            "cache-control",
+            "connection",
+            "content-length",
+            "content-type",
+            "cookie",
+            "depth",
+            "destination",
+            "expect",
+            "forwarded",
+            "host",
+            "http2-settings",
+            "if",
+            "if-match",
+            "if-modified-since",
+            "if-none-match",
+            "if-range",
+            "if-unmodified-since",
+            "keep-alive",
+            "lock-token",
+            "origin",
+            "overwrite",
+            "pragma",
+            "range",
+            "referer",
+            "te",
+            "timeout",
+            "transfer-encoding",
+            "translate",
+            "upgrade",
+            "user-agent",
+            "x-expected-entity-length",
+            "x-forwarded-for",
+            "x-forwarded-proto"
+        };
+
+        private static final String[] TABLE = new String[128];
+
+        static {
+            for (String name : NAMES) {
+                int slot = name.hashCode() & (TABLE.length - 1);
+                while (TABLE[slot] != null) {
+                    slot = (slot + 1) & (TABLE.length - 1);
+                }
+                TABLE[slot] = name;
+            }
+        }
+
+        /**
+         * @return the lower case header name in buf[off..off+len).
+         */
+        static String lookup(byte[] buf, int off, int len) {
+            int hash = 0;
+            for (int i = off; i < off + len; i++) {
+                hash = 31 * hash + toLowerAscii(buf[i]);
+            }
+            for (int slot = hash & (TABLE.length - 1); TABLE[slot] != null; slot = (slot + 1) & (TABLE.length - 1)) {
+                String name = TABLE[slot];
+                if (name.length() == len && matches(name, buf, off)) {
+                    return name;
+                }
+            }
+            char[] chars = new char[len];
+            for (int i = 0; i < len; i++) {
+                chars[i] = (char) toLowerAscii(buf[off + i]);
+            }
+            return new String(chars);
+        }
+
+        private static boolean matches(String name, byte[] buf, int off) {
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) != toLowerAscii(buf[off + i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    protected class HTTPSession implements IHTTPSession {
+
+        private static final int REQUEST_BUFFER_LEN = 512;
+
+        private static final int MEMORY_STORE_LIMIT = 1024;
+
+        public static final int BUFSIZE = 8192;
+
+        /**
+         * Request headers longer than BUFSIZE grow the read buffer up to this
+         * size before the request is refused.
+         */
+        public static final int MAX_HEADER_SIZE = 64 * 1024;
+
+        /**
+         * Unread request bodies up to this size are discarded to keep the
+         * connection alive, larger ones close it.
+         */
+        private static final int MAX_DISCARD_SIZE = 64 * 1024;
+
+        /**
+         * Time a closing connection keeps discarding input, see
+         * {@link #lingeringClose()}.
+         */
+        private static final int LINGER_TIMEOUT = 2000;
+
+        private final TempFileManager tempFileManager;
+
+        private final SessionOutputStream outputStream;
+
+        /**
+         * Channel of the client socket, if it has one, for zero-copy file
+         * responses.
+         */
+        private WritableByteChannel channel;
+
+        private Socket socket;
+
+        private TlsConnection tls;
+
+        /**
+         * Deadline of the connection, null if no timeouts apply or the
+         * session serves an HTTP/2 stream.
+         */
+        private TimerWheel.Deadline deadline;
+
+        /**
+         * Connection of the session, null for an HTTP/2 stream.
+         */
+        private ClientHandler clientHandler;
+
+        /**
+         * Read timeout currently set on the socket, -1 if unknown.
+         */
+        private int timeout = -1;
+
+        /**
+         * Requests served on this connection so far.
+         */
+        private int requestCount;
+
+        /**
+         * Class the next request was admitted in before it reached this
+         * session's worker, null if it still has to be admitted.
+         */
+        private RequestClass preAdmitted;
+
+        private final SessionInputStream inputStream;
+
+        /**
+         * Body of the current request.
+         */
+        private BodyInputStream body;
+
+        private int splitbyte;
+
+        private int rlen;
+
+        private String uri;
+
+        private Method method;
+
+        private Map<String, String> parms;
+
+        private final HeaderMap headers = new HeaderMap();
+
+        private CookieHandler cookies;
+
+        private String queryParameterString;
+
+        private String remoteIp;
+
+        private String protocolVersion;
+
+        /**
+         * Set for HTTP/2 requests whose body length is only known at the end
+         * of the stream.
+         */
+        private boolean streamed;
+
+        public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
+            this.tempFileManager = tempFileManager;
+            this.inputStream = new SessionInputStream(inputStream, HTTPSession.BUFSIZE);
+            this.outputStream = new SessionOutputStream(outputStream);
+        }
+
+        public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, InetAddress inetAddress) {
+            this.tempFileManager = tempFileManager;
+            this.inputStream = new SessionInputStream(inputStream, HTTPSession.BUFSIZE);
+            this.outputStream = new SessionOutputStream(outputStream);
+            this.remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
+        }
+
+        /**
+         * Decodes the sent headers and loads the data into Key/value pairs.
+         * Works directly on the bytes of the read buffer: the method and
+         * well-known header names are resolved from static tables and header
+         * values are only turned into strings when they are looked up.
+         */
+        private void decodeHeader(byte[] buf, int off, int end, Map<String, String> parms, HeaderMap headers) throws ResponseException {
+            // Ignore empty lines preceding the request line
+            while (off < end && (buf[off] == '\r' || buf[off] == '\n')) {
+                off++;
+            }
+            int lineEnd = indexOf(buf, off, end, '\n');
+            int lineLimit = trimLineEnd(buf, off, lineEnd);
+
+            int tokenStart = skipWhitespace(buf, off, lineLimit);
+            int tokenEnd = skipToken(buf, tokenStart, lineLimit);
+            if (tokenStart == tokenEnd) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+            }
+            this.method = Method.lookup(buf, tokenStart, tokenEnd - tokenStart);
+
+            tokenStart = skipWhitespace(buf, tokenEnd, lineLimit);
+            tokenEnd = skipToken(buf, tokenStart, lineLimit);
+            if (tokenStart == tokenEnd) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+            }
+
+            // Decode parameters from the URI
+            int qmi = indexOf(buf, tokenStart, tokenEnd, '?');
+            if (qmi < tokenEnd) {
+                decodeParms(decodeText(buf, qmi + 1, tokenEnd - qmi - 1), parms);
+                this.uri = decodePercent(buf, tokenStart, qmi - tokenStart);
+            } else {
+                this.queryParameterString = null;
+                this.uri = decodePercent(buf, tokenStart, tokenEnd - tokenStart);
+            }
+
+            // If there's another token, its protocol version,
+            // followed by HTTP headers.
+            // NOTE: this now forces header names lower case since they are
+            // case insensitive and vary by client.
+            tokenStart = skipWhitespace(buf, tokenEnd, lineLimit);
+            tokenEnd = skipToken(buf, tokenStart, lineLimit);
+            if (tokenStart < tokenEnd) {
+                this.protocolVersion = decodeProtocolVersion(buf, tokenStart, tokenEnd - tokenStart);
+            } else {
+                this.protocolVersion = "HTTP/1.1";
+                NanoHTTPD.LOG.log(Level.FINE, "no protocol version specified, strange. Assuming HTTP/1.1.");
+            }
+
+            off = lineEnd + 1;
+            while (off < end) {
+                lineEnd = indexOf(buf, off, end, '\n');
+                lineLimit = trimLineEnd(buf, off, lineEnd);
+                int nameStart = skipWhitespace(buf, off, lineLimit);
+                if (nameStart == lineLimit) {
+                    break;
+                }
+                int colon = indexOf(buf, nameStart, lineLimit, ':');
+                if (colon < lineLimit) {
+                    int nameEnd = colon;
+                    while (nameEnd > nameStart && (buf[nameEnd - 1] & 0xff) <= ' ') {
+                        nameEnd--;
+                    }
+                    int valueStart = skipWhitespace(buf, colon + 1, lineLimit);
+                    int valueEnd = lineLimit;
+                    while (valueEnd > valueStart && (buf[valueEnd - 1] & 0xff) <= ' ') {
+                        valueEnd--;
+                    }
+                    headers.putRaw(KnownHeaders.lookup(buf, nameStart, nameEnd - nameStart), buf, valueStart, valueEnd - valueStart);
+                }
+                off = lineEnd + 1;
+            }
+        }
+
+        /**
+         * Decodes the Multipart Body data and put it into Key/Value pairs.
+         */
+        private void decodeMultipartFormData(String boundary, ByteBuffer fbuf, Map<String, String> parms, Map<String, String> files) throws ResponseException {
+            try {
+                int[] boundary_idxs = getBoundaryPositions(fbuf, boundary.getBytes());
+                if (boundary_idxs.length < 2) {
+                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but contains less than two boundary strings.");
+                }
+
+                final int MAX_HEADER_SIZE = 1024;
+                byte[] part_header_buff = new byte[MAX_HEADER_SIZE];
+                for (int bi = 0; bi < boundary_idxs.length - 1; bi++) {
+                    fbuf.position(boundary_idxs[bi]);
+                    int len = (fbuf.remaining() < MAX_HEADER_SIZE) ? fbuf.remaining() : MAX_HEADER_SIZE;
+                    fbuf.get(part_header_buff, 0, len);
+                    ByteArrayInputStream bais = new ByteArrayInputStream(part_header_buff, 0, len);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(bais, Charset.forName("UTF-8")));
+
+                    // First line is boundary string
+                    String mpline = in.readLine();
+                    if (!mpline.contains(boundary)) {
+                        throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but chunk does not start with boundary.");
+                    }
+
+                    String part_name = null, file_name = null, content_type = null;
+                    // Parse the reset of the header lines
+                    mpline = in.readLine();
+                    while (mpline != null && mpline.trim().length() > 0) {
+                        Matcher matcher = CONTENT_DISPOSITION_PATTERN.matcher(mpline);
+                        if (matcher.matches()) {
+                            String attributeString = matcher.group(2);
+                            matcher = CONTENT_DISPOSITION_ATTRIBUTE_PATTERN.matcher(attributeString);
+                            while (matcher.find()) {
+                                String key = matcher.group(1);
+                                if (key.equalsIgnoreCase("name")) {
+                                    part_name = matcher.group(2);
+                                } else if (key.equalsIgnoreCase("filename")) {
+                                    file_name = matcher.group(2);
+                                }
+                            }
+                        }
+                        matcher = CONTENT_TYPE_PATTERN.matcher(mpline);
+                        if (matcher.matches()) {
+                            content_type = matcher.group(2).trim();
+                        }
+                        mpline = in.readLine();
+                    }
+
+                    // Read the part data
+                    int part_header_len = len - (int) in.skip(MAX_HEADER_SIZE);
+                    if (part_header_len >= len - 4) {
+                        throw new ResponseException(Response.Status.INTERNAL_ERROR, "Multipart header size exceeds MAX_HEADER_SIZE.");
+                    }
+                    int part_data_start = boundary_idxs[bi] + part_header_len;
+                    int part_data_end = boundary_idxs[bi + 1] - 4;
+
+                    fbuf.position(part_data_start);
+                    if (content_type == null) {
+                        // Read the part into a string
+                        byte[] data_bytes = new byte[part_data_end - part_data_start];
+                        fbuf.get(data_bytes);
+                        parms.put(part_name, new String(data_bytes));
+                    } else {
+                        // Read it into a file
+                        String path = saveTmpFile(fbuf, part_data_start, part_data_end - part_data_start, file_name);
+                        if (!files.containsKey(part_name)) {
+                            files.put(part_name, path);
+                        } else {
+                            int count = 2;
+                            while (files.containsKey(part_name + count)) {
+                                count++;
+                            }
+                            files.put(part_name + count, path);
+                        }
+                        parms.put(part_name, file_name);
+                    }
+                }
+            } catch (ResponseException re) {
+                throw re;
+            } catch (Exception e) {
+                throw new ResponseException(Response.Status.INTERNAL_ERROR, e.toString());
+            }
+        }
+
+        /**
+         * Decodes parameters in percent-encoded URI-format ( e.g.
+         * "name=Jack%20Daniels&pass=Single%20Malt" ) and adds them to given
+         * Map. NOTE: this doesn't support multiple identical keys due to the
+         * simplicity of Map.
+         */
+        private void decodeParms(String parms, Map<String, String> p) {
+            if (parms == null) {
+                this.queryParameterString = "";
+                return;
+            }
+
+            this.queryParameterString = parms;
+            StringTokenizer st = new StringTokenizer(parms, "&");
+            while (st.hasMoreTokens()) {
+                String e = st.nextToken();
+                int sep = e.indexOf('=');
+                if (sep >= 0) {
+                    p.put(decodePercent(e.substring(0, sep)).trim(), decodePercent(e.substring(sep + 1)));
+                } else {
+                    p.put(decodePercent(e).trim(), "");
+                }
+            }
+        }
+
+        /**
+         * Takes the request from the header fields of an HTTP/2 stream in
+         * place of a request line and header.
+         */
+        void decodeStream(Http2Connection.Stream stream) throws ResponseException {
+            if (stream.isHeaderListTooLarge()) {
+                throw new ResponseException(Response.Status.REQUEST_HEADER_FIELDS_TOO_LARGE, "REQUEST HEADER FIELDS TOO LARGE: Header exceeds "
+                        + HTTPSession.MAX_HEADER_SIZE + " bytes.");
+            }
+            this.parms = new HashMap<String, String>();
+            this.headers.clear();
+            this.method = stream.getMethod();
+            String path = stream.getPath();
+            if (this.method == null || path == null) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
+            }
+            int qmi = path.indexOf('?');
+            if (qmi >= 0) {
+                decodeParms(path.substring(qmi + 1), this.parms);
+                this.uri = decodePercent(path.substring(0, qmi));
+            } else {
+                this.queryParameterString = null;
+                this.uri = decodePercent(path);
+            }
+            this.protocolVersion = "HTTP/2.0";
+            if (null != this.remoteIp) {
+                this.headers.put("remote-addr", this.remoteIp);
+                this.headers.put("http-client-ip", this.remoteIp);
+            }
+            this.headers.putAll(stream.getHeaders());
+            putForwardedAddress();
+            long size = stream.getBodySize();
+            this.streamed = size < 0;
+            this.body = new BodyInputStream(this.inputStream, size, false);
+            this.body.throttle = stream.getRequestThrottle();
+            this.cookies = new CookieHandler(this.headers);
+        }
+
+        /**
+         * @return true if the request asks to continue as HTTP/2 on this
+         *         connection and has no body that would be in the way.
+         */
+        private boolean isUpgradeToHttp2() {
+            String upgrade = this.headers.get("upgrade");
+            return NanoHTTPD.this.options.isHttp2() && upgrade != null && upgrade.trim().equalsIgnoreCase("h2c") && this.headers.containsKey("http2-settings")
+                    && "HTTP/1.1".equals(this.protocolVersion) && this.body.isFinished() && NanoHTTPD.this.http2Executor != null && !NanoHTTPD.this.draining;
+        }
+
+        private Http2Connection newHttp2Connection() {
+            BandwidthShaper.Throttle requestThrottle = this.clientHandler != null ? this.clientHandler.requestThrottle : null;
+            return new Http2Connection(NanoHTTPD.this, NanoHTTPD.this.http2Executor, this.inputStream, this.outputStream, this.socket, requestThrottle);
+        }
+
+        /**
+         * Serves the connection as HTTP/2 until it is closed.
+         */
+        private void serveHttp2(Http2Connection connection, HTTPSession upgraded) throws IOException {
+            // the streams are admitted one by one
+            releasePreAdmitted();
+            if (NanoHTTPD.this.draining) {
+                throw new SocketException("NanoHttpd Shutdown");
+            }
+            if (this.clientHandler != null) {
+                this.clientHandler.setHttp2(connection);
+            }
+            if (this.deadline != null) {
+                // streams end at any time, only writes stay bounded
+                this.deadline.disarm();
+            }
+            setTimeout(NanoHTTPD.this.keepAliveTimeout);
+            connection.serve(upgraded);
+            throw new SocketException("NanoHttpd Shutdown");
+        }
+
+        /**
+         * Gives back the turn taken for a request this session did not get
+         * to.
+         */
+        private void releasePreAdmitted() {
+            if (this.preAdmitted != null) {
+                NanoHTTPD.this.requestScheduler.release(this.preAdmitted);
+                this.preAdmitted = null;
+            }
+        }
+
+        private void setSocket(Socket socket) {
+            setSocket(socket, null);
+        }
+
+        /**
+         * @param tls
+         *            TLS of a secure connection of the non-blocking engine, or
+         *            null. Its bytes never go to the channel directly.
+         */
+        private void setSocket(Socket socket, TlsConnection tls) {
+            this.socket = socket;
+            this.tls = tls;
+            if (tls == null) {
+                this.channel = socket.getChannel();
+                this.outputStream.channel = socket.getChannel();
+            }
+        }
+
+        private void setClientHandler(ClientHandler clientHandler) {
+            TimerWheel.Deadline deadline = clientHandler.deadline;
+            this.clientHandler = clientHandler;
+            this.deadline = deadline;
+            this.inputStream.deadline = deadline;
+            this.outputStream.deadline = deadline;
+            this.outputStream.writeTimeout = NanoHTTPD.this.writeTimeout;
+            this.outputStream.throttle = clientHandler.responseThrottle;
+        }
+
+        /**
+         * Takes the client address from the header of the trusted proxy, if
+         * one is configured. A proxy may reuse a connection for many
+         * clients, so this is done for every request.
+         */
+        private void putForwardedAddress() {
+            String name = NanoHTTPD.this.options.getForwardedHeader();
+            String value = name != null ? this.headers.get(name.toLowerCase(Locale.US)) : null;
+            if (value == null) {
+                return;
+            }
+            // the proxy appends the address it saw
+            String address = value.substring(value.lastIndexOf(',') + 1).trim();
+            if ("forwarded".equalsIgnoreCase(name)) {
+                address = forwardedFor(address);
+            }
+            // unknown and obfuscated nodes leave the address as it is
+            if (address != null && address.length() > 0 && !address.equalsIgnoreCase("unknown") && !address.startsWith("_")) {
+                this.headers.put("remote-addr", address);
+                this.headers.put("http-client-ip", address);
+            }
+        }
+
+        /**
+         * @return the node of the for parameter of a Forwarded element, or
+         *         null.
+         */
+        private String forwardedFor(String element) {
+            for (String pair : element.split(";")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0 && pair.substring(0, eq).trim().equalsIgnoreCase("for")) {
+                    String node = pair.substring(eq + 1).trim();
+                    if (node.length() > 1 && node.startsWith("\"")) {
+                        node = node.substring(1, node.length() - 1);
+                    }
+                    if (node.startsWith("[")) {
+                        // IPv6, maybe with a port
+                        int end = node.indexOf(']');
+                        return end > 0 ? node.substring(1, end) : null;
+                    }
+                    int colon = node.indexOf(':');
+                    return colon >= 0 ? node.substring(0, colon) : node;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Switches the socket to a read timeout. Requests are bounded by the
+         * deadline of the connection instead, this is for the idle time of
+         * HTTP/2 connections.
+         */
+        private void setTimeout(int timeout) throws SocketException {
+            if (this.socket != null && timeout != this.timeout) {
+                this.socket.setSoTimeout(timeout);
+                this.timeout = timeout;
+            }
+        }
+
+        @Override
+        public void execute() throws IOException {
+            Response r = null;
+            boolean begun = false;
+            RequestClass admitted = null;
+            try {
+                this.parms = new HashMap<String, String>();
+                this.headers.clear();
+
+                // Read until the end of the header. It should fit in the
+                // first 8192 bytes, Apache's default header limit is 8KB,
+                // but longer headers grow the buffer up to MAX_HEADER_SIZE.
+                // Do NOT assume that a single read will get the entire header
+                // at once!
+                SessionInputStream in = this.inputStream;
+                boolean open;
+                try {
+                    if (in.pos == in.limit) {
+                        // the client needs the responses so far before it
+                        // sends anything else
+                        this.outputStream.flush();
+                        if (this.requestCount > 0) {
+                            arm(this.deadline, ConnectionPhase.KEEP_ALIVE, NanoHTTPD.this.keepAliveTimeout);
+                        }
+                    }
+                    if (NanoHTTPD.this.draining && in.available() == 0) {
+                        // no new requests while the server drains
+                        open = false;
+                    } else {
+                        if (this.requestCount == 0 && NanoHTTPD.this.http2Executor != null
+                                && (this.tls != null ? Http2Connection.isNegotiated(this.tls.getEngine()) : Http2Connection.isNegotiated(this.socket))) {
+                            // h2 chosen through ALPN
+                            serveHttp2(newHttp2Connection(), null);
+                        }
+                        open = in.await();
+                    }
+                } catch (IOException e) {
+                    open = false;
+                }
+                if (open && this.clientHandler != null) {
+                    open = begun = this.clientHandler.beginRequest();
+                }
+                if (!open) {
+                    // socket was been closed
+                    safeClose(this.inputStream);
+                    safeClose(this.outputStream);
+                    throw new SocketException("NanoHttpd Shutdown");
+                }
+                if (this.deadline != null && this.deadline.getPhase() != ConnectionPhase.HEADER) {
+                    // the header is due counting from its first byte
+                    this.deadline.arm(ConnectionPhase.HEADER, NanoHTTPD.this.headerTimeout);
+                }
+                this.splitbyte = 0;
+                int scanned = 0;
+                while (this.splitbyte == 0) {
+                    this.splitbyte = findHeaderEnd(in.buf, scanned, in.limit);
+                    if (this.splitbyte > 0) {
+                        break;
+                    }
+                    scanned = Math.max(0, in.limit - 3);
+                    this.outputStream.flush();
+                    int read = in.fill(HTTPSession.MAX_HEADER_SIZE);
+                    if (read == -1) {
+                        this.splitbyte = in.limit;
+                    } else if (read == 0) {
+                        throw new ResponseException(Response.Status.REQUEST_HEADER_FIELDS_TOO_LARGE, "REQUEST HEADER FIELDS TOO LARGE: Header exceeds "
+                                + HTTPSession.MAX_HEADER_SIZE + " bytes.");
+                    }
+                }
+                if (this.requestCount == 0 && NanoHTTPD.this.http2Executor != null && Http2Connection.isPreface(in.buf, in.pos, in.limit)) {
+                    // HTTP/2 with prior knowledge: the connection preface
+                    // is read again as the first frames
+                    serveHttp2(newHttp2Connection(), null);
+                }
+                this.rlen = in.limit;
+                in.pos = this.splitbyte;
+
+                if (null != this.remoteIp) {
+                    this.headers.put("remote-addr", this.remoteIp);
+                    this.headers.put("http-client-ip", this.remoteIp);
+                }
+
+                // Decode the header into parms and header java properties
+                decodeHeader(in.buf, 0, this.splitbyte, this.parms, this.headers);
+                putForwardedAddress();
+
+                if (this.method == null) {
+                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
+                }
+                if (this.clientHandler != null && this.clientHandler.isStartedWhileDraining()) {
+                    // a pipelined request, or one that waited for a worker
+                    // or in the selector: it gets no answer but this one
+                    throw new ResponseException(Response.Status.SERVICE_UNAVAILABLE, "SERVICE UNAVAILABLE: The server is shutting down.");
+                }
+
+                if (this.preAdmitted != null) {
+                    admitted = this.preAdmitted;
+                    this.preAdmitted = null;
+                } else {
+                    // the blocking engine, or a pipelined request: the
+                    // connection's worker waits for the turn
+                    RequestClass requestClass = classifyRequest(this.method, this.uri);
+                    if (!NanoHTTPD.this.requestScheduler.tryAdmit(requestClass)) {
+                        // the time spent waiting for a turn is not the client's
+                        if (this.deadline != null) {
+                            this.deadline.disarm();
+                        }
+                        NanoHTTPD.this.requestScheduler.admit(requestClass);
+                    }
+                    admitted = requestClass;
+                }
+
+                this.body = createBody();
+                if (this.clientHandler != null) {
+                    this.body.throttle = this.clientHandler.requestThrottle;
+                }
+                if (this.deadline != null) {
+                    if (this.body.isFinished()) {
+                        this.deadline.disarm();
+                    } else {
+                        this.body.deadline = this.deadline;
+                        this.deadline.arm(ConnectionPhase.BODY, NanoHTTPD.this.bodyTimeout, NanoHTTPD.this.options.getMinBodyRate());
+                    }
+                }
+
+                this.cookies = new CookieHandler(this.headers);
+
+                if (this.requestCount == 0 && isUpgradeToHttp2()) {
+                    // h2c upgrade: this request is answered as stream 1
+                    Http2Connection connection = newHttp2Connection();
+                    try {
+                        connection.applySettings(this.headers.get("http2-settings"));
+                    } catch (ProtocolException e) {
+                        throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: " + e.getMessage());
+                    }
+                    this.outputStream.write(NanoHTTPD.SWITCHING_PROTOCOLS_RESPONSE);
+                    this.outputStream.flush();
+                    // stream 1 is admitted on its own
+                    NanoHTTPD.this.requestScheduler.release(admitted);
+                    admitted = null;
+                    serveHttp2(connection, this);
+                }
+
+                String connection = this.headers.get("connection");
+                boolean keepAlive = protocolVersion.equals("HTTP/1.1") && (connection == null || !connection.matches("(?i).*close.*"));
+                this.requestCount++;
+                int maxRequests = NanoHTTPD.this.options.getMaxRequestsPerConnection();
+                if (maxRequests > 0 && this.requestCount >= maxRequests) {
+                    keepAlive = false;
+                }
+
+                // A client that expects 100 Continue holds the body back
+                // until the request has passed its preconditions
+                Response rejection = null;
+                String expect = this.headers.get("expect");
+                if (expect != null && protocolVersion.equals("HTTP/1.1")) {
+                    if (!"100-continue".equalsIgnoreCase(expect.trim())) {
+                        throw new ResponseException(Response.Status.EXPECTATION_FAILED, "EXPECTATION FAILED: " + expect);
+                    }
+                    rejection = checkPreconditions(this);
+                    if (rejection == null) {
+                        this.outputStream.write(NanoHTTPD.CONTINUE_RESPONSE);
+                        this.outputStream.flush();
+                    } else {
+                        // the body may follow anyway
+                        keepAlive = false;
+                    }
+                }
+
+                // Ok, now do the serve()
+                r = rejection != null ? rejection : serve(this);
+
+                // Skip what the handler left of the body, so the next request
+                // starts where it should
+                if (keepAlive && !this.body.isFinished()) {
+                    try {
+                        keepAlive = this.body.discard(HTTPSession.MAX_DISCARD_SIZE);
+                    } catch (IOException e) {
+                        keepAlive = false;
+                    }
+                }
+
+                if (r == null) {
+                    throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
+                } else {
+                    String acceptEncoding = this.headers.get("accept-encoding");
+                    this.cookies.unloadQueue(r);
+                    r.setRequestMethod(this.method);
+                    r.setGzipEncoding(useGzipWhenAccepted(r) && acceptEncoding != null && acceptEncoding.contains("gzip"));
+                    if (NanoHTTPD.this.draining) {
+                        keepAlive = false;
+                    }
+                    r.setKeepAlive(keepAlive);
+                    // Hold the response back while the next request is
+                    // already waiting, so pipelined responses go out in one
+                    // write
+                    boolean pipelined = keepAlive && !"close".equalsIgnoreCase(r.getHeader("connection")) && findHeaderEnd(in.buf, in.pos, in.limit) > 0;
+                    r.send(this.outputStream, this.channel, !pipelined);
+                }
+                if (!keepAlive || "close".equalsIgnoreCase(r.getHeader("connection"))) {
+                    if (!this.body.isFinished()) {
+                        lingeringClose();
+                    }
+                    throw new SocketException("NanoHttpd Shutdown");
+                }
+            } catch (SocketException e) {
+                // throw it out to close socket object (finalAccept)
+                throw e;
+            } catch (SocketTimeoutException ste) {
+                // treat socket timeouts the same way we treat socket exceptions
+                // i.e. close the stream & finalAccept object by throwing the
+                // exception up the call stack.
+                throw ste;
+            } catch (IOException ioe) {
                 Response resp = newFixedLengthResponse(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+                // the connection is closed after the error
+                resp.setKeepAlive(false);
                 resp.send(this.outputStream);
+                lingeringClose();
                 safeClose(this.outputStream);
             } catch (ResponseException re) {
                 Response resp = newFixedLengthResponse(re.getStatus(), NanoHTTPD.MIME_PLAINTEXT, re.getMessage());
+                // the connection is closed after the error
+                resp.setKeepAlive(false);
                 resp.send(this.outputStream);
+                lingeringClose();
                 safeClose(this.outputStream);
             } finally {
-                safeClose(r);
-                this.tempFileManager.clear();
+                safeClose(r);
+                this.tempFileManager.clear();
+                if (admitted != null) {
+                    NanoHTTPD.this.requestScheduler.release(admitted);
+                }
+                releasePreAdmitted();
+                if (begun) {
+                    this.clientHandler.endRequest();
+                }
+            }
+        }
+
+        /**
+         * Shuts down the sending side of the connection and discards input
+         * until the client closes its side or a short timeout passes. Closing
+         * a socket with unread input makes the kernel reset the connection,
+         * which can destroy the last response before the client has read it.
+         */
+        private void lingeringClose() {
+            if (!(this.channel instanceof SocketChannel) || this.socket instanceof UnixDomainServerSocket.Connection) {
+                // a Unix domain socket delivers what was sent before the
+                // reset, and its reads could not be bounded by a timeout
+                return;
+            }
+            Socket socket = this.socket;
+            if (this.deadline != null) {
+                // bounded by the linger timeout instead
+                this.deadline.disarm();
+            }
+            byte[] buf = BufferPool.getDefault().acquire(HTTPSession.BUFSIZE);
+            try {
+                socket.shutdownOutput();
+                socket.setSoTimeout(HTTPSession.LINGER_TIMEOUT);
+                long deadline = System.currentTimeMillis() + HTTPSession.LINGER_TIMEOUT;
+                while (System.currentTimeMillis() < deadline && this.inputStream.read(buf, 0, buf.length) != -1) {
+                    continue;
+                }
+            } catch (IOException ignored) {
+                // closing anyway
+            } finally {
+                BufferPool.getDefault().release(buf);
+            }
+        }
+
+        /**
+         * Find the byte positions where multipart boundaries start. This reads
+         * a large block at a time and uses a temporary buffer to optimize
+         * (memory mapped) file access.
+         */
+        private int[] getBoundaryPositions(ByteBuffer b, byte[] boundary) {
+            int[] res = new int[0];
+            if (b.remaining() < boundary.length) {
+                return res;
+            }
+
+            int search_window_pos = 0;
+            byte[] search_window = new byte[4 * 1024 + boundary.length];
+
+            int first_fill = (b.remaining() < search_window.length) ? b.remaining() : search_window.length;
+            b.get(search_window, 0, first_fill);
+            int new_bytes = first_fill - boundary.length;
+
+            do {
+                // Search the search_window
+                for (int j = 0; j < new_bytes; j++) {
+                    for (int i = 0; i < boundary.length; i++) {
+                        if (search_window[j + i] != boundary[i])
+                            break;
+                        if (i == boundary.length - 1) {
+                            // Match found, add it to results
+                            int[] new_res = new int[res.length + 1];
+                            System.arraycopy(res, 0, new_res, 0, res.length);
+                            new_res[res.length] = search_window_pos + j;
+                            res = new_res;
+                        }
+                    }
+                }
+                search_window_pos += new_bytes;
+
+                // Copy the end of the buffer to the start
+                System.arraycopy(search_window, search_window.length - boundary.length, search_window, 0, boundary.length);
+
+                // Refill search_window
+                new_bytes = search_window.length - boundary.length;
+                new_bytes = (b.remaining() < new_bytes) ? b.remaining() : new_bytes;
+                b.get(search_window, boundary.length, new_bytes);
+            } while (new_bytes > 0);
+            return res;
+        }
+
+        @Override
+        public CookieHandler getCookies() {
+            return this.cookies;
+        }
+
+        @Override
+        public final Map<String, String> getHeaders() {
+            return this.headers;
+        }
+
+        /**
+         * @return the body of the current request, which ends where the
+         *         request does.
+         */
+        @Override
+        public final InputStream getInputStream() {
+            return this.body;
+        }
+
+        @Override
+        public final Method getMethod() {
+            return this.method;
+        }
+
+        @Override
+        public final Map<String, String> getParms() {
+            return this.parms;
+        }
+
+        @Override
+        public String getQueryParameterString() {
+            return this.queryParameterString;
+        }
+
+        private RandomAccessFile getTmpBucket() {
+            try {
+                TempFile tempFile = this.tempFileManager.createTempFile(null);
+                return new RandomAccessFile(tempFile.getName(), "rw");
+            } catch (Exception e) {
+                throw new Error(e); // we won't recover, so throw an error
+            }
+        }
+
+        @Override
+        public final String getUri() {
+            return this.uri;
+        }
+
+        /**
+         * Deduce body length in bytes from the "content-length" header.
+         * Chunked bodies have no length before they have been read, for them
+         * -1 is returned.
+         */
+        @Override
+        public long getBodySize() {
+            if (isChunked() || this.streamed) {
+                return -1;
+            } else if (this.headers.containsKey("content-length")) {
+                return Long.parseLong(this.headers.get("content-length").trim());
+            }
+            return 0;
+        }
+
+        private boolean isChunked() {
+            String transferEncoding = this.headers.get("transfer-encoding");
+            return transferEncoding != null && !"identity".equalsIgnoreCase(transferEncoding.trim());
+        }
+
+        /**
+         * Sets up the decoder for the request body, which takes its framing
+         * from the Transfer-Encoding header, else from Content-Length.
+         */
+        private BodyInputStream createBody() throws ResponseException {
+            if (isChunked()) {
+                String transferEncoding = this.headers.get("transfer-encoding");
+                if (!"chunked".equalsIgnoreCase(transferEncoding.trim())) {
+                    throw new ResponseException(Response.Status.NOT_IMPLEMENTED, "NOT IMPLEMENTED: Transfer-Encoding " + transferEncoding);
+                }
+                return new BodyInputStream(this.inputStream, -1, true);
+            }
+            long size;
+            try {
+                size = getBodySize();
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+            if (size < 0) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Invalid Content-Length " + this.headers.get("content-length"));
+            }
+            return new BodyInputStream(this.inputStream, size, false);
+        }
+
+        @Override
+        public void parseBody(Map<String, String> files) throws IOException, ResponseException {
+            RandomAccessFile randomAccessFile = null;
+            try {
+                long size = getBodySize();
+                ByteArrayOutputStream baos = null;
+                DataOutput request_data_output = null;
+
+                // Store the request in memory or a file, depending on size
+                if (size >= 0 && size < MEMORY_STORE_LIMIT) {
+                    baos = new ByteArrayOutputStream();
+                    request_data_output = new DataOutputStream(baos);
+                } else {
+                    randomAccessFile = getTmpBucket();
+                    request_data_output = randomAccessFile;
+                }
+
+                // Read all the body and write it to request_data_output
+                byte[] buf = BufferPool.getDefault().acquire(REQUEST_BUFFER_LEN);
+                try {
+                    int read;
+                    while ((read = this.body.read(buf, 0, buf.length)) > 0) {
+                        request_data_output.write(buf, 0, read);
+                    }
+                } finally {
+                    BufferPool.getDefault().release(buf);
+                }
+
+                ByteBuffer fbuf = null;
+                if (baos != null) {
+                    fbuf = ByteBuffer.wrap(baos.toByteArray(), 0, baos.size());
+                } else {
+                    fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+                    randomAccessFile.seek(0);
+                }
+
+                // If the method is POST, there may be parameters
+                // in data section, too, read it:
+                if (Method.POST.equals(this.method)) {
+                    String contentType = "";
+                    String contentTypeHeader = this.headers.get("content-type");
+
+                    StringTokenizer st = null;
+                    if (contentTypeHeader != null) {
+                        st = new StringTokenizer(contentTypeHeader, ",; ");
+                        if (st.hasMoreTokens()) {
+                            contentType = st.nextToken();
+                        }
+                    }
+
+                    if ("multipart/form-data".equalsIgnoreCase(contentType)) {
+                        // Handle multipart/form-data
+                        if (!st.hasMoreTokens()) {
+                            throw new ResponseException(Response.Status.BAD_REQUEST,
+                                    "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
+                        }
+
+                        String boundaryStartString = "boundary=";
+                        int boundaryContentStart = contentTypeHeader.indexOf(boundaryStartString) + boundaryStartString.length();
+                        String boundary = contentTypeHeader.substring(boundaryContentStart, contentTypeHeader.length());
+                        if (boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                            boundary = boundary.substring(1, boundary.length() - 1);
+                        }
+
+                        decodeMultipartFormData(boundary, fbuf, this.parms, files);
+                    } else {
+                        byte[] postBytes = new byte[fbuf.remaining()];
+                        fbuf.get(postBytes);
+                        String postLine = new String(postBytes).trim();
+                        // Handle application/x-www-form-urlencoded
+                        if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType)) {
+                            decodeParms(postLine, this.parms);
+                        } else if (postLine.length() != 0) {
+                            // Special case for raw POST data => create a
+                            // special files entry "postData" with raw content
+                            // data
+                            files.put("postData", postLine);
+                        }
+                    }
+                } else if (Method.PUT.equals(this.method)) {
+                    files.put("content", saveTmpFile(fbuf, 0, fbuf.limit(), null));
+                }
+            } finally {
+                safeClose(randomAccessFile);
+            }
+        }
+
+        /**
+         * Retrieves the content of a sent file and saves it to a temporary
+         * file. The full path to the saved file is returned.
+         */
+        private String saveTmpFile(ByteBuffer b, int offset, int len, String filename_hint) {
+            String path = "";
+            if (len > 0) {
+                FileOutputStream fileOutputStream = null;
+                try {
+                    TempFile tempFile = this.tempFileManager.createTempFile(filename_hint);
+                    ByteBuffer src = b.duplicate();
+                    fileOutputStream = new FileOutputStream(tempFile.getName());
+                    FileChannel dest = fileOutputStream.getChannel();
+                    src.position(offset).limit(offset + len);
+                    dest.write(src.slice());
+                    path = tempFile.getName();
+                } catch (Exception e) { // Catch exception if any
+                    throw new Error(e); // we won't recover, so throw an error
+                } finally {
+                    safeClose(fileOutputStream);
+                }
+            }
+            return path;
+        }
+    }
+
+    /**
+     * Handles one session, i.e. parses the HTTP request and returns the
+     * response.
+     */
+    public interface IHTTPSession {
+
+        void execute() throws IOException;
+
+        CookieHandler getCookies();
+
+        Map<String, String> getHeaders();
+
+        /**
+         * @return the request body. It ends with the body, whether that is
+         *         delimited by Content-Length or chunked transfer coding.
+         */
+        InputStream getInputStream();
+
+        /**
+         * @return the length of the request body, or -1 if it is sent chunked
+         *         and therefore unknown.
+         */
+        long getBodySize();
+
+        Method getMethod();
+
+        Map<String, String> getParms();
+
+        String getQueryParameterString();
+
+        /**
+         * @return the path part of the URL.
+         */
+        String getUri();
+
+        /**
+         * Adds the files in the request body to the files map.
+         * 
+         * @param files
+         *            map to modify
+         */
+        void parseBody(Map<String, String> files) throws IOException, ResponseException;
+    }
+
+    /**
+     * HTTP Request methods, with the ability to decode a <code>String</code>
+     * back to its enum value.
+     */
+    public enum Method {
+        GET,
+        PUT,
+        POST,
+        DELETE,
+        HEAD,
+        OPTIONS,
+        TRACE,
+        CONNECT,
+        PATCH,
+
+        PROPFIND,
+        MKCOL,
+        COPY,
+        MOVE,
+        LOCK,
+        UNLOCK;
+
+        private static final Method[] METHODS = values();
+
+        private static final byte[][] METHOD_NAMES = new byte[METHODS.length][];
+
+        static {
+            for (int i = 0; i < METHODS.length; i++) {
+                METHOD_NAMES[i] = METHODS[i].name().getBytes();
+            }
+        }
+
+        static Method lookup(String method) {
+            for (Method m : METHODS) {
+                if (m.name().equalsIgnoreCase(method)) {
+                    return m;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Resolves a method token straight from the request buffer, ignoring
+         * case like {@link #lookup(String)}.
+         */
+        static Method lookup(byte[] buf, int off, int len) {
+            for (int i = 0; i < METHODS.length; i++) {
+                byte[] name = METHOD_NAMES[i];
+                if (name.length == len && equalsIgnoreCaseAscii(name, buf, off)) {
+                    return METHODS[i];
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * HTTP response. Return one of these from serve().
+     */
+    public static class Response implements Closeable {
+
+        public interface IStatus {
+
+            String getDescription();
+
+            int getRequestStatus();
+        }
+
+        /**
+         * Some HTTP response status codes
+         */
+        public enum Status implements IStatus {
+            SWITCH_PROTOCOL(101, "Switching Protocols"),
+            OK(200, "OK"),
+            CREATED(201, "Created"),
+            ACCEPTED(202, "Accepted"),
+            NO_CONTENT(204, "No Content"),
+            PARTIAL_CONTENT(206, "Partial Content"),
+            MULTI_STATUS(207, "Multi-Status"),
+            REDIRECT(301, "Moved Permanently"),
+            NOT_MODIFIED(304, "Not Modified"),
+            BAD_REQUEST(400, "Bad Request"),
+            UNAUTHORIZED(401, "Unauthorized"),
+            FORBIDDEN(403, "Forbidden"),
+            NOT_FOUND(404, "Not Found"),
+            METHOD_NOT_ALLOWED(405, "Method Not Allowed"),
+            NOT_ACCEPTABLE(406, "Not Acceptable"),
+            REQUEST_TIMEOUT(408, "Request Timeout"),
+            CONFLICT(409, "Conflict"),
+            PRECONDITION_FAILED(412, "Precondition Failed"),
+            PAYLOAD_TOO_LARGE(413, "Payload Too Large"),
+            RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"),
+            EXPECTATION_FAILED(417, "Expectation Failed"),
+            REQUEST_HEADER_FIELDS_TOO_LARGE(431, "Request Header Fields Too Large"),
+            INTERNAL_ERROR(500, "Internal Server Error"),
+            NOT_IMPLEMENTED(501, "Not Implemented"),
+            SERVICE_UNAVAILABLE(503, "Service Unavailable"),
+            UNSUPPORTED_HTTP_VERSION(505, "HTTP Version Not Supported"),
+            INSUFFICIENT_STORAGE(507, "Insufficient Storage");
+
+            private final int requestStatus;
+
+            private final String description;
+
+            Status(int requestStatus, String description) {
+                this.requestStatus = requestStatus;
+                this.description = description;
+            }
+
+            @Override
+            public String getDescription() {
+                return "" + this.requestStatus + " " + this.description;
+            }
+
+            @Override
+            public int getRequestStatus() {
+                return this.requestStatus;
+            }
+
+        }
+
+        /**
+         * Output stream that will automatically send every write to the wrapped
+         * OutputStream according to chunked transfer:
+         * http://www.w3.org/Protocols/rfc2616/rfc2616-sec3.html#sec3.6.1
+         * <p>
+         * Writes are collected in a pooled buffer and sent as chunks of
+         * {@link #CHUNK_SIZE} bytes. Room for the size line is kept free at the
+         * start of the buffer, so each chunk goes out with one write and no
+         * allocation.
+         */
+        private static class ChunkedOutputStream extends FilterOutputStream {
+
+            private static final int BUFFER_SIZE = 16 * 1024;
+
+            /** Eight hex digits and CRLF. */
+            private static final int HEADER_SPACE = 10;
+
+            /** Leaves room for the CRLF after the data and the last chunk. */
+            private static final int CHUNK_SIZE = BUFFER_SIZE - HEADER_SPACE - 7;
+
+            private static final byte[] HEX_DIGITS = {
+                '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+            };
+
+            private byte[] buf;
+
+            private int count = HEADER_SPACE;
+
+            public ChunkedOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            private byte[] buffer() {
+                if (this.buf == null) {
+                    this.buf = BufferPool.getDefault().acquire(BUFFER_SIZE);
+                }
+                return this.buf;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                buffer()[this.count++] = (byte) b;
+                if (this.count == HEADER_SPACE + CHUNK_SIZE) {
+                    writeChunk(false);
+                }
+            }
+
+            @Override
+            public void write(byte[] b) throws IOException {
+                write(b, 0, b.length);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                byte[] buf = buffer();
+                while (len > 0) {
+                    int n = Math.min(len, HEADER_SPACE + CHUNK_SIZE - this.count);
+                    System.arraycopy(b, off, buf, this.count, n);
+                    this.count += n;
+                    off += n;
+                    len -= n;
+                    if (this.count == HEADER_SPACE + CHUNK_SIZE) {
+                        writeChunk(false);
+                    }
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (this.count > HEADER_SPACE) {
+                    writeChunk(false);
+                }
+                out.flush();
+            }
+
+            /**
+             * Sends what is left followed by the last chunk.
+             */
+            public void finish() throws IOException {
+                writeChunk(true);
+            }
+
+            /**
+             * Gives the buffer back to the pool.
+             */
+            public void release() {
+                if (this.buf != null) {
+                    BufferPool.getDefault().release(this.buf);
+                    this.buf = null;
+                }
+            }
+
+            private void writeChunk(boolean last) throws IOException {
+                byte[] buf = buffer();
+                int length = this.count - HEADER_SPACE;
+                int start = HEADER_SPACE;
+                int end = this.count;
+                if (length > 0) {
+                    buf[--start] = '\n';
+                    buf[--start] = '\r';
+                    int size = length;
+                    do {
+                        buf[--start] = HEX_DIGITS[size & 0xf];
+                        size >>>= 4;
+                    } while (size != 0);
+                    buf[end++] = '\r';
+                    buf[end++] = '\n';
+                }
+                if (last) {
+                    buf[end++] = '0';
+                    buf[end++] = '\r';
+                    buf[end++] = '\n';
+                    buf[end++] = '\r';
+                    buf[end++] = '\n';
+                }
+                this.count = HEADER_SPACE;
+                if (end > start) {
+                    out.write(buf, start, end - start);
+                }
+            }
+        }
+
+        /**
+         * Output stream that gzip-compresses into memory and forwards the
+         * compressed bytes to the wrapped OutputStream. Unlike writing through
+         * a GZIPOutputStream directly, the socket write happens outside of the
+         * compressor's monitor, so virtual threads are not pinned while
+         * blocked on a slow client.
+         */
+        private static class CompressingOutputStream extends FilterOutputStream {
+
+            private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+            private final GZIPOutputStream gzip;
+
+            public CompressingOutputStream(OutputStream out) throws IOException {
+                super(out);
+                this.gzip = new GZIPOutputStream(this.compressed);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                this.gzip.write(b);
+                drain();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                this.gzip.write(b, off, len);
+                drain();
+            }
+
+            public void finish() throws IOException {
+                this.gzip.finish();
+                drain();
+            }
+
+            private void drain() throws IOException {
+                if (this.compressed.size() > 0) {
+                    this.compressed.writeTo(out);
+                    this.compressed.reset();
+                }
+            }
+        }
+
+        /**
+         * Encodes the status line and header block of a response as ASCII
+         * straight into a pooled buffer, which is then written to the socket
+         * in one go. Status lines and common header lines are encoded once,
+         * the <code>Date</code> value once per second.
+         */
+        private static final class HeaderWriter {
+
+            private static final byte[] CRLF = ascii("\r\n");
+
+            private static final byte[] SEPARATOR = ascii(": ");
+
+            private static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+
+            private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+
+            private static final byte[] DATE = ascii("Date: ");
+
+            private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+
+            private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+
+            private static final byte[] CONTENT_ENCODING_GZIP = ascii("Content-Encoding: gzip\r\n");
+
+            private static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+
+            private static final byte[][] STATUS_LINES = new byte[Status.values().length][];
+
+            private static volatile long dateSecond = -1;
+
+            private static volatile byte[] dateValue;
+
+            static {
+                for (Status status : Status.values()) {
+                    STATUS_LINES[status.ordinal()] = encodeStatusLine(status);
+                }
+            }
+
+            private static byte[] ascii(String value) {
+                byte[] bytes = new byte[value.length()];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = (byte) value.charAt(i);
+                }
+                return bytes;
+            }
+
+            private static byte[] encodeStatusLine(IStatus status) {
+                try {
+                    return ("HTTP/1.1 " + status.getDescription() + " \r\n").getBytes("UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new Error(e);
+                }
+            }
+
+            /**
+             * @return the current time as an RFC 1123 date, reformatted at most
+             *         once per second.
+             */
+            private static byte[] date() {
+                long now = System.currentTimeMillis();
+                long second = now / 1000;
+                byte[] value = HeaderWriter.dateValue;
+                if (second != HeaderWriter.dateSecond || value == null) {
+                    SimpleDateFormat gmtFrmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+                    gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+                    value = ascii(gmtFrmt.format(new Date(second * 1000)));
+                    HeaderWriter.dateValue = value;
+                    HeaderWriter.dateSecond = second;
+                }
+                return value;
+            }
+
+            private byte[] buf = BufferPool.getDefault().acquire(1024);
+
+            private int count;
+
+            private void ensure(int capacity) {
+                if (this.count + capacity > this.buf.length) {
+                    byte[] grown = BufferPool.getDefault().acquire(Math.max(this.buf.length * 2, this.count + capacity));
+                    System.arraycopy(this.buf, 0, grown, 0, this.count);
+                    BufferPool.getDefault().release(this.buf);
+                    this.buf = grown;
+                }
+            }
+
+            HeaderWriter write(byte[] bytes) {
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, this.buf, this.count, bytes.length);
+                this.count += bytes.length;
+                return this;
+            }
+
+            HeaderWriter write(String value) {
+                int length = value.length();
+                ensure(length);
+                for (int i = 0; i < length; i++) {
+                    char c = value.charAt(i);
+                    if (c >= 0x80) {
+                        try {
+                            return write(value.substring(i).getBytes("UTF-8"));
+                        } catch (UnsupportedEncodingException e) {
+                            throw new Error(e);
+                        }
+                    }
+                    this.buf[this.count++] = (byte) c;
+                }
+                return this;
+            }
+
+            HeaderWriter write(long value) {
+                if (value < 0) {
+                    return write(Long.toString(value));
+                }
+                int digits = 1;
+                for (long rest = value / 10; rest > 0; rest /= 10) {
+                    digits++;
+                }
+                ensure(digits);
+                for (int i = this.count + digits - 1; i >= this.count; i--) {
+                    this.buf[i] = (byte) ('0' + value % 10);
+                    value /= 10;
+                }
+                this.count += digits;
+                return this;
+            }
+
+            HeaderWriter statusLine(IStatus status) {
+                if (status instanceof Status) {
+                    return write(STATUS_LINES[((Status) status).ordinal()]);
+                }
+                return write(encodeStatusLine(status));
+            }
+
+            HeaderWriter header(byte[] name, String value) {
+                return write(name).write(value).write(CRLF);
+            }
+
+            HeaderWriter header(String name, String value) {
+                return write(name).write(SEPARATOR).write(value).write(CRLF);
+            }
+
+            void writeTo(OutputStream outputStream) throws IOException {
+                outputStream.write(this.buf, 0, this.count);
+            }
+
+            void release() {
+                BufferPool.getDefault().release(this.buf);
+                this.buf = null;
+            }
+        }
+
+        /**
+         * File bodies smaller than this are copied through the session
+         * buffer so that they leave together with the header; larger ones
+         * are transferred by the kernel.
+         */
+        private static final long TRANSFER_THRESHOLD = 64 * 1024;
+
+        /**
+         * HTTP status code after processing, e.g. "200 OK", Status.OK
+         */
+        private IStatus status;
+
+        /**
+         * MIME type of content, e.g. "text/html"
+         */
+        private String mimeType;
+
+        /**
+         * Data of the response, may be null.
+         */
+        private InputStream data;
+
+        /**
+         * File the data is read from if this is a file response.
+         */
+        private FileChannel file;
+
+        private long fileOffset;
+
+        private long contentLength;
+
+        /**
+         * Headers for the HTTP response. Use addHeader() to add lines.
+         */
+        private final Map<String, String> header = new HashMap<String, String>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public String put(String key, String value) {
+                String lowerCaseKey = key == null ? null : key.toLowerCase(Locale.US);
+                String previousKey = Response.this.headerNames.put(lowerCaseKey, key);
+                if (previousKey != null && !previousKey.equals(key)) {
+                    super.remove(previousKey);
+                }
+                Response.this.lowerCaseHeader.put(lowerCaseKey, value);
+                return super.put(key, value);
+            }
+        };
+
+        /**
+         * The response headers keyed by lower-cased name, for case-insensitive
+         * lookups.
+         */
+        private final Map<String, String> lowerCaseHeader = new HashMap<String, String>();
+
+        private final Map<String, String> headerNames = new HashMap<String, String>();
+
+        /**
+         * The request method that spawned this response.
+         */
+        private Method requestMethod;
+
+        /**
+         * Use chunkedTransfer
+         */
+        private boolean chunkedTransfer;
+
+        private boolean encodeAsGzip;
+
+        private boolean keepAlive;
+
+        /**
+         * Creates a fixed length response if totalBytes>=0, otherwise chunked.
+         */
+        protected Response(IStatus status, String mimeType, InputStream data, long totalBytes) {
+            this.status = status;
+            this.mimeType = mimeType;
+            if (data == null) {
+                this.data = new ByteArrayInputStream(new byte[0]);
+                this.contentLength = 0L;
+            } else {
+                this.data = data;
+                this.contentLength = totalBytes;
+            }
+            this.chunkedTransfer = this.contentLength < 0;
+            keepAlive = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.data != null) {
+                this.data.close();
+            }
+        }
+
+        /**
+         * Adds given line to the header.
+         */
+        public void addHeader(String name, String value) {
+            this.header.put(name, value);
+        }
+
+        public InputStream getData() {
+            return this.data;
+        }
+
+        public String getHeader(String name) {
+            return this.lowerCaseHeader.get(name.toLowerCase(Locale.US));
+        }
+
+        public String getMimeType() {
+            return this.mimeType;
+        }
+
+        public Method getRequestMethod() {
+            return this.requestMethod;
+        }
+
+        public IStatus getStatus() {
+            return this.status;
+        }
+
+        public void setGzipEncoding(boolean encodeAsGzip) {
+            this.encodeAsGzip = encodeAsGzip;
+        }
+
+        public void setKeepAlive(boolean useKeepAlive) {
+            this.keepAlive = useKeepAlive;
+        }
+
+        /**
+         * Sends given response to the socket.
+         */
+        protected void send(OutputStream outputStream) {
+            send(outputStream, null, true);
+        }
+
+        /**
+         * Sends given response to the socket. File responses are handed to the
+         * kernel with {@link FileChannel#transferTo} when the socket channel
+         * is given and the body needs neither chunking nor compression. The
+         * stream is flushed at the end unless the caller has more to send.
+         */
+        void send(OutputStream outputStream, WritableByteChannel channel, boolean flush) {
+            String mime = this.mimeType;
+            HeaderWriter writer = null;
+            try {
+                if (this.status == null) {
+                    throw new Error("sendResponse(): Status can't be null.");
+                }
+                writer = new HeaderWriter();
+                writer.statusLine(this.status);
+
+                if (mime != null) {
+                    writer.header(HeaderWriter.CONTENT_TYPE, mime);
+                }
+
+                if (!this.lowerCaseHeader.containsKey("date")) {
+                    writer.write(HeaderWriter.DATE).write(HeaderWriter.date()).write(HeaderWriter.CRLF);
+                }
+
+                for (Map.Entry<String, String> entry : this.header.entrySet()) {
+                    writer.header(entry.getKey(), entry.getValue());
+                }
+
+                if (!this.lowerCaseHeader.containsKey("connection")) {
+                    writer.write(this.keepAlive ? HeaderWriter.CONNECTION_KEEP_ALIVE : HeaderWriter.CONNECTION_CLOSE);
+                }
+
+                String contentLength = this.lowerCaseHeader.get("content-length");
+                if (contentLength != null) {
+                    encodeAsGzip = false;
+                }
+
+                if (encodeAsGzip) {
+                    writer.write(HeaderWriter.CONTENT_ENCODING_GZIP);
+                    setChunkedTransfer(true);
+                }
+
+                long pending = this.data != null ? this.contentLength : 0;
+                if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
+                    writer.write(HeaderWriter.TRANSFER_ENCODING_CHUNKED);
+                } else if (!encodeAsGzip) {
+                    if (contentLength == null) {
+                        writer.write(HeaderWriter.CONTENT_LENGTH).write(pending).write(HeaderWriter.CRLF);
+                    } else {
+                        try {
+                            pending = Long.parseLong(contentLength);
+                        } catch (NumberFormatException ignored) {
+                            // keep the length of the data
+                        }
+                    }
+                }
+                writer.write(HeaderWriter.CRLF);
+                writer.writeTo(outputStream);
+                writer.release();
+                writer = null;
+                if (this.requestMethod == Method.HEAD) {
+                    // the header describes the body, which is not sent
+                } else if (this.file != null && channel != null && pending >= TRANSFER_THRESHOLD && !this.chunkedTransfer && !encodeAsGzip) {
+                    outputStream.flush();
+                    transferBody(outputStream, channel, pending);
+                } else {
+                    sendBodyWithCorrectTransferAndEncoding(outputStream, pending);
+                }
+                if (flush) {
+                    outputStream.flush();
+                }
+                safeClose(this.data);
+            } catch (IOException ioe) {
+                NanoHTTPD.LOG.log(Level.SEVERE, "Could not send response to the client", ioe);
+            } finally {
+                if (writer != null) {
+                    writer.release();
+                }
+            }
+        }
+
+        /**
+         * Sends the response on an HTTP/2 stream. The stream frames the body,
+         * so it is neither chunked nor compressed.
+         */
+        void send(Http2Connection.Stream stream) throws IOException {
+            if (this.status == null) {
+                throw new Error("sendResponse(): Status can't be null.");
+            }
+            List<String> fields = new ArrayList<String>();
+            fields.add(":status");
+            fields.add(Integer.toString(this.status.getRequestStatus()));
+            if (this.mimeType != null) {
+                fields.add("content-type");
+                fields.add(this.mimeType);
+            }
+            if (!this.lowerCaseHeader.containsKey("date")) {
+                byte[] date = HeaderWriter.date();
+                fields.add("date");
+                fields.add(decodeText(date, 0, date.length));
+            }
+            for (Map.Entry<String, String> entry : this.lowerCaseHeader.entrySet()) {
+                if (!Http2Connection.isConnectionHeader(entry.getKey())) {
+                    fields.add(entry.getKey());
+                    fields.add(entry.getValue());
+                }
+            }
+            long pending = this.chunkedTransfer ? -1 : this.data != null ? this.contentLength : 0;
+            String contentLength = this.lowerCaseHeader.get("content-length");
+            if (contentLength != null) {
+                try {
+                    pending = Long.parseLong(contentLength);
+                } catch (NumberFormatException ignored) {
+                    // keep the length of the data
+                }
+            } else if (pending >= 0) {
+                fields.add("content-length");
+                fields.add(Long.toString(pending));
+            }
+            if (this.requestMethod == Method.HEAD || pending == 0) {
+                stream.writeHeaders(fields, true);
+            } else {
+                stream.writeHeaders(fields, false);
+                sendBody(stream, pending);
+            }
+            safeClose(this.data);
+        }
+
+        /**
+         * Sends the body as DATA frames, ending the stream with the last
+         * one. A body that ends short of its length leaves the stream open
+         * to be reset.
+         */
+        private void sendBody(Http2Connection.Stream stream, long pending) throws IOException {
+            int BUFFER_SIZE = 16 * 1024;
+            byte[] buff = BufferPool.getDefault().acquire(BUFFER_SIZE);
+            try {
+                boolean sendEverything = pending == -1;
+                while (pending > 0 || sendEverything) {
+                    int read = this.data.read(buff, 0, sendEverything ? BUFFER_SIZE : (int) Math.min(pending, BUFFER_SIZE));
+                    if (read <= 0) {
+                        if (sendEverything) {
+                            stream.writeData(buff, 0, 0, true);
+                        }
+                        return;
+                    }
+                    if (!sendEverything) {
+                        pending -= read;
+                    }
+                    stream.writeData(buff, 0, read, pending == 0);
+                }
+            } finally {
+                BufferPool.getDefault().release(buff);
+            }
+        }
+
+        private void sendBodyWithCorrectTransferAndEncoding(OutputStream outputStream, long pending) throws IOException {
+            if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
+                ChunkedOutputStream chunkedOutputStream = new ChunkedOutputStream(outputStream);
+                try {
+                    sendBodyWithCorrectEncoding(chunkedOutputStream, -1);
+                    chunkedOutputStream.finish();
+                } finally {
+                    chunkedOutputStream.release();
+                }
+            } else {
+                sendBodyWithCorrectEncoding(outputStream, pending);
+            }
+        }
+
+        private void sendBodyWithCorrectEncoding(OutputStream outputStream, long pending) throws IOException {
+            if (encodeAsGzip) {
+                CompressingOutputStream gzipOutputStream = new CompressingOutputStream(outputStream);
+                sendBody(gzipOutputStream, -1);
+                gzipOutputStream.finish();
+            } else {
+                sendBody(outputStream, pending);
+            }
+        }
+
+        /**
+         * Sends the body to the specified OutputStream. The pending parameter
+         * limits the maximum amounts of bytes sent unless it is -1, in which
+         * case everything is sent.
+         * 
+         * @param outputStream
+         *            the OutputStream to send data to
+         * @param pending
+         *            -1 to send everything, otherwise sets a max limit to the
+         *            number of bytes sent
+         * @throws IOException
+         *             if something goes wrong while sending the data.
+         */
+        private void sendBody(OutputStream outputStream, long pending) throws IOException {
+            long BUFFER_SIZE = 16 * 1024;
+            byte[] buff = BufferPool.getDefault().acquire((int) BUFFER_SIZE);
+            try {
+                boolean sendEverything = pending == -1;
+                while (pending > 0 || sendEverything) {
+                    long bytesToRead = sendEverything ? BUFFER_SIZE : Math.min(pending, BUFFER_SIZE);
+                    int read = this.data.read(buff, 0, (int) bytesToRead);
+                    if (read <= 0) {
+                        break;
+                    }
+                    outputStream.write(buff, 0, read);
+                    if (!sendEverything) {
+                        pending -= read;
+                    }
+                }
+            } finally {
+                BufferPool.getDefault().release(buff);
+            }
+        }
+
+        /**
+         * Sends pending bytes of the file straight from the file to the
+         * socket channel, in pieces bounded by the write deadline and the
+         * throttle of the session.
+         */
+        private void transferBody(OutputStream outputStream, WritableByteChannel channel, long pending) throws IOException {
+            SessionOutputStream session = outputStream instanceof SessionOutputStream ? (SessionOutputStream) outputStream : null;
+            long position = this.fileOffset;
+            while (pending > 0) {
+                long sent;
+                if (session != null) {
+                    session.beginWrite();
+                    try {
+                        sent = this.file.transferTo(position, session.chunk(pending), channel);
+                    } finally {
+                        session.endWrite();
+                    }
+                } else {
+                    sent = this.file.transferTo(position, pending, channel);
+                }
+                if (sent <= 0) {
+                    // the file got shorter
+                    break;
+                }
+                if (session != null) {
+                    session.shape(sent);
+                }
+                position += sent;
+                pending -= sent;
+            }
+        }
+
+        protected static long sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, Map<String, String> header, long size) {
+            for (String headerName : header.keySet()) {
+                if (headerName.equalsIgnoreCase("content-length")) {
+                    try {
+                        return Long.parseLong(header.get(headerName));
+                    } catch (NumberFormatException ex) {
+                        return size;
+                    }
+                }
+            }
+
+            pw.print("Content-Length: " + size + "\r\n");
+            return size;
+        }
+
+        public void setChunkedTransfer(boolean chunkedTransfer) {
+            this.chunkedTransfer = chunkedTransfer;
+        }
+
+        public void setData(InputStream data) {
+            this.data = data;
+            this.file = null;
+        }
+
+        public void setMimeType(String mimeType) {
+            this.mimeType = mimeType;
+        }
+
+        public void setRequestMethod(Method requestMethod) {
+            this.requestMethod = requestMethod;
+        }
+
+        public void setStatus(IStatus status) {
+            this.status = status;
+        }
+    }
+
+    public static final class ResponseException extends Exception {
+
+        private static final long serialVersionUID = 6569838532917408380L;
+
+        private final Response.Status status;
+
+        public ResponseException(Response.Status status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public ResponseException(Response.Status status, String message, Exception e) {
+            super(message, e);
+            this.status = status;
+        }
+
+        public Response.Status getStatus() {
+            return this.status;
+        }
+    }
+
+    /**
+     * Outcome of a drain, see {@link NanoHTTPD#stop(long)}.
+     */
+    public static final class DrainResult {
+
+        private final long drained;
+
+        private final int aborted;
+
+        private DrainResult(long drained, int aborted) {
+            this.drained = drained;
+            this.aborted = aborted;
+        }
+
+        /**
+         * @return the number of requests in flight when the drain began that
+         *         finished within the drain timeout.
+         */
+        public long getDrained() {
+            return this.drained;
+        }
+
+        /**
+         * @return the number of requests in flight when the drain began that
+         *         were cut off when the drain timed out.
+         */
+        public int getAborted() {
+            return this.aborted;
+        }
+
+        @Override
+        public String toString() {
+            return "DrainResult[drained=" + this.drained + ", aborted=" + this.aborted + "]";
+        }
+    }
+
+    /**
+     * Bandwidth limits for one direction of traffic, enforced with token
+     * buckets at three levels: all connections together, each remote address
+     * and each connection. A write or read waits until every level it belongs
+     * to has tokens for its bytes. Buckets may run into debt, so a transfer
+     * that overdraws one waits for the debt to be paid off and later
+     * transfers queue behind it in the order they came.
+     * <p/>
+     * <p>
+     * Limits are in bytes per second, zero for no limit, and take effect on
+     * open connections as soon as they are changed. Rates are measured at the
+     * global and address levels whether limits are set or not.
+     * </p>
+     */
+    public static final class BandwidthShaper {
+
+        /**
+         * Largest piece of a transfer that waits for its tokens at once while
+         * a limit is set, so shaped traffic flows evenly instead of in bursts
+         * of whole buffers.
+         */
+        static final int SHAPED_CHUNK = 16 * 1024;
+
+        /**
+         * Address buckets unused for this many milliseconds are dropped.
+         */
+        private static final long ADDRESS_IDLE_TIME = 60000;
+
+        private volatile long globalLimit;
+
+        private volatile long addressLimit;
+
+        private volatile long connectionLimit;
+
+        private final TokenBucket global = new TokenBucket();
+
+        private final ConcurrentHashMap<InetAddress, TokenBucket> addresses = new ConcurrentHashMap<InetAddress, TokenBucket>();
+
+        private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+        public long getGlobalLimit() {
+            return this.globalLimit;
+        }
+
+        /**
+         * Bytes per second all connections may transfer together.
+         */
+        public void setGlobalLimit(long globalLimit) {
+            this.globalLimit = globalLimit;
+        }
+
+        public long getAddressLimit() {
+            return this.addressLimit;
+        }
+
+        /**
+         * Bytes per second the connections from one remote address may
+         * transfer together.
+         */
+        public void setAddressLimit(long addressLimit) {
+            this.addressLimit = addressLimit;
+        }
+
+        public long getConnectionLimit() {
+            return this.connectionLimit;
+        }
+
+        /**
+         * Bytes per second a single connection may transfer.
+         */
+        public void setConnectionLimit(long connectionLimit) {
+            this.connectionLimit = connectionLimit;
+        }
+
+        /**
+         * @return bytes per second transferred by all connections, averaged
+         *         since the previous call but over at least a second.
+         */
+        public long getRate() {
+            return this.global.getRate();
+        }
+
+        /**
+         * @return bytes per second transferred by the connections of each
+         *         remote address seen in the last minute, averaged as in
+         *         {@link #getRate()}.
+         */
+        public Map<InetAddress, Long> getAddressRates() {
+            sweep();
+            Map<InetAddress, Long> rates = new HashMap<InetAddress, Long>();
+            for (Map.Entry<InetAddress, TokenBucket> entry : this.addresses.entrySet()) {
+                rates.put(entry.getKey(), entry.getValue().getRate());
+            }
+            return rates;
+        }
+
+        /**
+         * @return the throttle of a new connection from the given address,
+         *         which may be null if it is not known.
+         */
+        Throttle newThrottle(InetAddress address) {
+            return new Throttle(address);
+        }
+
+        private boolean isLimited() {
+            return this.globalLimit > 0 || this.addressLimit > 0 || this.connectionLimit > 0;
+        }
+
+        private TokenBucket addressBucket(InetAddress address) {
+            sweep();
+            TokenBucket bucket = this.addresses.get(address);
+            if (bucket == null) {
+                TokenBucket created = new TokenBucket();
+                bucket = this.addresses.putIfAbsent(address, created);
+                if (bucket == null) {
+                    bucket = created;
+                }
+            }
+            return bucket;
+        }
+
+        /**
+         * Drops the address buckets that have not been used for a while, at
+         * most once per {@link #ADDRESS_IDLE_TIME}.
+         */
+        private void sweep() {
+            long now = System.currentTimeMillis();
+            long last = this.lastSweep.get();
+            if (now - last < ADDRESS_IDLE_TIME || !this.lastSweep.compareAndSet(last, now)) {
+                return;
+            }
+            Iterator<TokenBucket> buckets = this.addresses.values().iterator();
+            while (buckets.hasNext()) {
+                TokenBucket bucket = buckets.next();
+                if (now - bucket.lastUsed > ADDRESS_IDLE_TIME) {
+                    bucket.removed = true;
+                    buckets.remove();
+                }
+            }
+        }
+
+        /**
+         * The buckets one connection draws from.
+         */
+        final class Throttle {
+
+            private final InetAddress address;
+
+            private final TokenBucket connection = new TokenBucket();
+
+            /**
+             * Bucket of the remote address, looked up again once it has been
+             * swept away.
+             */
+            private TokenBucket addressBucket;
+
+            private Throttle(InetAddress address) {
+                this.address = address;
+            }
+
+            /**
+             * @return the part of a transfer of len bytes that waits for its
+             *         tokens at once.
+             */
+            long chunk(long len) {
+                return isLimited() ? Math.min(len, SHAPED_CHUNK) : len;
+            }
+
+            /**
+             * Takes tokens for the given number of bytes, waiting for them
+             * if a limit is exceeded.
+             */
+            void consume(int bytes) throws InterruptedIOException {
+                BandwidthShaper shaper = BandwidthShaper.this;
+                long now = System.nanoTime();
+                long wait = shaper.global.take(bytes, shaper.globalLimit, now);
+                if (this.address != null) {
+                    TokenBucket bucket = this.addressBucket;
+                    if (bucket == null || bucket.removed) {
+                        bucket = this.addressBucket = shaper.addressBucket(this.address);
+                    }
+                    wait = Math.max(wait, bucket.take(bytes, shaper.addressLimit, now));
+                }
+                wait = Math.max(wait, this.connection.take(bytes, shaper.connectionLimit, now));
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+                    }
+                }
             }
         }
 
         /**
-         * Find byte index separating header from body. It must be the last byte
-         * of the first two sequential new lines.
+         * Token bucket holding up to one second's worth of tokens, and
+         * counting the bytes that pass for the rate metrics.
          */
-        private int findHeaderEnd(final byte[] buf, int rlen) {
-            int splitbyte = 0;
-            while (splitbyte + 3 < rlen) {
-                if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n') {
-                    return splitbyte + 4;
+        private static final class TokenBucket {
+
+            private final AtomicLong bytes = new AtomicLong();
+
+            /**
+             * Tokens left, negative while in debt. Guarded by this.
+             */
+            private double tokens;
+
+            /**
+             * Guarded by this.
+             */
+            private boolean started;
+
+            /**
+             * Guarded by this.
+             */
+            private long lastRefill;
+
+            /**
+             * Guarded by this.
+             */
+            private long sampleTime = System.currentTimeMillis();
+
+            /**
+             * Guarded by this.
+             */
+            private long sampleBytes;
+
+            /**
+             * Guarded by this.
+             */
+            private long rate;
+
+            private volatile long lastUsed = System.currentTimeMillis();
+
+            private volatile boolean removed;
+
+            /**
+             * Takes tokens for the given number of bytes.
+             * 
+             * @return nanoseconds to wait before the bytes may pass.
+             */
+            long take(int n, long limit, long now) {
+                this.bytes.addAndGet(n);
+                this.lastUsed = System.currentTimeMillis();
+                if (limit <= 0) {
+                    return 0;
+                }
+                synchronized (this) {
+                    double capacity = Math.max(limit, SHAPED_CHUNK);
+                    if (!this.started) {
+                        // a new bucket starts full
+                        this.tokens = capacity;
+                        this.started = true;
+                    } else {
+                        this.tokens = Math.min(capacity, this.tokens + (now - this.lastRefill) * (double) limit / 1000000000);
+                    }
+                    this.lastRefill = now;
+                    this.tokens -= n;
+                    return this.tokens >= 0 ? 0 : (long) (-this.tokens * 1000000000 / limit);
                 }
-                splitbyte++;
             }
-            return 0;
+
+            synchronized long getRate() {
+                long now = System.currentTimeMillis();
+                if (now - this.sampleTime >= 1000) {
+                    long total = this.bytes.get();
+                    this.rate = (total - this.sampleBytes) * 1000 / (now - this.sampleTime);
+                    this.sampleTime = now;
+                    this.sampleBytes = total;
+                }
+                return this.rate;
+            }
         }
+    }
 
+    /**
+     * Classes of requests that are scheduled apart, see
+     * {@link NanoHTTPD#classifyRequest(Method, String)}.
+     */
+    public enum RequestClass {
         /**
-         * Find the byte positions where multipart boundaries start. This reads
-         * a large block at a time and uses a temporary buffer to optimize
-         * (memory mapped) file access.
+         * Requests a user interface waits on: listings, locks, options and
+         * the like.
          */
-        private int[] getBoundaryPositions(ByteBuffer b, byte[] boundary) {
-            int[] res = new int[0];
-            if (b.remaining() < boundary.length) {
-                return res;
-            }
+        METADATA,
+        /**
+         * Transfers of file contents.
+         */
+        BULK
+    }
 
-            int search_window_pos = 0;
-            byte[] search_window = new byte[4 * 1024 + boundary.length];
+    /**
+     * Admits requests to be served, each class through a lane of its own
+     * that limits how many requests of the class are served at once. A
+     * request over the limit waits for one of its own class to finish, so
+     * bulk transfers queue among themselves and metadata requests never wait
+     * behind them.
+     * <p/>
+     * <p>
+     * Requests are classified as soon as their header has arrived. The
+     * non-blocking engine and HTTP/2 do so before the request is handed to a
+     * worker, and a request over its limit waits without one. The blocking
+     * engine classifies on the connection's own thread, which waits in its
+     * place. On a {@link BoundedAsyncRunner}, bulk requests are never given
+     * more than three quarters of its workers, so that metadata requests
+     * always find one.
+     * </p>
+     * <p>
+     * Limits are zero for none and may be changed while the server runs; by
+     * default only bulk transfers are limited, to
+     * {@link #DEFAULT_BULK_LIMIT}. Queue depth and waiting time are kept for
+     * every class.
+     * </p>
+     */
+    public static final class RequestScheduler {
 
-            int first_fill = (b.remaining() < search_window.length) ? b.remaining() : search_window.length;
-            b.get(search_window, 0, first_fill);
-            int new_bytes = first_fill - boundary.length;
+        /**
+         * Bulk transfers served at once by default. More of them mostly
+         * compete for the same disk and uplink.
+         */
+        public static final int DEFAULT_BULK_LIMIT = 64;
 
-            do {
-                // Search the search_window
-                for (int j = 0; j < new_bytes; j++) {
-                    for (int i = 0; i < boundary.length; i++) {
-                        if (search_window[j + i] != boundary[i])
-                            break;
-                        if (i == boundary.length - 1) {
-                            // Match found, add it to results
-                            int[] new_res = new int[res.length + 1];
-                            System.arraycopy(res, 0, new_res, 0, res.length);
-                            new_res[res.length] = search_window_pos + j;
-                            res = new_res;
-                        }
-                    }
-                }
-                search_window_pos += new_bytes;
+        /**
+         * A request held back until its class has room, without a worker.
+         */
+        interface Deferred {
 
-                // Copy the end of the buffer to the start
-                System.arraycopy(search_window, search_window.length - boundary.length, search_window, 0, boundary.length);
+            /**
+             * Hands the request, admitted now, to a worker. Must not block.
+             */
+            void dispatch();
 
-                // Refill search_window
-                new_bytes = search_window.length - boundary.length;
-                new_bytes = (b.remaining() < new_bytes) ? b.remaining() : new_bytes;
-                b.get(search_window, boundary.length, new_bytes);
-            } while (new_bytes > 0);
-            return res;
+            /**
+             * Drops the request, which will not be admitted any more.
+             */
+            void cancel();
         }
 
-        @Override
-        public CookieHandler getCookies() {
-            return this.cookies;
+        private final Lane[] lanes = new Lane[RequestClass.values().length];
+
+        RequestScheduler() {
+            for (int i = 0; i < this.lanes.length; i++) {
+                this.lanes[i] = new Lane();
+            }
+            lane(RequestClass.BULK).setLimit(DEFAULT_BULK_LIMIT);
         }
 
-        @Override
-        public final Map<String, String> getHeaders() {
-            return this.headers;
+        public int getLimit(RequestClass requestClass) {
+            return lane(requestClass).getLimit();
         }
 
-        @Override
-        public final InputStream getInputStream() {
-            return this.inputStream;
+        /**
+         * Number of requests of the class that may be served at once.
+         */
+        public void setLimit(RequestClass requestClass, int limit) {
+            lane(requestClass).setLimit(limit);
         }
 
-        @Override
-        public final Method getMethod() {
-            return this.method;
+        /**
+         * @return the number of requests of the class waiting for their
+         *         turn.
+         */
+        public int getQueueDepth(RequestClass requestClass) {
+            return lane(requestClass).getWaiting();
         }
 
-        @Override
-        public final Map<String, String> getParms() {
-            return this.parms;
+        /**
+         * @return the number of requests of the class being served.
+         */
+        public int getActiveCount(RequestClass requestClass) {
+            return lane(requestClass).getActive();
         }
 
-        @Override
-        public String getQueryParameterString() {
-            return this.queryParameterString;
+        /**
+         * @return the number of requests of the class admitted so far.
+         */
+        public long getRequestCount(RequestClass requestClass) {
+            return lane(requestClass).getRequests();
         }
 
-        private RandomAccessFile getTmpBucket() {
-            try {
-                TempFile tempFile = this.tempFileManager.createTempFile(null);
-                return new RandomAccessFile(tempFile.getName(), "rw");
-            } catch (Exception e) {
-                throw new Error(e); // we won't recover, so throw an error
+        /**
+         * @return the milliseconds requests of the class have spent waiting
+         *         for their turn, in total.
+         */
+        public long getWaitTime(RequestClass requestClass) {
+            return lane(requestClass).getWaitTime();
+        }
+
+        /**
+         * Keeps a quarter of the given number of workers, at least one, out
+         * of reach of bulk requests. Zero lifts the reservation.
+         */
+        void reserveWorkers(int workers) {
+            lane(RequestClass.BULK).setCap(workers > 0 ? Math.max(1, workers - Math.max(1, workers / 4)) : 0);
+        }
+
+        /**
+         * @return true if a request of the class was admitted without
+         *         waiting.
+         */
+        boolean tryAdmit(RequestClass requestClass) {
+            return lane(requestClass).tryAdmit(null);
+        }
+
+        /**
+         * Admits a request of the class right away, or queues it to be
+         * dispatched once a request of the class ends.
+         * 
+         * @return true if the request was admitted and the caller dispatches
+         *         it.
+         */
+        boolean admitOrDefer(RequestClass requestClass, Deferred deferred) {
+            return lane(requestClass).tryAdmit(deferred);
+        }
+
+        /**
+         * Admits a request of the class, waiting for its turn if the limit
+         * of the class is reached.
+         */
+        void admit(RequestClass requestClass) throws InterruptedIOException {
+            Lane lane = lane(requestClass);
+            if (!lane.tryAdmit(null)) {
+                lane.admit();
             }
         }
 
-        @Override
-        public final String getUri() {
-            return this.uri;
+        /**
+         * Ends a request admitted before, letting the next one of its class
+         * in.
+         */
+        void release(RequestClass requestClass) {
+            lane(requestClass).release();
         }
 
         /**
-         * Deduce body length in bytes. Either from "content-length" header or
-         * read bytes.
+         * Drops every queued request, when the server stops.
          */
-        public long getBodySize() {
-            if (this.headers.containsKey("content-length")) {
-                return Integer.parseInt(this.headers.get("content-length"));
-            } else if (this.splitbyte < this.rlen) {
-                return this.rlen - this.splitbyte;
+        void cancelDeferred() {
+            for (Lane lane : this.lanes) {
+                lane.cancelDeferred();
             }
-            return 0;
         }
 
-        @Override
-        public void parseBody(Map<String, String> files) throws IOException, ResponseException {
-            RandomAccessFile randomAccessFile = null;
-            try {
-                long size = getBodySize();
-                ByteArrayOutputStream baos = null;
-                DataOutput request_data_output = null;
+        private Lane lane(RequestClass requestClass) {
+            return this.lanes[requestClass.ordinal()];
+        }
 
-                // Store the request in memory or a file, depending on size
-                if (size < MEMORY_STORE_LIMIT) {
-                    baos = new ByteArrayOutputStream();
-                    request_data_output = new DataOutputStream(baos);
-                } else {
-                    randomAccessFile = getTmpBucket();
-                    request_data_output = randomAccessFile;
+        private static final class Lane {
+
+            private final ReentrantLock lock = new ReentrantLock();
+
+            private final Condition turn = this.lock.newCondition();
+
+            private final Queue<Queued> deferred = new ArrayDeque<Queued>();
+
+            private int limit;
+
+            private int cap;
+
+            private int active;
+
+            private int waiting;
+
+            private long requests;
+
+            private long waitNanos;
+
+            int getLimit() {
+                this.lock.lock();
+                try {
+                    return this.limit;
+                } finally {
+                    this.lock.unlock();
                 }
+            }
 
-                // Read all the body and write it to request_data_output
-                byte[] buf = new byte[REQUEST_BUFFER_LEN];
-                while (this.rlen >= 0 && size > 0) {
-                    this.rlen = this.inputStream.read(buf, 0, (int) Math.min(size, REQUEST_BUFFER_LEN));
-                    size -= this.rlen;
-                    if (this.rlen > 0) {
-                        request_data_output.write(buf, 0, this.rlen);
-                    }
+            void setLimit(int limit) {
+                this.lock.lock();
+                try {
+                    this.limit = limit;
+                } finally {
+                    this.lock.unlock();
                 }
+                admitDeferred();
+            }
 
-                ByteBuffer fbuf = null;
-                if (baos != null) {
-                    fbuf = ByteBuffer.wrap(baos.toByteArray(), 0, baos.size());
-                } else {
-                    fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
-                    randomAccessFile.seek(0);
+            void setCap(int cap) {
+                this.lock.lock();
+                try {
+                    this.cap = cap;
+                } finally {
+                    this.lock.unlock();
                 }
+                admitDeferred();
+            }
 
-                // If the method is POST, there may be parameters
-                // in data section, too, read it:
-                if (Method.POST.equals(this.method)) {
-                    String contentType = "";
-                    String contentTypeHeader = this.headers.get("content-type");
+            int getWaiting() {
+                this.lock.lock();
+                try {
+                    return this.waiting + this.deferred.size();
+                } finally {
+                    this.lock.unlock();
+                }
+            }
 
-                    StringTokenizer st = null;
-                    if (contentTypeHeader != null) {
-                        st = new StringTokenizer(contentTypeHeader, ",; ");
-                        if (st.hasMoreTokens()) {
-                            contentType = st.nextToken();
+            int getActive() {
+                this.lock.lock();
+                try {
+                    return this.active;
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+
+            long getRequests() {
+                this.lock.lock();
+                try {
+                    return this.requests;
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+
+            long getWaitTime() {
+                this.lock.lock();
+                try {
+                    return this.waitNanos / 1000000;
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+
+            private boolean isFull() {
+                return this.limit > 0 && this.active >= this.limit || this.cap > 0 && this.active >= this.cap;
+            }
+
+            /**
+             * @param deferred
+             *            queued if the request cannot be admitted now, may be
+             *            null.
+             */
+            boolean tryAdmit(RequestScheduler.Deferred deferred) {
+                this.lock.lock();
+                try {
+                    // requests already waiting go first
+                    if (this.waiting > 0 || !this.deferred.isEmpty() || isFull()) {
+                        if (deferred != null) {
+                            this.deferred.add(new Queued(deferred));
                         }
+                        return false;
                     }
+                    this.active++;
+                    this.requests++;
+                    return true;
+                } finally {
+                    this.lock.unlock();
+                }
+            }
 
-                    if ("multipart/form-data".equalsIgnoreCase(contentType)) {
-                        // Handle multipart/form-data
-                        if (!st.hasMoreTokens()) {
-                            throw new ResponseException(Response.Status.BAD_REQUEST,
-                                    "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
+            void admit() throws InterruptedIOException {
+                this.lock.lock();
+                try {
+                    long start = System.nanoTime();
+                    this.waiting++;
+                    try {
+                        while (isFull() || !this.deferred.isEmpty()) {
+                            this.turn.await();
                         }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting to be served");
+                    } finally {
+                        this.waiting--;
+                        this.waitNanos += System.nanoTime() - start;
+                    }
+                    this.active++;
+                    this.requests++;
+                } finally {
+                    this.lock.unlock();
+                }
+            }
 
-                        String boundaryStartString = "boundary=";
-                        int boundaryContentStart = contentTypeHeader.indexOf(boundaryStartString) + boundaryStartString.length();
-                        String boundary = contentTypeHeader.substring(boundaryContentStart, contentTypeHeader.length());
-                        if (boundary.startsWith("\"") && boundary.endsWith("\"")) {
-                            boundary = boundary.substring(1, boundary.length() - 1);
-                        }
+            void release() {
+                this.lock.lock();
+                try {
+                    this.active--;
+                } finally {
+                    this.lock.unlock();
+                }
+                admitDeferred();
+            }
 
-                        decodeMultipartFormData(boundary, fbuf, this.parms, files);
-                    } else {
-                        byte[] postBytes = new byte[fbuf.remaining()];
-                        fbuf.get(postBytes);
-                        String postLine = new String(postBytes).trim();
-                        // Handle application/x-www-form-urlencoded
-                        if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType)) {
-                            decodeParms(postLine, this.parms);
-                        } else if (postLine.length() != 0) {
-                            // Special case for raw POST data => create a
-                            // special files entry "postData" with raw content
-                            // data
-                            files.put("postData", postLine);
+            /**
+             * Admits queued requests while there is room, deferred ones
+             * first, and dispatches them outside the lock.
+             */
+            private void admitDeferred() {
+                List<RequestScheduler.Deferred> admitted = null;
+                this.lock.lock();
+                try {
+                    while (!this.deferred.isEmpty() && !isFull()) {
+                        Queued next = this.deferred.poll();
+                        this.active++;
+                        this.requests++;
+                        this.waitNanos += System.nanoTime() - next.since;
+                        if (admitted == null) {
+                            admitted = new ArrayList<RequestScheduler.Deferred>();
                         }
+                        admitted.add(next.deferred);
+                    }
+                    if (this.deferred.isEmpty() && !isFull()) {
+                        this.turn.signalAll();
+                    }
+                } finally {
+                    this.lock.unlock();
+                }
+                if (admitted != null) {
+                    for (RequestScheduler.Deferred deferred : admitted) {
+                        deferred.dispatch();
                     }
-                } else if (Method.PUT.equals(this.method)) {
-                    files.put("content", saveTmpFile(fbuf, 0, fbuf.limit(), null));
                 }
-            } finally {
-                safeClose(randomAccessFile);
             }
-        }
-
-        /**
-         * Retrieves the content of a sent file and saves it to a temporary
-         * file. The full path to the saved file is returned.
-         */
-        private String saveTmpFile(ByteBuffer b, int offset, int len, String filename_hint) {
-            String path = "";
-            if (len > 0) {
-                FileOutputStream fileOutputStream = null;
+
+            void cancelDeferred() {
+                List<Queued> cancelled;
+                this.lock.lock();
                 try {
-                    TempFile tempFile = this.tempFileManager.createTempFile(filename_hint);
-                    ByteBuffer src = b.duplicate();
-                    fileOutputStream = new FileOutputStream(tempFile.getName());
-                    FileChannel dest = fileOutputStream.getChannel();
-                    src.position(offset).limit(offset + len);
-                    dest.write(src.slice());
-                    path = tempFile.getName();
-                } catch (Exception e) { // Catch exception if any
-                    throw new Error(e); // we won't recover, so throw an error
+                    cancelled = new ArrayList<Queued>(this.deferred);
+                    this.deferred.clear();
+                    this.turn.signalAll();
                 } finally {
-                    safeClose(fileOutputStream);
+                    this.lock.unlock();
+                }
+                for (Queued next : cancelled) {
+                    next.deferred.cancel();
                 }
             }
-            return path;
         }
-    }
-
-    /**
-     * Handles one session, i.e. parses the HTTP request and returns the
-     * response.
-     */
-    public interface IHTTPSession {
-
-        void execute() throws IOException;
-
-        CookieHandler getCookies();
 
-        Map<String, String> getHeaders();
-
-        InputStream getInputStream();
+        /**
+         * A deferred request with the time it was queued at.
+         */
+        private static final class Queued {
 
-        Method getMethod();
+            private final RequestScheduler.Deferred deferred;
 
-        Map<String, String> getParms();
+            private final long since = System.nanoTime();
 
-        String getQueryParameterString();
+            private Queued(RequestScheduler.Deferred deferred) {
+                this.deferred = deferred;
+            }
+        }
+    }
 
+    /**
+     * Phases of a connection, each bounded by its own timeout.
+     */
+    public enum ConnectionPhase {
         /**
-         * @return the path part of the URL.
+         * Reading a request header, including the TLS handshake of a new
+         * connection.
          */
-        String getUri();
-
+        HEADER,
         /**
-         * Adds the files in the request body to the files map.
-         * 
-         * @param files
-         *            map to modify
+         * Reading a request body.
          */
-        void parseBody(Map<String, String> files) throws IOException, ResponseException;
+        BODY,
+        /**
+         * Writing a response.
+         */
+        RESPONSE,
+        /**
+         * Waiting for the next request on a keep-alive connection.
+         */
+        KEEP_ALIVE
     }
 
     /**
-     * HTTP Request methods, with the ability to decode a <code>String</code>
-     * back to its enum value.
+     * Socket and connection settings of a server. Zero sizes leave the
+     * operating system defaults in place; negative timeouts fall back to the
+     * timeout given to <code>start()</code>. Set the options before the
+     * server is started.
      */
-    public enum Method {
-        GET,
-        PUT,
-        POST,
-        DELETE,
-        HEAD,
-        OPTIONS,
-        TRACE,
-        CONNECT,
-        PATCH,
-
-        PROPFIND,
-        MKCOL,
-        COPY,
-        MOVE,
-        LOCK,
-        UNLOCK;
+    public static class ServerOptions {
 
-        static Method lookup(String method) {
-            for (Method m : Method.values()) {
-                if (m.toString().equalsIgnoreCase(method)) {
-                    return m;
-                }
-            }
-            return null;
-        }
-    }
+        private int backlog;
 
-    /**
-     * HTTP response. Return one of these from serve().
-     */
-    public static class Response implements Closeable {
+        private int receiveBufferSize;
 
-        public interface IStatus {
+        private int sendBufferSize;
 
-            String getDescription();
+        private boolean tcpNoDelay;
 
-            int getRequestStatus();
-        }
+        private int headerTimeout = -1;
 
-        /**
-         * Some HTTP response status codes
-         */
-        public enum Status implements IStatus {
-            SWITCH_PROTOCOL(101, "Switching Protocols"),
-            OK(200, "OK"),
-            CREATED(201, "Created"),
-            ACCEPTED(202, "Accepted"),
-            NO_CONTENT(204, "No Content"),
-            PARTIAL_CONTENT(206, "Partial Content"),
-            MULTI_STATUS(207, "Multi-Status"),
-            REDIRECT(301, "Moved Permanently"),
-            NOT_MODIFIED(304, "Not Modified"),
-            BAD_REQUEST(400, "Bad Request"),
-            UNAUTHORIZED(401, "Unauthorized"),
-            FORBIDDEN(403, "Forbidden"),
-            NOT_FOUND(404, "Not Found"),
-            METHOD_NOT_ALLOWED(405, "Method Not Allowed"),
-            NOT_ACCEPTABLE(406, "Not Acceptable"),
-            REQUEST_TIMEOUT(408, "Request Timeout"),
-            CONFLICT(409, "Conflict"),
-            PRECONDITION_FAILED(412, "Precondition Failed"),
-            RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"),
-            INTERNAL_ERROR(500, "Internal Server Error"),
-            NOT_IMPLEMENTED(501, "Not Implemented"),
-            UNSUPPORTED_HTTP_VERSION(505, "HTTP Version Not Supported");
+        private int bodyTimeout = -1;
 
-            private final int requestStatus;
+        private int keepAliveTimeout = -1;
 
-            private final String description;
+        private int writeTimeout = -1;
 
-            Status(int requestStatus, String description) {
-                this.requestStatus = requestStatus;
-                this.description = description;
-            }
+        private int minBodyRate = 500;
 
-            @Override
-            public String getDescription() {
-                return "" + this.requestStatus + " " + this.description;
-            }
+        private int maxRequestsPerConnection;
 
-            @Override
-            public int getRequestStatus() {
-                return this.requestStatus;
-            }
+        private boolean http2;
 
-        }
+        private int tlsSessionCacheSize;
 
-        /**
-         * Output stream that will automatically send every write to the wrapped
-         * OutputStream according to chunked transfer:
-         * http://www.w3.org/Protocols/rfc2616/rfc2616-sec3.html#sec3.6.1
-         */
-        private static class ChunkedOutputStream extends FilterOutputStream {
+        private int tlsSessionTimeout;
 
-            public ChunkedOutputStream(OutputStream out) {
-                super(out);
-            }
+        private int tlsHandshakeThreads = Runtime.getRuntime().availableProcessors();
 
-            @Override
-            public void write(int b) throws IOException {
-                byte[] data = {
-                    (byte) b
-                };
-                write(data, 0, 1);
-            }
+        private int acceptorThreads = 1;
 
-            @Override
-            public void write(byte[] b) throws IOException {
-                write(b, 0, b.length);
-            }
+        private boolean reusePort;
 
-            @Override
-            public void write(byte[] b, int off, int len) throws IOException {
-                if (len == 0)
-                    return;
-                out.write(String.format("%x\r\n", len).getBytes());
-                out.write(b, off, len);
-                out.write("\r\n".getBytes());
-            }
+        private File unixDomainSocket;
 
-            public void finish() throws IOException {
-                out.write("0\r\n\r\n".getBytes());
-            }
+        private String forwardedHeader;
 
+        public int getBacklog() {
+            return this.backlog;
         }
 
         /**
-         * HTTP status code after processing, e.g. "200 OK", Status.OK
+         * Maximum number of connections the kernel queues before they are
+         * accepted.
          */
-        private IStatus status;
+        public void setBacklog(int backlog) {
+            this.backlog = backlog;
+        }
 
-        /**
-         * MIME type of content, e.g. "text/html"
-         */
-        private String mimeType;
+        public int getReceiveBufferSize() {
+            return this.receiveBufferSize;
+        }
 
         /**
-         * Data of the response, may be null.
+         * <code>SO_RCVBUF</code> of the listening socket, inherited by every
+         * accepted connection. Applied before binding, so windows larger than
+         * 64 KB can be negotiated.
          */
-        private InputStream data;
+        public void setReceiveBufferSize(int receiveBufferSize) {
+            this.receiveBufferSize = receiveBufferSize;
+        }
 
-        private long contentLength;
+        public int getSendBufferSize() {
+            return this.sendBufferSize;
+        }
 
         /**
-         * Headers for the HTTP response. Use addHeader() to add lines.
+         * <code>SO_SNDBUF</code> of every accepted connection.
          */
-        private final Map<String, String> header = new HashMap<String, String>();
+        public void setSendBufferSize(int sendBufferSize) {
+            this.sendBufferSize = sendBufferSize;
+        }
 
-        /**
-         * The request method that spawned this response.
-         */
-        private Method requestMethod;
+        public boolean isTcpNoDelay() {
+            return this.tcpNoDelay;
+        }
 
         /**
-         * Use chunkedTransfer
+         * Disables Nagle's algorithm on accepted connections, so small
+         * responses are not held back waiting for the client to acknowledge
+         * earlier segments.
          */
-        private boolean chunkedTransfer;
-
-        private boolean encodeAsGzip;
+        public void setTcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+        }
 
-        private boolean keepAlive;
+        public int getHeaderTimeout() {
+            return this.headerTimeout;
+        }
 
         /**
-         * Creates a fixed length response if totalBytes>=0, otherwise chunked.
+         * Milliseconds a new connection, or one that has started a request,
+         * has to complete the request header in, counting from the accept or
+         * from the first byte of the request.
          */
-        protected Response(IStatus status, String mimeType, InputStream data, long totalBytes) {
-            this.status = status;
-            this.mimeType = mimeType;
-            if (data == null) {
-                this.data = new ByteArrayInputStream(new byte[0]);
-                this.contentLength = 0L;
-            } else {
-                this.data = data;
-                this.contentLength = totalBytes;
-            }
-            this.chunkedTransfer = this.contentLength < 0;
-            keepAlive = true;
+        public void setHeaderTimeout(int headerTimeout) {
+            this.headerTimeout = headerTimeout;
         }
 
-        @Override
-        public void close() throws IOException {
-            if (this.data != null) {
-                this.data.close();
-            }
+        public int getBodyTimeout() {
+            return this.bodyTimeout;
         }
 
         /**
-         * Adds given line to the header.
+         * Milliseconds the client has to send the request body in, extended
+         * by the minimum body rate.
+         * 
+         * @see #setMinBodyRate(int)
          */
-        public void addHeader(String name, String value) {
-            this.header.put(name, value);
-        }
-
-        public InputStream getData() {
-            return this.data;
+        public void setBodyTimeout(int bodyTimeout) {
+            this.bodyTimeout = bodyTimeout;
         }
 
-        public String getHeader(String name) {
-            for (String headerName : header.keySet()) {
-                if (headerName.equalsIgnoreCase(name)) {
-                    return header.get(headerName);
-                }
-            }
-            return null;
+        public int getMinBodyRate() {
+            return this.minBodyRate;
         }
 
-        public String getMimeType() {
-            return this.mimeType;
+        /**
+         * Bytes per second a request body has to arrive at: every minBodyRate
+         * bytes received extend the body timeout by a second. Zero only asks
+         * the client not to stay silent for longer than the body timeout.
+         */
+        public void setMinBodyRate(int minBodyRate) {
+            this.minBodyRate = minBodyRate;
         }
 
-        public Method getRequestMethod() {
-            return this.requestMethod;
+        public int getKeepAliveTimeout() {
+            return this.keepAliveTimeout;
         }
 
-        public IStatus getStatus() {
-            return this.status;
+        /**
+         * Milliseconds an idle keep-alive connection is kept open waiting for
+         * the next request.
+         */
+        public void setKeepAliveTimeout(int keepAliveTimeout) {
+            this.keepAliveTimeout = keepAliveTimeout;
         }
 
-        public void setGzipEncoding(boolean encodeAsGzip) {
-            this.encodeAsGzip = encodeAsGzip;
+        public int getWriteTimeout() {
+            return this.writeTimeout;
         }
 
-        public void setKeepAlive(boolean useKeepAlive) {
-            this.keepAlive = useKeepAlive;
+        /**
+         * Milliseconds a client that does not read its response is given
+         * before the connection is closed. Each write of up to 64 KB has to
+         * make it to the socket within this time.
+         */
+        public void setWriteTimeout(int writeTimeout) {
+            this.writeTimeout = writeTimeout;
         }
 
-        private static boolean headerAlreadySent(Map<String, String> header, String name) {
-            boolean alreadySent = false;
-            for (String headerName : header.keySet()) {
-                alreadySent |= headerName.equalsIgnoreCase(name);
-            }
-            return alreadySent;
+        public int getMaxRequestsPerConnection() {
+            return this.maxRequestsPerConnection;
         }
 
         /**
-         * Sends given response to the socket.
+         * Number of requests after which a connection is closed, zero for no
+         * limit.
          */
-        protected void send(OutputStream outputStream) {
-            String mime = this.mimeType;
-            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-
-            try {
-                if (this.status == null) {
-                    throw new Error("sendResponse(): Status can't be null.");
-                }
-                PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8")), false);
-                pw.print("HTTP/1.1 " + this.status.getDescription() + " \r\n");
-
-                if (mime != null) {
-                    pw.print("Content-Type: " + mime + "\r\n");
-                }
-
-                if (this.header == null || this.header.get("Date") == null) {
-                    pw.print("Date: " + gmtFrmt.format(new Date()) + "\r\n");
-                }
-
-                if (this.header != null) {
-                    for (String key : this.header.keySet()) {
-                        String value = this.header.get(key);
-                        pw.print(key + ": " + value + "\r\n");
-                    }
-                }
-
-                if (!headerAlreadySent(header, "connection")) {
-                    pw.print("Connection: " + (this.keepAlive ? "keep-alive" : "close") + "\r\n");
-                }
-
-                if (headerAlreadySent(this.header, "content-length")) {
-                    encodeAsGzip = false;
-                }
-
-                if (encodeAsGzip) {
-                    pw.print("Content-Encoding: gzip\r\n");
-                    setChunkedTransfer(true);
-                }
-
-                long pending = this.data != null ? this.contentLength : 0;
-                if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
-                    pw.print("Transfer-Encoding: chunked\r\n");
-                } else if (!encodeAsGzip) {
-                    pending = sendContentLengthHeaderIfNotAlreadyPresent(pw, this.header, pending);
-                }
-                pw.print("\r\n");
-                pw.flush();
-                sendBodyWithCorrectTransferAndEncoding(outputStream, pending);
-                outputStream.flush();
-                safeClose(this.data);
-            } catch (IOException ioe) {
-                NanoHTTPD.LOG.log(Level.SEVERE, "Could not send response to the client", ioe);
-            }
+        public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+            this.maxRequestsPerConnection = maxRequestsPerConnection;
+        }
+
+        public boolean isHttp2() {
+            return this.http2;
         }
 
-        private void sendBodyWithCorrectTransferAndEncoding(OutputStream outputStream, long pending) throws IOException {
-            if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
-                ChunkedOutputStream chunkedOutputStream = new ChunkedOutputStream(outputStream);
-                sendBodyWithCorrectEncoding(chunkedOutputStream, -1);
-                chunkedOutputStream.finish();
-            } else {
-                sendBodyWithCorrectEncoding(outputStream, pending);
-            }
+        /**
+         * Accepts HTTP/2: through an h2c upgrade or with prior knowledge on
+         * plain connections, and through ALPN on secure ones where the
+         * runtime supports it.
+         */
+        public void setHttp2(boolean http2) {
+            this.http2 = http2;
         }
 
-        private void sendBodyWithCorrectEncoding(OutputStream outputStream, long pending) throws IOException {
-            if (encodeAsGzip) {
-                GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream);
-                sendBody(gzipOutputStream, -1);
-                gzipOutputStream.finish();
-            } else {
-                sendBody(outputStream, pending);
-            }
+        public int getTlsSessionCacheSize() {
+            return this.tlsSessionCacheSize;
         }
 
         /**
-         * Sends the body to the specified OutputStream. The pending parameter
-         * limits the maximum amounts of bytes sent unless it is -1, in which
-         * case everything is sent.
-         * 
-         * @param outputStream
-         *            the OutputStream to send data to
-         * @param pending
-         *            -1 to send everything, otherwise sets a max limit to the
-         *            number of bytes sent
-         * @throws IOException
-         *             if something goes wrong while sending the data.
+         * Maximum number of TLS sessions kept for resumption, zero for the
+         * JDK default. Whether clients may resume with stateless session
+         * tickets instead is not a server option: it is the process-wide
+         * system property
+         * <code>jdk.tls.server.enableSessionTicketExtension</code>, which
+         * has to be set before TLS is first used in the JVM.
          */
-        private void sendBody(OutputStream outputStream, long pending) throws IOException {
-            long BUFFER_SIZE = 16 * 1024;
-            byte[] buff = new byte[(int) BUFFER_SIZE];
-            boolean sendEverything = pending == -1;
-            while (pending > 0 || sendEverything) {
-                long bytesToRead = sendEverything ? BUFFER_SIZE : Math.min(pending, BUFFER_SIZE);
-                int read = this.data.read(buff, 0, (int) bytesToRead);
-                if (read <= 0) {
-                    break;
-                }
-                outputStream.write(buff, 0, read);
-                if (!sendEverything) {
-                    pending -= read;
-                }
-            }
+        public void setTlsSessionCacheSize(int tlsSessionCacheSize) {
+            this.tlsSessionCacheSize = tlsSessionCacheSize;
         }
 
-        protected static long sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, Map<String, String> header, long size) {
-            for (String headerName : header.keySet()) {
-                if (headerName.equalsIgnoreCase("content-length")) {
-                    try {
-                        return Long.parseLong(header.get(headerName));
-                    } catch (NumberFormatException ex) {
-                        return size;
-                    }
-                }
-            }
-
-            pw.print("Content-Length: " + size + "\r\n");
-            return size;
+        public int getTlsSessionTimeout() {
+            return this.tlsSessionTimeout;
         }
 
-        public void setChunkedTransfer(boolean chunkedTransfer) {
-            this.chunkedTransfer = chunkedTransfer;
+        /**
+         * Time in seconds a TLS session may be resumed, zero for the JDK
+         * default.
+         */
+        public void setTlsSessionTimeout(int tlsSessionTimeout) {
+            this.tlsSessionTimeout = tlsSessionTimeout;
         }
 
-        public void setData(InputStream data) {
-            this.data = data;
+        public int getTlsHandshakeThreads() {
+            return this.tlsHandshakeThreads;
         }
 
-        public void setMimeType(String mimeType) {
-            this.mimeType = mimeType;
+        /**
+         * Number of threads running the TLS handshakes of the non-blocking
+         * engine.
+         */
+        public void setTlsHandshakeThreads(int tlsHandshakeThreads) {
+            this.tlsHandshakeThreads = tlsHandshakeThreads;
         }
 
-        public void setRequestMethod(Method requestMethod) {
-            this.requestMethod = requestMethod;
+        public int getAcceptorThreads() {
+            return this.acceptorThreads;
         }
 
-        public void setStatus(IStatus status) {
-            this.status = status;
+        /**
+         * Number of threads accepting connections. On the non-blocking
+         * engine every acceptor runs a selector of its own. With
+         * {@link #setReusePort(boolean)} each acceptor listens on a socket of
+         * its own and the kernel spreads the connections among them,
+         * otherwise they share one listening socket.
+         */
+        public void setAcceptorThreads(int acceptorThreads) {
+            this.acceptorThreads = acceptorThreads;
         }
-    }
 
-    public static final class ResponseException extends Exception {
+        public boolean isReusePort() {
+            return this.reusePort;
+        }
 
-        private static final long serialVersionUID = 6569838532917408380L;
+        /**
+         * Binds the listening sockets with <code>SO_REUSEPORT</code>, where
+         * the platform supports it, so several sockets can listen on the
+         * port. Besides spreading connections among the acceptors, this lets
+         * a new server process start listening before the old one has
+         * stopped, for restarts without downtime.
+         */
+        public void setReusePort(boolean reusePort) {
+            this.reusePort = reusePort;
+        }
 
-        private final Response.Status status;
+        public File getUnixDomainSocket() {
+            return this.unixDomainSocket;
+        }
 
-        public ResponseException(Response.Status status, String message) {
-            super(message);
-            this.status = status;
+        /**
+         * Listens on a Unix domain socket at the given path instead of the
+         * TCP port, for a proxy on the same host, which saves the TCP
+         * overhead and the ephemeral ports of the hop to the server. Needs
+         * Java 16 or newer and plain HTTP, the proxy terminates TLS.
+         */
+        public void setUnixDomainSocket(File unixDomainSocket) {
+            this.unixDomainSocket = unixDomainSocket;
         }
 
-        public ResponseException(Response.Status status, String message, Exception e) {
-            super(message, e);
-            this.status = status;
+        public String getForwardedHeader() {
+            return this.forwardedHeader;
         }
 
-        public Response.Status getStatus() {
-            return this.status;
+        /**
+         * Request header in which a trusted proxy passes the address of the
+         * client, such as <code>X-Forwarded-For</code> or
+         * <code>Forwarded</code>. The last address in it, the one the proxy
+         * added, is given to the request as <code>remote-addr</code>. Only
+         * set this if every connection comes through a proxy that sets the
+         * header, anyone else could claim any address with it.
+         */
+        public void setForwardedHeader(String forwardedHeader) {
+            this.forwardedHeader = forwardedHeader;
         }
     }
 
@@ -1478,20 +5273,25 @@ public abstract class NanoHTTPD {
      */
     public class ServerRunnable implements Runnable {
 
-        private final int timeout;
-
         private IOException bindException;
 
         private boolean hasBinded = false;
 
-        private ServerRunnable(int timeout) {
-            this.timeout = timeout;
+        /**
+         * Socket this runnable accepts from, possibly shared with other
+         * acceptors.
+         */
+        private ServerSocket serverSocket;
+
+        private Thread thread;
+
+        private ServerRunnable() {
         }
 
         @Override
         public void run() {
             try {
-                myServerSocket.bind(hostname != null ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
+                bind(this.serverSocket);
                 hasBinded = true;
             } catch (IOException e) {
                 this.bindException = e;
@@ -1499,16 +5299,264 @@ public abstract class NanoHTTPD {
             }
             do {
                 try {
-                    final Socket finalAccept = NanoHTTPD.this.myServerSocket.accept();
-                    if (this.timeout > 0) {
-                        finalAccept.setSoTimeout(this.timeout);
-                    }
+                    final Socket finalAccept = this.serverSocket.accept();
+                    configureSocket(finalAccept);
                     final InputStream inputStream = finalAccept.getInputStream();
                     NanoHTTPD.this.asyncRunner.exec(createClientHandler(finalAccept, inputStream));
                 } catch (IOException e) {
                     NanoHTTPD.LOG.log(Level.FINE, "Communication with the client broken", e);
                 }
-            } while (!NanoHTTPD.this.myServerSocket.isClosed());
+            } while (!this.serverSocket.isClosed());
+        }
+    }
+
+    /**
+     * Listening runnable of the non-blocking engine.
+     * <p/>
+     * <p>
+     * A single thread accepts connections and watches all of them with a
+     * {@link Selector}. Idle keep-alive connections stay registered there,
+     * costing a key and a few hundred bytes instead of a thread and an 8 KB
+     * buffer. Once a complete request header has arrived, the connection is
+     * switched to blocking mode and handed to the {@link AsyncRunner}, which
+     * runs the usual {@link HTTPSession} and therefore the same
+     * <code>serve(IHTTPSession)</code> contract. When no further request is
+     * buffered, the connection is parked in the selector again.
+     * </p>
+     * <p>
+     * With several acceptor threads, each runs a selector of its own and
+     * keeps the connections it accepted.
+     * </p>
+     */
+    public class SelectorServerRunnable extends ServerRunnable {
+
+        private final Queue<SelectorClientHandler> parked = new ConcurrentLinkedQueue<SelectorClientHandler>();
+
+        private volatile Selector selector;
+
+        private SelectorServerRunnable() {
+        }
+
+        @Override
+        public void run() {
+            ServerSocketChannel serverChannel = super.serverSocket.getChannel();
+            try {
+                bind(super.serverSocket);
+                serverChannel.configureBlocking(false);
+                this.selector = Selector.open();
+                serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+                super.hasBinded = true;
+            } catch (IOException e) {
+                super.bindException = e;
+                return;
+            }
+
+            ByteBuffer readBuffer = BufferPool.getDefault().acquireDirect(HTTPSession.BUFSIZE);
+            List<SelectorClientHandler> ready = new ArrayList<SelectorClientHandler>();
+            boolean drained = false;
+            // while draining, requests that have begun to arrive are still
+            // read, to be refused properly
+            while (serverChannel.isOpen() || NanoHTTPD.this.draining) {
+                try {
+                    this.selector.select(1000);
+                    registerParked(readBuffer, ready);
+                    if (!serverChannel.isOpen() && !drained) {
+                        closeIdle(readBuffer, ready);
+                        drained = true;
+                    }
+
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(serverChannel);
+                        } else if (key.isReadable() || key.isWritable()) {
+                            SelectorClientHandler clientHandler = (SelectorClientHandler) key.attachment();
+                            if (clientHandler.tls != null && !clientHandler.tls.isHandshaken()) {
+                                key.cancel();
+                                handshake(clientHandler);
+                            } else {
+                                readHeader(key, clientHandler, readBuffer, ready);
+                            }
+                        }
+                    }
+
+                    if (!ready.isEmpty()) {
+                        // flush the cancelled keys so the channels may block
+                        this.selector.selectNow();
+                        for (SelectorClientHandler clientHandler : ready) {
+                            dispatch(clientHandler);
+                        }
+                        ready.clear();
+                    }
+                } catch (IOException e) {
+                    NanoHTTPD.LOG.log(Level.FINE, "Communication with the client broken", e);
+                }
+            }
+
+            for (SelectionKey key : this.selector.keys()) {
+                if (key.attachment() instanceof SelectorClientHandler) {
+                    ((SelectorClientHandler) key.attachment()).close();
+                }
+            }
+            SelectorClientHandler clientHandler;
+            while ((clientHandler = this.parked.poll()) != null) {
+                clientHandler.close();
+            }
+            safeClose(this.selector);
+            BufferPool.getDefault().release(readBuffer);
+        }
+
+        /**
+         * Closes the connections that are between requests when a drain
+         * begins. Those with part of a request read already stay.
+         */
+        private void closeIdle(ByteBuffer readBuffer, List<SelectorClientHandler> ready) {
+            for (SelectionKey key : this.selector.keys()) {
+                if (!key.isValid() || !(key.attachment() instanceof SelectorClientHandler)) {
+                    continue;
+                }
+                SelectorClientHandler clientHandler = (SelectorClientHandler) key.attachment();
+                if (clientHandler.tls == null || clientHandler.tls.isHandshaken()) {
+                    // pick up what arrived since the last select
+                    readHeader(key, clientHandler, readBuffer, ready);
+                }
+                if (key.isValid() && clientHandler.pendingLength == 0) {
+                    key.cancel();
+                    if (clientHandler.tls != null) {
+                        clientHandler.tls.closeOutbound();
+                    }
+                    clientHandler.close();
+                }
+            }
+        }
+
+        private void readHeader(SelectionKey key, SelectorClientHandler clientHandler, ByteBuffer readBuffer, List<SelectorClientHandler> ready) {
+            try {
+                if (clientHandler.readHeader(readBuffer)) {
+                    key.cancel();
+                    ready.add(clientHandler);
+                }
+            } catch (IOException e) {
+                key.cancel();
+                clientHandler.close();
+            }
+        }
+
+        /**
+         * Advances a TLS handshake on the handshake executor. The connection
+         * comes back to the selector when it has to wait for the client.
+         */
+        private void handshake(final SelectorClientHandler clientHandler) {
+            try {
+                NanoHTTPD.this.tlsExecutor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            int interest = clientHandler.tls.handshake();
+                            clientHandler.interest = interest != 0 ? interest : SelectionKey.OP_READ;
+                            if (!park(clientHandler)) {
+                                clientHandler.close();
+                            }
+                        } catch (IOException e) {
+                            NanoHTTPD.LOG.log(Level.FINE, "TLS handshake failed", e);
+                            clientHandler.close();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                clientHandler.close();
+            }
+        }
+
+        private void accept(ServerSocketChannel serverChannel) throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    // the socket adaptor of a channel does not do Unix domain
+                    // sockets
+                    Socket socket = super.serverSocket instanceof UnixDomainServerSocket ? new UnixDomainServerSocket.Connection(channel) : channel.socket();
+                    configureSocket(socket);
+                    TlsConnection tls = null;
+                    if (NanoHTTPD.this.sslContext != null) {
+                        SSLEngine engine = NanoHTTPD.this.sslContext.createSSLEngine();
+                        if (NanoHTTPD.this.http2Executor != null) {
+                            Http2Connection.offerApplicationProtocols(engine);
+                        }
+                        tls = new TlsConnection(engine, channel);
+                    }
+                    SelectorClientHandler clientHandler = new SelectorClientHandler(channel, socket, socket.getInputStream(), tls, this);
+                    channel.register(this.selector, SelectionKey.OP_READ, clientHandler);
+                } catch (IOException e) {
+                    safeClose(channel);
+                    NanoHTTPD.LOG.log(Level.FINE, "Communication with the client broken", e);
+                }
+            }
+        }
+
+        /**
+         * Hands a connection with a complete request header to a worker, or
+         * queues it without one until the request's class has room.
+         */
+        private void dispatch(SelectorClientHandler clientHandler) {
+            try {
+                clientHandler.channel.configureBlocking(true);
+            } catch (IOException e) {
+                clientHandler.close();
+                return;
+            }
+            clientHandler.requestClass = clientHandler.classifyPending();
+            if (NanoHTTPD.this.requestScheduler.admitOrDefer(clientHandler.requestClass, clientHandler)) {
+                clientHandler.dispatch();
+            } else {
+                clientHandler.waitForTurn();
+            }
+        }
+
+        /**
+         * Hands a connection without buffered requests back to the selector.
+         * 
+         * @return false if the engine is shutting down and the connection
+         *         should be closed instead.
+         */
+        private boolean park(SelectorClientHandler clientHandler) {
+            Selector selector = this.selector;
+            if (selector == null || !selector.isOpen()) {
+                return false;
+            }
+            this.parked.add(clientHandler);
+            selector.wakeup();
+            return true;
+        }
+
+        private void registerParked(ByteBuffer readBuffer, List<SelectorClientHandler> ready) {
+            SelectorClientHandler clientHandler;
+            while ((clientHandler = this.parked.poll()) != null) {
+                try {
+                    clientHandler.channel.configureBlocking(false);
+                    SelectionKey key = clientHandler.channel.register(this.selector, clientHandler.interest, clientHandler);
+                    if (clientHandler.tls != null && clientHandler.tls.isHandshaken() && clientHandler.tls.hasBufferedInput()) {
+                        // decrypted or received already, the selector
+                        // would not report it
+                        readHeader(key, clientHandler, readBuffer, ready);
+                    }
+                } catch (IOException e) {
+                    clientHandler.close();
+                }
+            }
+        }
+
+        private void wakeup() {
+            Selector selector = this.selector;
+            if (selector != null) {
+                selector.wakeup();
+            }
         }
     }
 
@@ -1575,6 +5623,16 @@ public abstract class NanoHTTPD {
      */
     private static final String QUERY_STRING_PARAMETER = "NanoHttpd.QUERY_STRING";
 
+    /**
+     * Interim response inviting a client to send the request body.
+     */
+    private static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+
+    /**
+     * Interim response accepting an upgrade to HTTP/2 over cleartext.
+     */
+    private static final byte[] SWITCHING_PROTOCOLS_RESPONSE = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes();
+
     /**
      * logger to log to.
      */
@@ -1586,17 +5644,24 @@ public abstract class NanoHTTPD {
      * loaded/initialized by the caller.
      */
     public static SSLServerSocketFactory makeSSLSocketFactory(KeyStore loadedKeyStore, KeyManager[] keyManagers) throws IOException {
-        SSLServerSocketFactory res = null;
+        return makeSSLContext(loadedKeyStore, keyManagers).getServerSocketFactory();
+    }
+
+    /**
+     * Creates an SSLContext for HTTPS on either engine. Pass a loaded
+     * KeyStore and an array of loaded KeyManagers. These objects must
+     * properly loaded/initialized by the caller.
+     */
+    public static SSLContext makeSSLContext(KeyStore loadedKeyStore, KeyManager[] keyManagers) throws IOException {
         try {
             TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
             trustManagerFactory.init(loadedKeyStore);
             SSLContext ctx = SSLContext.getInstance("TLS");
             ctx.init(keyManagers, trustManagerFactory.getTrustManagers(), null);
-            res = ctx.getServerSocketFactory();
+            return ctx;
         } catch (Exception e) {
             throw new IOException(e.getMessage());
         }
-        return res;
     }
 
     /**
@@ -1617,45 +5682,148 @@ public abstract class NanoHTTPD {
      * certificate and passphrase
      */
     public static SSLServerSocketFactory makeSSLSocketFactory(String keyAndTrustStoreClasspathPath, char[] passphrase) throws IOException {
+        return makeSSLContext(keyAndTrustStoreClasspathPath, passphrase).getServerSocketFactory();
+    }
+
+    /**
+     * Creates an SSLContext for HTTPS on either engine. Pass a KeyStore
+     * resource with your certificate and passphrase
+     */
+    public static SSLContext makeSSLContext(String keyAndTrustStoreClasspathPath, char[] passphrase) throws IOException {
         try {
             KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
             InputStream keystoreStream = NanoHTTPD.class.getResourceAsStream(keyAndTrustStoreClasspathPath);
             keystore.load(keystoreStream, passphrase);
             KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
             keyManagerFactory.init(keystore, passphrase);
-            return makeSSLSocketFactory(keystore, keyManagerFactory);
+            return makeSSLContext(keystore, keyManagerFactory.getKeyManagers());
         } catch (Exception e) {
             throw new IOException(e.getMessage());
         }
     }
 
-    private static final void safeClose(Object closeable) {
-        try {
-            if (closeable != null) {
-                if (closeable instanceof Closeable) {
-                    ((Closeable) closeable).close();
-                } else if (closeable instanceof Socket) {
-                    ((Socket) closeable).close();
-                } else if (closeable instanceof ServerSocket) {
-                    ((ServerSocket) closeable).close();
-                } else {
-                    throw new IllegalArgumentException("Unknown object to close");
-                }
-            }
-        } catch (IOException e) {
-            NanoHTTPD.LOG.log(Level.SEVERE, "Could not close", e);
-        }
-    }
+    /**
+     * Starts the next phase of a connection, if it has a deadline.
+     */
+    private static void arm(TimerWheel.Deadline deadline, ConnectionPhase phase, int timeout) {
+        if (deadline != null) {
+            deadline.arm(phase, timeout);
+        }
+    }
+
+    static final void safeClose(Object closeable) {
+        try {
+            if (closeable != null) {
+                if (closeable instanceof Closeable) {
+                    ((Closeable) closeable).close();
+                } else if (closeable instanceof Socket) {
+                    ((Socket) closeable).close();
+                } else if (closeable instanceof ServerSocket) {
+                    ((ServerSocket) closeable).close();
+                } else {
+                    throw new IllegalArgumentException("Unknown object to close");
+                }
+            }
+        } catch (IOException e) {
+            NanoHTTPD.LOG.log(Level.SEVERE, "Could not close", e);
+        }
+    }
+
+    private final String hostname;
+
+    private final int myPort;
+
+    private volatile ServerSocket myServerSocket;
+
+    private SSLServerSocketFactory sslServerSocketFactory;
+
+    /**
+     * Context of the TLS connections, set if the server was made secure with
+     * one. The non-blocking engine needs it.
+     */
+    private SSLContext sslContext;
+
+    /**
+     * Acceptors of the running server, the first one listens on
+     * myServerSocket.
+     */
+    private final List<ServerRunnable> acceptors = new CopyOnWriteArrayList<ServerRunnable>();
+
+    private boolean nonBlocking;
+
+    private ServerOptions options = new ServerOptions();
+
+    private int headerTimeout;
+
+    private int bodyTimeout;
+
+    private int keepAliveTimeout;
+
+    private int writeTimeout;
+
+    /**
+     * Closes connections that overrun the timeout of their phase, null if no
+     * timeouts apply.
+     */
+    private TimerWheel timerWheel;
+
+    private final AtomicLongArray timeouts = new AtomicLongArray(ConnectionPhase.values().length);
+
+    private final BandwidthShaper responseShaper = new BandwidthShaper();
+
+    private final BandwidthShaper requestShaper = new BandwidthShaper();
+
+    private final RequestScheduler requestScheduler = new RequestScheduler();
+
+    /**
+     * Set while <code>stop(long)</code> lets the requests in flight finish.
+     */
+    private volatile boolean draining;
+
+    /**
+     * Connections being served by a worker, as opposed to waiting in a queue
+     * or in the selector.
+     */
+    private final Set<ClientHandler> connections = Collections.newSetFromMap(new ConcurrentHashMap<ClientHandler, Boolean>());
 
-    private final String hostname;
+    /**
+     * Lock of the request counts below, waited on while draining.
+     */
+    private final Object drainLock = new Object();
 
-    private final int myPort;
+    /**
+     * Requests and HTTP/2 streams being served. Guarded by drainLock.
+     */
+    private int inFlight;
 
-    private volatile ServerSocket myServerSocket;
+    /**
+     * Counts the drains, so requests can tell whether they started before
+     * the current one. Written under drainLock.
+     */
+    private volatile int drainGeneration;
 
-    private SSLServerSocketFactory sslServerSocketFactory;
+    /**
+     * Requests in flight when the drain began that have not finished yet.
+     * Guarded by drainLock.
+     */
+    private int drainPending;
 
-    private Thread myThread;
+    /**
+     * Requests in flight when the drain began that have finished since.
+     * Guarded by drainLock.
+     */
+    private long drained;
+
+    /**
+     * Runs the streams of HTTP/2 connections, null unless HTTP/2 is enabled.
+     */
+    private ExecutorService http2Executor;
+
+    /**
+     * Runs the TLS handshakes of the non-blocking engine, null unless it
+     * serves HTTPS.
+     */
+    private ExecutorService tlsExecutor;
 
     /**
      * Pluggable strategy for asynchronously executing requests.
@@ -1718,11 +5886,12 @@ public abstract class NanoHTTPD {
      * provide a subclass of the ServerRunnable.
      * 
      * @param timeout
-     *            the socet timeout to use.
+     *            the header timeout. Connections are bounded by their
+     *            deadlines rather than a socket timeout.
      * @return the server runnable.
      */
     protected ServerRunnable createServerRunnable(final int timeout) {
-        return new ServerRunnable(timeout);
+        return new ServerRunnable();
     }
 
     /**
@@ -1791,6 +5960,131 @@ public abstract class NanoHTTPD {
         return decoded;
     }
 
+    /**
+     * Decode a percent encoded URI straight from the request buffer. Like
+     * {@link #decodePercent(String)}, '+' is decoded as a space and the
+     * result is interpreted as UTF-8.
+     */
+    private static String decodePercent(byte[] buf, int off, int len) {
+        int end = off + len;
+        int i = off;
+        while (i < end && buf[i] != '%' && buf[i] != '+') {
+            i++;
+        }
+        if (i == end) {
+            return decodeText(buf, off, len);
+        }
+        byte[] decoded = new byte[len];
+        int count = 0;
+        for (i = off; i < end; i++) {
+            byte b = buf[i];
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%' && i + 2 < end) {
+                int hi = Character.digit(buf[i + 1], 16);
+                int lo = Character.digit(buf[i + 2], 16);
+                if (hi >= 0 && lo >= 0) {
+                    b = (byte) ((hi << 4) + lo);
+                    i += 2;
+                }
+            }
+            decoded[count++] = b;
+        }
+        return decodeText(decoded, 0, count);
+    }
+
+    /**
+     * Turns header bytes into a string. Plain ASCII, which almost every
+     * header is, is copied without going through a charset decoder.
+     */
+    @SuppressWarnings("deprecation")
+    private static String decodeText(byte[] buf, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            if (buf[i] < 0) {
+                try {
+                    return new String(buf, off, len, "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    break;
+                }
+            }
+        }
+        return new String(buf, 0, off, len);
+    }
+
+    private static String decodeProtocolVersion(byte[] buf, int off, int len) {
+        if (len == 8 && buf[off] == 'H' && buf[off + 5] == '1' && buf[off + 6] == '.') {
+            if (buf[off + 7] == '1') {
+                return "HTTP/1.1";
+            } else if (buf[off + 7] == '0') {
+                return "HTTP/1.0";
+            }
+        }
+        return decodeText(buf, off, len);
+    }
+
+    private static boolean equalsIgnoreCaseAscii(byte[] lowerOrUpper, byte[] buf, int off) {
+        for (int i = 0; i < lowerOrUpper.length; i++) {
+            if (toLowerAscii(lowerOrUpper[i]) != toLowerAscii(buf[off + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find byte index separating header from body. It must be the last byte
+     * of the first two sequential new lines. Bare LF line endings are
+     * tolerated.
+     */
+    private static int findHeaderEnd(final byte[] buf, int from, int rlen) {
+        for (int splitbyte = from; splitbyte + 1 < rlen; splitbyte++) {
+            if (buf[splitbyte] == '\n') {
+                if (buf[splitbyte + 1] == '\n') {
+                    return splitbyte + 2;
+                }
+                if (buf[splitbyte + 1] == '\r' && splitbyte + 2 < rlen && buf[splitbyte + 2] == '\n') {
+                    return splitbyte + 3;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, char c) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static int skipToken(byte[] buf, int from, int to) {
+        while (from < to && (buf[from] & 0xff) > ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int skipWhitespace(byte[] buf, int from, int to) {
+        while (from < to && (buf[from] & 0xff) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int toLowerAscii(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xff;
+    }
+
+    /**
+     * @return the end of the line starting at from and ending at the '\n' at
+     *         lineEnd, without its trailing '\r'.
+     */
+    private static int trimLineEnd(byte[] buf, int from, int lineEnd) {
+        return lineEnd > from && buf[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+    }
+
     /**
      * @return true if the gzip compression should be used if the client
      *         accespts it. Default this option is on for text content and off
@@ -1805,7 +6099,89 @@ public abstract class NanoHTTPD {
     }
 
     public final boolean isAlive() {
-        return wasStarted() && !this.myServerSocket.isClosed() && this.myThread.isAlive();
+        return wasStarted() && !this.myServerSocket.isClosed() && this.acceptors.get(0).thread.isAlive();
+    }
+
+    /**
+     * Call before start() to serve connections from the selector-based
+     * {@link SelectorServerRunnable} instead of blocking a thread for every
+     * open connection.
+     */
+    public void setNonBlocking(boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
+    }
+
+    public boolean isNonBlocking() {
+        return this.nonBlocking;
+    }
+
+    /**
+     * Call before start() to disable Nagle's algorithm on accepted
+     * connections.
+     * 
+     * @see ServerOptions#setTcpNoDelay(boolean)
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.options.setTcpNoDelay(tcpNoDelay);
+    }
+
+    public boolean isTcpNoDelay() {
+        return this.options.isTcpNoDelay();
+    }
+
+    /**
+     * Call before start() to tune the listening socket and the connections.
+     */
+    public void setServerOptions(ServerOptions options) {
+        this.options = options;
+    }
+
+    public ServerOptions getServerOptions() {
+        return this.options;
+    }
+
+    /**
+     * @return the number of connections closed so far because they overran
+     *         the timeout of the given phase.
+     */
+    public long getTimeoutCount(ConnectionPhase phase) {
+        return this.timeouts.get(phase.ordinal());
+    }
+
+    /**
+     * @return the bandwidth limits and rates of the responses sent to
+     *         clients, which may be changed while the server runs.
+     */
+    public BandwidthShaper getResponseShaper() {
+        return this.responseShaper;
+    }
+
+    /**
+     * @return the bandwidth limits and rates of the request bodies received
+     *         from clients, which may be changed while the server runs.
+     */
+    public BandwidthShaper getRequestShaper() {
+        return this.requestShaper;
+    }
+
+    /**
+     * @return the scheduler that admits requests by class, whose limits may
+     *         be changed while the server runs.
+     */
+    public RequestScheduler getRequestScheduler() {
+        return this.requestScheduler;
+    }
+
+    /**
+     * Applies the configured options to an accepted connection.
+     */
+    private void configureSocket(Socket socket) throws SocketException {
+        if (this.options.isTcpNoDelay()) {
+            socket.setTcpNoDelay(true);
+        }
+        if (this.options.getSendBufferSize() > 0) {
+            socket.setSendBufferSize(this.options.getSendBufferSize());
+        }
     }
 
     /**
@@ -1813,6 +6189,17 @@ public abstract class NanoHTTPD {
      */
     public void makeSecure(SSLServerSocketFactory sslServerSocketFactory) {
         this.sslServerSocketFactory = sslServerSocketFactory;
+        this.sslContext = null;
+    }
+
+    /**
+     * Call before start() to serve HTTPS. Unlike a socket factory, a context
+     * also works with the non-blocking engine, which runs TLS on
+     * {@link SSLEngine}s.
+     */
+    public void makeSecure(SSLContext sslContext) {
+        this.sslServerSocketFactory = sslContext.getServerSocketFactory();
+        this.sslContext = sslContext;
     }
 
     /**
@@ -1829,6 +6216,19 @@ public abstract class NanoHTTPD {
         return new Response(status, mimeType, data, totalBytes);
     }
 
+    /**
+     * Create a response that sends length bytes of the file starting at
+     * offset. On plain sockets the bytes are moved by the kernel without
+     * being copied through the heap. The channel is closed with the
+     * response.
+     */
+    public static Response newFixedFileResponse(IStatus status, String mimeType, FileChannel file, long offset, long length) throws IOException {
+        Response response = new Response(status, mimeType, Channels.newInputStream(file.position(offset)), length);
+        response.file = file;
+        response.fileOffset = offset;
+        return response;
+    }
+
     /**
      * Create a text response with known length.
      */
@@ -1854,6 +6254,131 @@ public abstract class NanoHTTPD {
         return newFixedLengthResponse(Status.OK, NanoHTTPD.MIME_HTML, msg);
     }
 
+    /**
+     * Override this to reject requests before their body is transferred.
+     * <p/>
+     * <p/>
+     * Called for requests with an "Expect: 100-continue" header, before any
+     * of the body has been read. Returning null lets the request through:
+     * the client is told to go on and {@link #serve(IHTTPSession)} is called
+     * as usual. A returned response is sent instead, and the connection is
+     * closed afterwards. (By default, all requests are let through.)
+     * 
+     * @param session
+     *            The HTTP session, whose body must not be read here
+     * @return null to accept the request, otherwise the final response
+     */
+    protected Response checkPreconditions(IHTTPSession session) {
+        return null;
+    }
+
+    /**
+     * Decides which class a request is scheduled in, as soon as its header
+     * has arrived and before it is given a worker, which may be on the
+     * thread that watches all connections: keep it quick. By default, GET,
+     * PUT, POST and COPY requests are bulk transfers and everything else is
+     * metadata.
+     * 
+     * @param method
+     *            the request method, null if it is not one the server knows
+     * @param uri
+     *            the percent-decoded request path, without the query string
+     * @return the class of the request
+     */
+    protected RequestClass classifyRequest(Method method, String uri) {
+        if (method == null) {
+            return RequestClass.METADATA;
+        }
+        switch (method) {
+            case GET:
+            case PUT:
+            case POST:
+            case COPY:
+                return RequestClass.BULK;
+            default:
+                return RequestClass.METADATA;
+        }
+    }
+
+    /**
+     * Creates the executor HTTP/2 streams run on, following the configured
+     * {@link AsyncRunner}: a {@link BoundedAsyncRunner} lends its bounds, a
+     * {@link VirtualThreadAsyncRunner} its virtual threads. Any other runner
+     * starts a thread per stream, as the default one does per connection.
+     */
+    private ExecutorService newStreamExecutor() {
+        if (this.asyncRunner instanceof BoundedAsyncRunner) {
+            return ((BoundedAsyncRunner) this.asyncRunner).newStreamExecutor();
+        }
+        if (this.asyncRunner instanceof VirtualThreadAsyncRunner) {
+            return ((VirtualThreadAsyncRunner) this.asyncRunner).newStreamExecutor();
+        }
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                t.setName("NanoHttpd HTTP/2 Stream");
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Answers one HTTP/2 stream with <code>serve(IHTTPSession)</code>. Every
+     * stream runs on a worker of its own, so a slow request does not hold up
+     * the others on the connection. Streams the executor refuses are reset
+     * with REFUSED_STREAM, the HTTP/2 counterpart of a 503.
+     */
+    void serveStream(Http2Connection.Stream stream) {
+        HTTPSession session = stream.getUpgradedSession();
+        boolean upgraded = session != null;
+        Response r = null;
+        RequestClass admitted = stream.takeAdmitted();
+        int generation = requestStarted();
+        try {
+            if (!upgraded) {
+                TempFileManager tempFileManager = this.tempFileManagerFactory.create();
+                InetAddress remoteAddress = stream.getRemoteAddress();
+                session = remoteAddress != null ? new HTTPSession(tempFileManager, stream.getInputStream(), null, remoteAddress) : new HTTPSession(tempFileManager,
+                        stream.getInputStream(), null);
+                session.decodeStream(stream);
+            }
+            Response rejection = checkPreconditions(session);
+            r = rejection != null ? rejection : serve(session);
+            if (r == null) {
+                throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
+            }
+            session.cookies.unloadQueue(r);
+        } catch (ResponseException re) {
+            r = newFixedLengthResponse(re.getStatus(), NanoHTTPD.MIME_PLAINTEXT, re.getMessage());
+        } catch (RuntimeException e) {
+            // without a response the stream is reset
+            NanoHTTPD.LOG.log(Level.SEVERE, "Could not serve the request", e);
+        }
+        try {
+            if (r != null) {
+                r.setRequestMethod(session.getMethod());
+                r.send(stream);
+            }
+        } catch (IOException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "Could not send response to the client", e);
+        } finally {
+            safeClose(r);
+            if (admitted != null) {
+                this.requestScheduler.release(admitted);
+            }
+            if (session != null) {
+                session.tempFileManager.clear();
+                if (!upgraded) {
+                    safeClose(session.inputStream);
+                }
+            }
+            requestFinished(generation);
+        }
+    }
+
     /**
      * Override this to customize the server.
      * <p/>
@@ -1946,31 +6471,164 @@ public abstract class NanoHTTPD {
      *             if the socket is in use.
      */
     public void start(final int timeout, boolean daemon) throws IOException {
-        if (this.sslServerSocketFactory != null) {
+        if (this.nonBlocking && this.sslServerSocketFactory != null && this.sslContext == null) {
+            throw new IOException("HTTPS on the non-blocking engine needs an SSLContext, see makeSecure(SSLContext)");
+        }
+        if (this.options.getUnixDomainSocket() != null && this.sslServerSocketFactory != null) {
+            throw new IOException("HTTPS is not served on a Unix domain socket, the proxy in front terminates TLS");
+        }
+        this.myServerSocket = openServerSocket();
+        boolean reusePort = this.options.isReusePort() && setReusePort(this.myServerSocket);
+        if (this.options.isReusePort() && !reusePort) {
+            NanoHTTPD.LOG.log(Level.WARNING, "SO_REUSEPORT is not supported here, the port is not shared with other listeners");
+        }
+        this.headerTimeout = this.options.getHeaderTimeout() >= 0 ? this.options.getHeaderTimeout() : timeout;
+        this.bodyTimeout = this.options.getBodyTimeout() >= 0 ? this.options.getBodyTimeout() : timeout;
+        this.keepAliveTimeout = this.options.getKeepAliveTimeout() >= 0 ? this.options.getKeepAliveTimeout() : timeout;
+        this.writeTimeout = this.options.getWriteTimeout() >= 0 ? this.options.getWriteTimeout() : timeout;
+        if (this.headerTimeout > 0 || this.bodyTimeout > 0 || this.keepAliveTimeout > 0 || this.writeTimeout > 0) {
+            this.timerWheel = new TimerWheel(this.timeouts);
+            this.timerWheel.start();
+        }
+        if (this.sslContext != null) {
+            configureSessions(this.sslContext);
+            if (this.nonBlocking) {
+                this.tlsExecutor = new ThreadPoolExecutor(this.options.getTlsHandshakeThreads(), this.options.getTlsHandshakeThreads(), 60L, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread t = new Thread(r);
+                                t.setDaemon(true);
+                                t.setName("NanoHttpd TLS Handshake");
+                                return t;
+                            }
+                        });
+            }
+        }
+        if (this.options.isHttp2()) {
+            this.http2Executor = newStreamExecutor();
+        }
+        // blocking connections hold their thread while they wait anyway, so
+        // only workers handed out per request are worth reserving
+        boolean perRequest = this.nonBlocking || this.http2Executor != null;
+        this.requestScheduler.reserveWorkers(perRequest && this.asyncRunner instanceof BoundedAsyncRunner ? ((BoundedAsyncRunner) this.asyncRunner).getMaxThreads() : 0);
+
+        this.acceptors.clear();
+        int acceptorThreads = Math.max(1, this.options.getAcceptorThreads());
+        for (int i = 0; i < acceptorThreads; i++) {
+            ServerRunnable serverRunnable = this.nonBlocking ? new SelectorServerRunnable() : createServerRunnable(this.headerTimeout);
+            if (i == 0 || !reusePort) {
+                serverRunnable.serverSocket = this.myServerSocket;
+            } else {
+                serverRunnable.serverSocket = openServerSocket();
+                setReusePort(serverRunnable.serverSocket);
+            }
+            serverRunnable.thread = new Thread(serverRunnable);
+            serverRunnable.thread.setDaemon(daemon);
+            serverRunnable.thread.setName(acceptorThreads == 1 ? "NanoHttpd Main Listener" : "NanoHttpd Main Listener " + (i + 1));
+            this.acceptors.add(serverRunnable);
+            // one at a time, later acceptors bind to the port of the first
+            serverRunnable.thread.start();
+            while (!serverRunnable.hasBinded && serverRunnable.bindException == null) {
+                try {
+                    Thread.sleep(10L);
+                } catch (Throwable e) {
+                    // on android this may not be allowed, that's why we
+                    // catch throwable the wait should be very short because
+                    // we are just waiting for the bind of the socket
+                }
+            }
+            if (serverRunnable.bindException != null) {
+                stop();
+                throw serverRunnable.bindException;
+            }
+        }
+    }
+
+    /**
+     * @return a new, unbound listening socket for the configured engine.
+     */
+    private ServerSocket openServerSocket() throws IOException {
+        ServerSocket serverSocket;
+        if (this.options.getUnixDomainSocket() != null) {
+            serverSocket = new UnixDomainServerSocket(this.options.getUnixDomainSocket());
+        } else if (!this.nonBlocking && this.sslServerSocketFactory != null) {
             SSLServerSocket ss = (SSLServerSocket) this.sslServerSocketFactory.createServerSocket();
             ss.setNeedClientAuth(false);
-            this.myServerSocket = ss;
+            if (this.options.isHttp2()) {
+                Http2Connection.offerApplicationProtocols(ss);
+            }
+            serverSocket = ss;
         } else {
-            this.myServerSocket = new ServerSocket();
+            // channel backed, so that file responses can use transferTo and
+            // the non-blocking engine can select on it
+            serverSocket = ServerSocketChannel.open().socket();
+        }
+        serverSocket.setReuseAddress(true);
+        if (this.options.getReceiveBufferSize() > 0) {
+            serverSocket.setReceiveBufferSize(this.options.getReceiveBufferSize());
         }
-        this.myServerSocket.setReuseAddress(true);
+        return serverSocket;
+    }
 
-        ServerRunnable serverRunnable = createServerRunnable(timeout);
-        this.myThread = new Thread(serverRunnable);
-        this.myThread.setDaemon(daemon);
-        this.myThread.setName("NanoHttpd Main Listener");
-        this.myThread.start();
-        while (!serverRunnable.hasBinded && serverRunnable.bindException == null) {
-            try {
-                Thread.sleep(10L);
-            } catch (Throwable e) {
-                // on android this may not be allowed, that's why we
-                // catch throwable the wait should be very short because we are
-                // just waiting for the bind of the socket
+    /**
+     * Binds a listening socket unless it is bound already, shared with an
+     * earlier acceptor. Later sockets join the port the first one got.
+     */
+    private void bind(ServerSocket serverSocket) throws IOException {
+        if (serverSocket.isBound()) {
+            return;
+        }
+        int port = serverSocket == this.myServerSocket ? this.myPort : this.myServerSocket.getLocalPort();
+        serverSocket.bind(this.hostname != null ? new InetSocketAddress(this.hostname, port) : new InetSocketAddress(port), this.options.getBacklog());
+    }
+
+    /**
+     * Sets <code>SO_REUSEPORT</code> on an unbound listening socket. The
+     * option only exists from Java 9 on and is looked up by name, so this
+     * class still loads where it is missing, such as on Android.
+     * 
+     * @return false if the platform does not support it.
+     */
+    private static boolean setReusePort(ServerSocket serverSocket) {
+        try {
+            Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+            Class<?> optionType = Class.forName("java.net.SocketOption");
+            Object target = serverSocket.getChannel();
+            Class<?> targetType;
+            if (target != null) {
+                targetType = Class.forName("java.nio.channels.NetworkChannel");
+                Set<?> supported = (Set<?>) targetType.getMethod("supportedOptions").invoke(target);
+                if (!supported.contains(option)) {
+                    return false;
+                }
+            } else {
+                // ServerSocket.setOption came with Java 9 as well
+                target = serverSocket;
+                targetType = ServerSocket.class;
             }
+            targetType.getMethod("setOption", optionType, Object.class).invoke(target, option, Boolean.TRUE);
+            return true;
+        } catch (Exception e) {
+            NanoHTTPD.LOG.log(Level.FINE, "Could not set SO_REUSEPORT", e);
+            return false;
+        } catch (LinkageError e) {
+            NanoHTTPD.LOG.log(Level.FINE, "Could not set SO_REUSEPORT", e);
+            return false;
         }
-        if (serverRunnable.bindException != null) {
-            throw serverRunnable.bindException;
+    }
+
+    /**
+     * Applies the session options to the context.
+     */
+    private void configureSessions(SSLContext sslContext) {
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        if (this.options.getTlsSessionCacheSize() > 0) {
+            sessions.setSessionCacheSize(this.options.getTlsSessionCacheSize());
+        }
+        if (this.options.getTlsSessionTimeout() > 0) {
+            sessions.setSessionTimeout(this.options.getTlsSessionTimeout());
         }
     }
 
@@ -1986,17 +6644,119 @@ public abstract class NanoHTTPD {
      */
     public void stop() {
         try {
-            safeClose(this.myServerSocket);
+            closeListeners();
             this.asyncRunner.closeAll();
-            if (this.myThread != null) {
-                this.myThread.join();
+            this.requestScheduler.cancelDeferred();
+            for (ServerRunnable acceptor : this.acceptors) {
+                acceptor.thread.join();
+            }
+            if (this.asyncRunner instanceof BoundedAsyncRunner) {
+                // nothing is handed to the workers any more
+                ((BoundedAsyncRunner) this.asyncRunner).shutdown();
+            }
+            if (this.http2Executor != null) {
+                this.http2Executor.shutdown();
+                this.http2Executor = null;
+            }
+            if (this.tlsExecutor != null) {
+                this.tlsExecutor.shutdown();
+                this.tlsExecutor = null;
+            }
+            if (this.timerWheel != null) {
+                this.timerWheel.stop();
+                this.timerWheel = null;
             }
         } catch (Exception e) {
             NanoHTTPD.LOG.log(Level.SEVERE, "Could not stop all connections", e);
         }
     }
 
+    /**
+     * Stops the server without cutting off the requests in flight. No more
+     * connections are accepted, idle ones are closed, the next response on
+     * every keep-alive connection carries <code>Connection: close</code> and
+     * HTTP/2 clients are told with a GOAWAY to open no more streams.
+     * Requests that begin after the drain, such as pipelined ones or those
+     * still waiting for a worker, are answered with 503 and
+     * <code>Connection: close</code>. What has not finished after the drain
+     * timeout is cut off as by {@link #stop()}.
+     * 
+     * @param drainTimeout
+     *            milliseconds the requests in flight are given to finish.
+     * @return how many requests were drained and how many aborted.
+     */
+    public DrainResult stop(long drainTimeout) {
+        synchronized (this.drainLock) {
+            // only the requests in flight now are waited for and counted
+            this.drainGeneration++;
+            this.drainPending = this.inFlight;
+            this.drained = 0;
+            this.draining = true;
+        }
+        closeListeners();
+        for (ClientHandler clientHandler : this.connections) {
+            clientHandler.drain();
+        }
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        DrainResult result;
+        synchronized (this.drainLock) {
+            long wait;
+            while (this.drainPending > 0 && (wait = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    this.drainLock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            result = new DrainResult(this.drained, this.drainPending);
+            this.draining = false;
+        }
+        stop();
+        return result;
+    }
+
+    /**
+     * Closes the listening sockets and wakes the selectors, so the acceptors
+     * stop.
+     */
+    private void closeListeners() {
+        safeClose(this.myServerSocket);
+        for (ServerRunnable acceptor : this.acceptors) {
+            safeClose(acceptor.serverSocket);
+            if (acceptor instanceof SelectorServerRunnable) {
+                ((SelectorServerRunnable) acceptor).wakeup();
+            }
+        }
+    }
+
+    /**
+     * @return the drain generation the request starts in.
+     */
+    private int requestStarted() {
+        synchronized (this.drainLock) {
+            this.inFlight++;
+            return this.drainGeneration;
+        }
+    }
+
+    private void requestFinished(int generation) {
+        synchronized (this.drainLock) {
+            this.inFlight--;
+            if (this.draining && generation != this.drainGeneration && this.drainPending > 0) {
+                this.drained++;
+                if (--this.drainPending == 0) {
+                    this.drainLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private boolean isStartedWhileDraining(int generation) {
+        return this.draining && generation == this.drainGeneration;
+    }
+
     public final boolean wasStarted() {
-        return this.myServerSocket != null && this.myThread != null;
+        return this.myServerSocket != null && !this.acceptors.isEmpty();
     }
 }
@@ -0,0 +1,331 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import fi.iki.elonen.NanoHTTPD.ConnectionPhase;
+
+/**
+ * Enforces the deadlines of all connections from a single thread.
+ * <p/>
+ * <p>
+ * Each connection owns one {@link Deadline} that it moves from phase to
+ * phase. Moving a deadline only writes its expiry; the wheel looks at it
+ * again when the slot it was filed under comes round and files it anew if
+ * it has been pushed back in the meantime. Arming and disarming therefore
+ * cost no locking on the request path, and the thread does work only for
+ * the slots that come due, however many connections are open.
+ * </p>
+ * <p>
+ * A connection whose deadline passes has its socket closed, which fails any
+ * read or write blocked on it, and the phase it was in is counted.
+ * </p>
+ */
+final class TimerWheel implements Runnable {
+
+    /**
+     * Resolution of the deadlines in milliseconds.
+     */
+    static final int TICK = 100;
+
+    /**
+     * Slots of the wheel. Deadlines further out than one turn are filed under
+     * the last slot and moved on when it comes round.
+     */
+    private static final int SLOTS = 512;
+
+    private final List<List<Deadline>> slots;
+
+    private final AtomicLongArray expired;
+
+    private final long origin = System.currentTimeMillis();
+
+    /**
+     * Number of the next tick to process.
+     */
+    private long tick;
+
+    private volatile boolean running = true;
+
+    private Thread thread;
+
+    /**
+     * @param expired
+     *            counts the connections closed, indexed by the ordinal of
+     *            the phase they were in.
+     */
+    TimerWheel(AtomicLongArray expired) {
+        this.expired = expired;
+        this.slots = new ArrayList<List<Deadline>>(SLOTS);
+        for (int i = 0; i < SLOTS; i++) {
+            this.slots.add(new ArrayList<Deadline>());
+        }
+    }
+
+    void start() {
+        this.thread = new Thread(this);
+        this.thread.setDaemon(true);
+        this.thread.setName("NanoHttpd Deadlines");
+        this.thread.start();
+    }
+
+    void stop() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * @return a deadline for a connection, disarmed.
+     */
+    Deadline newDeadline(Object connection) {
+        return new Deadline(this, connection);
+    }
+
+    private long tickOf(long time) {
+        return (time - this.origin) / TICK;
+    }
+
+    /**
+     * Files the deadline under the tick of the expiry, unless it is filed
+     * under that tick or an earlier one already. A deadline moved to an
+     * earlier tick is filed again; its old entry is skipped when its slot
+     * comes round.
+     */
+    private synchronized void schedule(Deadline deadline, long expiry) {
+        long due = Math.min(Math.max(tickOf(expiry), this.tick), this.tick + SLOTS - 1);
+        if (deadline.scheduled && due >= deadline.dueTick) {
+            return;
+        }
+        this.slots.get((int) (due % SLOTS)).add(deadline);
+        deadline.dueTick = due;
+        deadline.scheduled = true;
+    }
+
+    @Override
+    public void run() {
+        List<Deadline> due = new ArrayList<Deadline>();
+        while (this.running) {
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                long current = tickOf(now);
+                while (this.tick < current) {
+                    List<Deadline> slot = this.slots.get((int) (this.tick % SLOTS));
+                    for (Deadline deadline : slot) {
+                        if (deadline.scheduled && deadline.dueTick == this.tick) {
+                            deadline.scheduled = false;
+                            due.add(deadline);
+                        }
+                    }
+                    slot.clear();
+                    this.tick++;
+                }
+            }
+            for (Deadline deadline : due) {
+                deadline.check(now);
+            }
+            due.clear();
+            try {
+                Thread.sleep(Math.max(1, this.origin + (this.tick + 1) * TICK - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                // stopping
+            }
+        }
+    }
+
+    /**
+     * Deadline of one connection. Only the thread serving the connection
+     * moves it, so apart from the expiries its state needs no
+     * synchronization.
+     */
+    static final class Deadline {
+
+        private final TimerWheel wheel;
+
+        /**
+         * Socket or channel closed when the deadline passes.
+         */
+        private final Object connection;
+
+        /**
+         * True while filed under a slot, set under the lock of the wheel.
+         */
+        private volatile boolean scheduled;
+
+        /**
+         * Tick the deadline is filed under while scheduled, set under the
+         * lock of the wheel.
+         */
+        private volatile long dueTick;
+
+        /**
+         * Expiry of the current read phase, 0 while disarmed.
+         */
+        private volatile long expiry;
+
+        private volatile ConnectionPhase phase;
+
+        /**
+         * Expiry of the write in progress, 0 while not writing.
+         */
+        private volatile long writeExpiry;
+
+        private long phaseStart;
+
+        private int timeout;
+
+        private int minRate;
+
+        private long received;
+
+        private Deadline(TimerWheel wheel, Object connection) {
+            this.wheel = wheel;
+            this.connection = connection;
+        }
+
+        /**
+         * Starts a phase that has to be over within timeout milliseconds.
+         * A timeout of 0 or less lets the phase take as long as it takes.
+         */
+        void arm(ConnectionPhase phase, int timeout) {
+            arm(phase, timeout, 0);
+        }
+
+        /**
+         * Starts a phase that receives data. Its time is extended by one
+         * second for every minRate bytes received or, with a minRate of 0,
+         * starts over with every read.
+         */
+        void arm(ConnectionPhase phase, int timeout, int minRate) {
+            if (timeout <= 0) {
+                disarm();
+                return;
+            }
+            this.phase = phase;
+            this.phaseStart = System.currentTimeMillis();
+            this.timeout = timeout;
+            this.minRate = minRate;
+            this.received = 0;
+            setExpiry(this.phaseStart + timeout);
+        }
+
+        void disarm() {
+            this.expiry = 0;
+            this.phase = null;
+        }
+
+        /**
+         * @return the phase armed, null if none.
+         */
+        ConnectionPhase getPhase() {
+            return this.phase;
+        }
+
+        /**
+         * Accounts for bytes read from the connection.
+         */
+        void received(int bytes) {
+            if (this.phase != ConnectionPhase.BODY || bytes <= 0) {
+                return;
+            }
+            if (this.minRate > 0) {
+                this.received += bytes;
+                setExpiry(this.phaseStart + this.timeout + this.received * 1000 / this.minRate);
+            } else {
+                setExpiry(System.currentTimeMillis() + this.timeout);
+            }
+        }
+
+        /**
+         * Bounds the time of a write, independent of the phase.
+         */
+        void beginWrite(int timeout) {
+            if (timeout > 0) {
+                long writeExpiry = System.currentTimeMillis() + timeout;
+                this.writeExpiry = writeExpiry;
+                fileBy(writeExpiry);
+            }
+        }
+
+        void endWrite() {
+            this.writeExpiry = 0;
+        }
+
+        private void setExpiry(long expiry) {
+            this.expiry = expiry;
+            fileBy(expiry);
+        }
+
+        /**
+         * Makes sure the wheel looks at the deadline by the given time. Later
+         * times need no locking: the wheel files the deadline again when it
+         * comes round too early.
+         */
+        private void fileBy(long time) {
+            if (!this.scheduled || this.wheel.tickOf(time) < this.dueTick) {
+                this.wheel.schedule(this, time);
+            }
+        }
+
+        /**
+         * Closes the connection if a deadline has passed, otherwise files it
+         * again for the earlier of its expiries. Called by the wheel.
+         */
+        private void check(long now) {
+            long expiry = this.expiry;
+            long writeExpiry = this.writeExpiry;
+            ConnectionPhase phase;
+            if (writeExpiry != 0 && writeExpiry <= now) {
+                phase = ConnectionPhase.RESPONSE;
+            } else if (expiry != 0 && expiry <= now) {
+                phase = this.phase;
+            } else {
+                if (expiry != 0 || writeExpiry != 0) {
+                    this.wheel.schedule(this, expiry == 0 ? writeExpiry : writeExpiry == 0 ? expiry : Math.min(expiry, writeExpiry));
+                }
+                return;
+            }
+            this.expiry = 0;
+            this.writeExpiry = 0;
+            if (phase != null) {
+                this.wheel.expired.incrementAndGet(phase.ordinal());
+            }
+            NanoHTTPD.safeClose(this.connection);
+        }
+    }
+}
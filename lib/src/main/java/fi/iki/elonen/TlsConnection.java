@@ -0,0 +1,676 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import fi.iki.elonen.NanoHTTPD.BufferPool;
+
+/**
+ * TLS for a connection of the non-blocking engine, built on an
+ * {@link SSLEngine}.
+ * <p/>
+ * <p>
+ * The handshake advances without blocking whenever the selector sees the
+ * connection ready, on the handshake executor rather than the selector
+ * thread. Once it is complete, request headers are decrypted as they arrive
+ * and the workers serving the requests read and write through the blocking
+ * streams of this class.
+ * </p>
+ * <p>
+ * Records are sized for the response: after a pause the first records are
+ * small enough to fit a TCP segment each, so the client can start on the
+ * first bytes of a response before the rest has arrived, and bulk transfers
+ * continue with full-size records.
+ * </p>
+ * <p>
+ * Buffers are borrowed from the {@link BufferPool} as needed and given back
+ * while the connection is idle.
+ * </p>
+ */
+final class TlsConnection {
+
+    /**
+     * Plaintext per small record, so that a record with its overhead fits
+     * into one TCP segment of a typical path.
+     */
+    private static final int SMALL_RECORD_SIZE = 1369;
+
+    /**
+     * Small records sent after a pause before switching to full-size ones,
+     * roughly what the congestion window lets through in the first round
+     * trips.
+     */
+    private static final int SMALL_RECORD_COUNT = 40;
+
+    private static final int MAX_RECORD_SIZE = 16 * 1024;
+
+    /**
+     * Pause in milliseconds after which responses start with small records
+     * again.
+     */
+    private static final long IDLE_RESET = 1000;
+
+    /**
+     * Encrypted output collected before it is written to the socket.
+     */
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Decrypting stream for the worker serving the connection.
+     */
+    private final class Input extends InputStream {
+
+        /**
+         * Buffer for single-byte reads. Guarded by inputLock.
+         */
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            TlsConnection.this.inputLock.lock();
+            try {
+                return read(this.single, 0, 1) == -1 ? -1 : this.single[0] & 0xff;
+            } finally {
+                TlsConnection.this.inputLock.unlock();
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            TlsConnection.this.inputLock.lock();
+            try {
+                if (len == 0) {
+                    return 0;
+                }
+                while (appIn().position() == 0) {
+                    if (TlsConnection.this.engine.isInboundDone()) {
+                        return -1;
+                    }
+                    if (!unwrap() && !fill()) {
+                        return -1;
+                    }
+                }
+                ByteBuffer appIn = TlsConnection.this.appIn;
+                appIn.flip();
+                int read = Math.min(len, appIn.remaining());
+                appIn.get(b, off, read);
+                appIn.compact();
+                return read;
+            } finally {
+                TlsConnection.this.inputLock.unlock();
+            }
+        }
+
+        /**
+         * Decrypts records that have been received already, so that a
+         * request waiting in the buffers is not overlooked.
+         */
+        @Override
+        public int available() throws IOException {
+            TlsConnection.this.inputLock.lock();
+            try {
+                if (TlsConnection.this.netIn != null && TlsConnection.this.netIn.position() > 0 && appIn().position() == 0) {
+                    unwrap();
+                }
+                return TlsConnection.this.appIn == null ? 0 : TlsConnection.this.appIn.position();
+            } finally {
+                TlsConnection.this.inputLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            // the connection is closed with the socket
+        }
+
+        /**
+         * Reads more records from the socket, waiting at most the socket
+         * timeout.
+         * 
+         * @return false at the end of the stream.
+         */
+        private boolean fill() throws IOException {
+            ByteBuffer netIn = netIn();
+            if (!netIn.hasRemaining()) {
+                netIn = growNetIn();
+            }
+            int read = socketInputStream().read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+            if (read < 0) {
+                return false;
+            }
+            netIn.position(netIn.position() + read);
+            return true;
+        }
+    }
+
+    /**
+     * Encrypting stream for the worker serving the connection.
+     */
+    private final class Output extends OutputStream {
+
+        /**
+         * Buffer for single-byte writes. Guarded by outputLock.
+         */
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            TlsConnection.this.outputLock.lock();
+            try {
+                this.single[0] = (byte) b;
+                write(this.single, 0, 1);
+            } finally {
+                TlsConnection.this.outputLock.unlock();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            TlsConnection.this.outputLock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                if (now - TlsConnection.this.lastWrite > IDLE_RESET) {
+                    TlsConnection.this.smallRecords = SMALL_RECORD_COUNT;
+                }
+                TlsConnection.this.lastWrite = now;
+                while (len > 0) {
+                    int length = Math.min(len, TlsConnection.this.smallRecords > 0 ? SMALL_RECORD_SIZE : MAX_RECORD_SIZE);
+                    ByteBuffer src = ByteBuffer.wrap(b, off, length);
+                    while (src.hasRemaining()) {
+                        if (!wrap(src)) {
+                            flushBlocking();
+                        }
+                    }
+                    if (TlsConnection.this.smallRecords > 0) {
+                        TlsConnection.this.smallRecords--;
+                    }
+                    off += length;
+                    len -= length;
+                }
+            } finally {
+                TlsConnection.this.outputLock.unlock();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            TlsConnection.this.outputLock.lock();
+            try {
+                flushBlocking();
+            } finally {
+                TlsConnection.this.outputLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private final SSLEngine engine;
+
+    private final SocketChannel channel;
+
+    /**
+     * Guards the decrypting side. Locks rather than monitors, as the holder
+     * may block on the socket, which would pin a virtual thread's carrier.
+     */
+    private final ReentrantLock inputLock = new ReentrantLock();
+
+    /**
+     * Guards the encrypting side; taken after inputLock where both are
+     * needed.
+     */
+    private final ReentrantLock outputLock = new ReentrantLock();
+
+    private final Input input = new Input();
+
+    private final Output output = new Output();
+
+    private InputStream socketInputStream;
+
+    /**
+     * Received records not decrypted yet, in write mode. Guarded by
+     * inputLock.
+     */
+    private ByteBuffer netIn;
+
+    /**
+     * Decrypted bytes not read yet, in write mode. Guarded by inputLock.
+     */
+    private ByteBuffer appIn;
+
+    /**
+     * Encrypted bytes not written yet, in read mode. Guarded by outputLock.
+     */
+    private ByteBuffer netOut;
+
+    private volatile boolean handshaken;
+
+    /**
+     * Small records left before full-size ones are sent. Guarded by
+     * outputLock.
+     */
+    private int smallRecords;
+
+    private long lastWrite;
+
+    TlsConnection(SSLEngine engine, SocketChannel channel) throws SSLException {
+        this.engine = engine;
+        this.channel = channel;
+        engine.setUseClientMode(false);
+        engine.beginHandshake();
+    }
+
+    SSLEngine getEngine() {
+        return this.engine;
+    }
+
+    InputStream getInputStream() {
+        return this.input;
+    }
+
+    OutputStream getOutputStream() {
+        return this.output;
+    }
+
+    boolean isHandshaken() {
+        return this.handshaken;
+    }
+
+    /**
+     * Advances the handshake as far as possible without blocking. The
+     * channel must be in non-blocking mode.
+     * 
+     * @return the operation to wait for before calling again, or 0 once the
+     *         handshake is complete.
+     */
+    int handshake() throws IOException {
+        this.inputLock.lock();
+        this.outputLock.lock();
+        try {
+            // a flight of handshake messages leaves in one write, lest
+            // Nagle's algorithm hold back its second half
+            while (true) {
+                HandshakeStatus status = this.engine.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                } else if (status == HandshakeStatus.NEED_WRAP) {
+                    if (!wrap(EMPTY) && !flushNonBlocking()) {
+                        return SelectionKey.OP_WRITE;
+                    }
+                } else if (status == HandshakeStatus.FINISHED || status == HandshakeStatus.NOT_HANDSHAKING) {
+                    // when the request came along with the client's
+                    // last message, the server's last message (a session
+                    // ticket) goes out with the response
+                    if (netIn().position() == 0 && !flushNonBlocking()) {
+                        return SelectionKey.OP_WRITE;
+                    }
+                    this.handshaken = true;
+                    return 0;
+                } else if (this.engine.isInboundDone()) {
+                    throw new EOFException("Connection closed during the TLS handshake");
+                } else if (!unwrap()) {
+                    if (!flushNonBlocking()) {
+                        return SelectionKey.OP_WRITE;
+                    }
+                    ByteBuffer netIn = netIn().hasRemaining() ? this.netIn : growNetIn();
+                    int read = this.channel.read(netIn);
+                    if (read < 0) {
+                        throw new EOFException("Connection closed during the TLS handshake");
+                    }
+                    if (read == 0) {
+                        return SelectionKey.OP_READ;
+                    }
+                }
+            }
+        } finally {
+            this.outputLock.unlock();
+            this.inputLock.unlock();
+        }
+    }
+
+    /**
+     * Decrypts what has arrived into dst, without blocking. The channel must
+     * be in non-blocking mode.
+     * 
+     * @return the number of bytes decrypted, 0 if no complete record has
+     *         arrived or -1 at the end of the stream.
+     */
+    int read(ByteBuffer dst) throws IOException {
+        this.inputLock.lock();
+        try {
+            while (appIn().position() == 0) {
+                if (this.engine.isInboundDone()) {
+                    return -1;
+                }
+                if (!unwrap()) {
+                    ByteBuffer netIn = netIn().hasRemaining() ? this.netIn : growNetIn();
+                    int read = this.channel.read(netIn);
+                    if (read <= 0) {
+                        return read;
+                    }
+                }
+            }
+            this.appIn.flip();
+            int read = Math.min(dst.remaining(), this.appIn.remaining());
+            int limit = this.appIn.limit();
+            this.appIn.limit(this.appIn.position() + read);
+            dst.put(this.appIn);
+            this.appIn.limit(limit);
+            this.appIn.compact();
+            return read;
+        } finally {
+            this.inputLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if received bytes wait in the buffers, so that the
+     *         connection must not wait for the selector to see more.
+     */
+    boolean hasBufferedInput() {
+        this.inputLock.lock();
+        try {
+            return this.appIn != null && this.appIn.position() > 0 || this.netIn != null && this.netIn.position() > 0;
+        } finally {
+            this.inputLock.unlock();
+        }
+    }
+
+    /**
+     * Gives the buffers back to the pool while the connection is idle. They
+     * are borrowed again when needed.
+     */
+    void releaseIdle() {
+        this.inputLock.lock();
+        try {
+            if (this.netIn != null && this.netIn.position() == 0) {
+                BufferPool.getDefault().release(this.netIn.array());
+                this.netIn = null;
+            }
+            if (this.appIn != null && this.appIn.position() == 0) {
+                BufferPool.getDefault().release(this.appIn.array());
+                this.appIn = null;
+            }
+        } finally {
+            this.inputLock.unlock();
+        }
+        this.outputLock.lock();
+        try {
+            if (this.netOut != null && !this.netOut.hasRemaining()) {
+                BufferPool.getDefault().release(this.netOut.array());
+                this.netOut = null;
+            }
+        } finally {
+            this.outputLock.unlock();
+        }
+    }
+
+    /**
+     * Sends close_notify to the client. In non-blocking mode it is only
+     * sent as far as a single write gets it out.
+     */
+    void closeOutbound() {
+        this.outputLock.lock();
+        try {
+            this.engine.closeOutbound();
+            try {
+                if (wrap(EMPTY)) {
+                    if (this.channel.isBlocking()) {
+                        flushBlocking();
+                    } else {
+                        // a single attempt, the connection is closed anyway
+                        flushNonBlocking();
+                    }
+                }
+            } catch (IOException e) {
+                // closing anyway
+            }
+        } finally {
+            this.outputLock.unlock();
+        }
+    }
+
+    /**
+     * Gives all buffers back to the pool once the connection is closed.
+     */
+    void release() {
+        this.inputLock.lock();
+        try {
+            if (this.netIn != null) {
+                BufferPool.getDefault().release(this.netIn.array());
+                this.netIn = null;
+            }
+            if (this.appIn != null) {
+                BufferPool.getDefault().release(this.appIn.array());
+                this.appIn = null;
+            }
+        } finally {
+            this.inputLock.unlock();
+        }
+        this.outputLock.lock();
+        try {
+            if (this.netOut != null) {
+                BufferPool.getDefault().release(this.netOut.array());
+                this.netOut = null;
+            }
+        } finally {
+            this.outputLock.unlock();
+        }
+    }
+
+    /**
+     * Decrypts the next record in netIn into appIn, answering whatever
+     * handshake messages it may carry.
+     * 
+     * @return false if no complete record is buffered.
+     */
+    private boolean unwrap() throws IOException {
+        ByteBuffer netIn = netIn();
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = this.engine.unwrap(netIn, appIn());
+        } finally {
+            netIn.compact();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                return false;
+            case BUFFER_OVERFLOW:
+                if (this.appIn.position() > 0) {
+                    // the caller drains appIn first
+                    return true;
+                }
+                throw new SSLException("Record larger than the application buffer");
+            default:
+                break;
+        }
+        if (this.handshaken) {
+            // post-handshake messages such as a key update
+            HandshakeStatus status = result.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                status = this.engine.getHandshakeStatus();
+            }
+            if (status == HandshakeStatus.NEED_WRAP) {
+                this.outputLock.lock();
+                try {
+                    while (this.engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                        if (!wrap(EMPTY)) {
+                            flush();
+                        }
+                    }
+                    flush();
+                } finally {
+                    this.outputLock.unlock();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encrypts from src into netOut.
+     * 
+     * @return false if netOut needs to be written first.
+     */
+    private boolean wrap(ByteBuffer src) throws IOException {
+        ByteBuffer netOut = netOut();
+        netOut.compact();
+        SSLEngineResult result;
+        try {
+            result = this.engine.wrap(src, netOut);
+        } finally {
+            netOut.flip();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                if (!netOut.hasRemaining()) {
+                    throw new SSLException("Record larger than the network buffer");
+                }
+                return false;
+            case CLOSED:
+                if (src.hasRemaining()) {
+                    throw new SSLException("Connection closed");
+                }
+                break;
+            default:
+                break;
+        }
+        if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+        }
+        return true;
+    }
+
+    private void flush() throws IOException {
+        if (this.channel.isBlocking()) {
+            flushBlocking();
+        } else {
+            flushNonBlocking();
+        }
+    }
+
+    private void flushBlocking() throws IOException {
+        if (this.netOut != null) {
+            while (this.netOut.hasRemaining()) {
+                this.channel.write(this.netOut);
+            }
+        }
+    }
+
+    /**
+     * @return false if not everything could be written.
+     */
+    private boolean flushNonBlocking() throws IOException {
+        if (this.netOut != null && this.netOut.hasRemaining()) {
+            this.channel.write(this.netOut);
+            return !this.netOut.hasRemaining();
+        }
+        return true;
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = this.engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * The socket stream rather than the channel, because only the stream
+     * honours the read timeout.
+     */
+    private InputStream socketInputStream() throws IOException {
+        if (this.socketInputStream == null) {
+            this.socketInputStream = this.channel.socket().getInputStream();
+        }
+        return this.socketInputStream;
+    }
+
+    private ByteBuffer netIn() {
+        if (this.netIn == null) {
+            this.netIn = ByteBuffer.wrap(BufferPool.getDefault().acquire(this.engine.getSession().getPacketBufferSize()));
+        }
+        return this.netIn;
+    }
+
+    /**
+     * Makes room for a record larger than the buffer, should the session
+     * have raised its packet size.
+     */
+    private ByteBuffer growNetIn() {
+        ByteBuffer grown = ByteBuffer.wrap(BufferPool.getDefault().acquire(Math.max(this.netIn.capacity() * 2, this.engine.getSession().getPacketBufferSize())));
+        this.netIn.flip();
+        grown.put(this.netIn);
+        BufferPool.getDefault().release(this.netIn.array());
+        this.netIn = grown;
+        return grown;
+    }
+
+    private ByteBuffer appIn() {
+        if (this.appIn == null) {
+            this.appIn = ByteBuffer.wrap(BufferPool.getDefault().acquire(this.engine.getSession().getApplicationBufferSize()));
+        }
+        return this.appIn;
+    }
+
+    private ByteBuffer netOut() {
+        if (this.netOut == null) {
+            // heap rather than direct: the JDK's ciphers copy direct
+            // buffers through heap arrays anyway
+            this.netOut = ByteBuffer.wrap(BufferPool.getDefault().acquire(Math.max(OUTPUT_BUFFER_SIZE, this.engine.getSession().getPacketBufferSize())));
+            this.netOut.limit(0);
+        }
+        return this.netOut;
+    }
+}
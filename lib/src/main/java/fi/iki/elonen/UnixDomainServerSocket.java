@@ -0,0 +1,387 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.ProtocolFamily;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Listening socket bound to a path in the file system instead of a TCP port,
+ * for a proxy on the same host.
+ * <p/>
+ * <p>
+ * Unix domain sockets are only open to {@link ServerSocketChannel} and
+ * {@link SocketChannel}, whose socket adaptors do not support them. This
+ * class and its {@link Connection} stand in for the adaptors, so both engines
+ * serve the connections as they serve TCP ones: the blocking engine accepts
+ * through {@link #accept()}, the non-blocking engine selects on
+ * {@link #getChannel()}, and responses still go out with gathering writes and
+ * <code>transferTo</code> on the channel.
+ * </p>
+ * <p>
+ * The channel streams have no read timeout, so connections are bounded by
+ * their deadlines alone. They have no client address either; the proxy
+ * passes it in a header, see
+ * {@link NanoHTTPD.ServerOptions#setForwardedHeader(String)}. Unix domain
+ * sockets came with Java 16 and are looked up by reflection.
+ * </p>
+ */
+final class UnixDomainServerSocket extends ServerSocket {
+
+    /**
+     * <code>StandardProtocolFamily.UNIX</code>, null before Java 16.
+     */
+    private static final ProtocolFamily UNIX = lookupUnix();
+
+    private final File path;
+
+    private final ServerSocketChannel channel;
+
+    private volatile boolean bound;
+
+    UnixDomainServerSocket(File path) throws IOException {
+        if (UNIX == null) {
+            throw new IOException("Unix domain sockets require Java 16 or newer");
+        }
+        this.path = path;
+        try {
+            this.channel = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, UNIX);
+        } catch (Exception e) {
+            throw new IOException("Could not open a Unix domain socket", e);
+        }
+    }
+
+    private static ProtocolFamily lookupUnix() {
+        try {
+            return Enum.valueOf(StandardProtocolFamily.class, "UNIX");
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Binds to the path given at construction, whatever the endpoint. A
+     * socket left behind by an earlier server is removed first, but only if
+     * no server answers on it any more; the path is not removed on close, so
+     * a server started in the meantime keeps it.
+     */
+    @Override
+    public void bind(SocketAddress endpoint, int backlog) throws IOException {
+        SocketAddress address;
+        try {
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, this.path.getPath());
+        } catch (Exception e) {
+            throw new IOException("Could not bind to " + this.path, e);
+        }
+        if (this.path.exists() && !this.path.isFile() && !this.path.isDirectory()) {
+            if (isListening(address)) {
+                throw new BindException("Address already in use: " + this.path);
+            }
+            if (!this.path.delete()) {
+                throw new IOException("Could not remove the stale socket " + this.path);
+            }
+        }
+        this.channel.bind(address, backlog);
+        this.bound = true;
+    }
+
+    /**
+     * Checks whether a server accepts connections on the socket at the
+     * given address.
+     */
+    private static boolean isListening(SocketAddress address) {
+        SocketChannel probe = null;
+        try {
+            probe = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, UNIX);
+            return probe.connect(address);
+        } catch (Exception e) {
+            // refused: nobody listens, the socket is stale
+            return false;
+        } finally {
+            if (probe != null) {
+                try {
+                    probe.close();
+                } catch (IOException e) {
+                    // nothing was sent
+                }
+            }
+        }
+    }
+
+    @Override
+    public Socket accept() throws IOException {
+        return new Connection(this.channel.accept());
+    }
+
+    @Override
+    public ServerSocketChannel getChannel() {
+        return this.channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !this.channel.isOpen();
+    }
+
+    @Override
+    public boolean isBound() {
+        return this.bound;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return null;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return -1;
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        try {
+            return this.channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void setReuseAddress(boolean on) {
+        // paths are not reused while bound
+    }
+
+    @Override
+    public void setReceiveBufferSize(int size) throws SocketException {
+        try {
+            this.channel.setOption(StandardSocketOptions.SO_RCVBUF, size);
+        } catch (IOException e) {
+            throw new SocketException(e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UnixDomainServerSocket[" + this.path + "]";
+    }
+
+    /**
+     * An accepted connection, served through streams that read and write
+     * its channel directly. Unlike the streams of
+     * {@link java.nio.channels.Channels}, they do not take the blocking lock
+     * of the channel, so an HTTP/2 connection can write while its reader is
+     * blocked.
+     */
+    static final class Connection extends Socket {
+
+        private final SocketChannel channel;
+
+        private final InputStream inputStream;
+
+        private final OutputStream outputStream;
+
+        private int soTimeout;
+
+        Connection(SocketChannel channel) throws SocketException {
+            super((SocketImpl) null);
+            this.channel = channel;
+            this.inputStream = new ChannelInputStream();
+            this.outputStream = new ChannelOutputStream();
+        }
+
+        private void checkBlocking() {
+            if (!this.channel.isBlocking()) {
+                throw new IllegalBlockingModeException();
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return this.inputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return this.outputStream;
+        }
+
+        @Override
+        public SocketChannel getChannel() {
+            return this.channel;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            this.channel.close();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return !this.channel.isOpen();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return this.channel.isConnected();
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            this.channel.shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            this.channel.shutdownOutput();
+        }
+
+        /**
+         * @return null, the peer has no network address.
+         */
+        @Override
+        public InetAddress getInetAddress() {
+            return null;
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            try {
+                return this.channel.getRemoteAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Remembered only, reads from the channel do not time out.
+         */
+        @Override
+        public synchronized void setSoTimeout(int timeout) {
+            this.soTimeout = timeout;
+        }
+
+        @Override
+        public synchronized int getSoTimeout() {
+            return this.soTimeout;
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) {
+            // no Nagle's algorithm to disable
+        }
+
+        @Override
+        public void setSendBufferSize(int size) throws SocketException {
+            try {
+                this.channel.setOption(StandardSocketOptions.SO_SNDBUF, size);
+            } catch (IOException e) {
+                throw new SocketException(e.getMessage());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "UnixDomainSocket[" + getRemoteSocketAddress() + "]";
+        }
+
+        private final class ChannelInputStream extends InputStream {
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                checkBlocking();
+                return Connection.this.channel.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                Connection.this.close();
+            }
+        }
+
+        private final class ChannelOutputStream extends OutputStream {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{
+                    (byte) b
+                }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                checkBlocking();
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    Connection.this.channel.write(buffer);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                Connection.this.close();
+            }
+        }
+    }
+}
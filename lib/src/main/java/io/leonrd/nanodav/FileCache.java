@@ -0,0 +1,374 @@
+package io.leonrd.nanodav;
+
+/*
+ * #%L
+ * NanoDav-WebDavServer
+ * %%
+ * Copyright (C) 2015 Leonard Chioveanu, 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-memory cache for the content of small, frequently requested
+ * files.
+ * <p/>
+ * <p>
+ * Entries are keyed by request path and are only valid while the
+ * modification time and size of the file match the cached ones, so files
+ * changed behind the server's back are reloaded. Writes through the server
+ * itself invalidate entries right away.
+ * </p>
+ * <p>
+ * The total size of the cached content is bounded. Entries are kept in
+ * least-recently-used order, but a file only replaces the eldest entry if it
+ * has been requested more often recently, as counted by a small
+ * count-min sketch that is halved periodically. That keeps one-off downloads
+ * from flushing the thumbnails and property lists clients keep coming back
+ * for.
+ * </p>
+ */
+public class FileCache {
+
+    /**
+     * Cached content of one file.
+     */
+    public static final class Entry {
+
+        private final File file;
+
+        private final long lastModified;
+
+        private final byte[] data;
+
+        private final String etag;
+
+        private Entry(File file, long lastModified, byte[] data) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.data = data;
+            this.etag = Integer.toHexString((file.getAbsolutePath() + lastModified + "" + data.length).hashCode());
+        }
+
+        public byte[] getData() {
+            return this.data;
+        }
+
+        public String getEtag() {
+            return this.etag;
+        }
+
+        public File getFile() {
+            return this.file;
+        }
+
+        public long getLastModified() {
+            return this.lastModified;
+        }
+
+        public long getLength() {
+            return this.data.length;
+        }
+
+        private boolean isCurrent() {
+            return this.file.lastModified() == this.lastModified && this.file.length() == this.data.length;
+        }
+    }
+
+    private static final int SKETCH_DEPTH = 4;
+
+    private static final int MAX_FREQUENCY = 15;
+
+    private final long maxBytes;
+
+    private final long maxFileSize;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+    private final byte[][] sketch;
+
+    private final int sketchMask;
+
+    private final int sampleSize;
+
+    private int samples;
+
+    private long size;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    /**
+     * @param maxBytes
+     *            upper bound for the total size of the cached content.
+     * @param maxFileSize
+     *            files larger than this are never cached.
+     */
+    public FileCache(long maxBytes, long maxFileSize) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = Math.min(maxFileSize, Math.min(maxBytes, Integer.MAX_VALUE));
+        int width = 1024;
+        while (width < (1 << 20) && width < maxBytes / 4096) {
+            width <<= 1;
+        }
+        this.sketch = new byte[SKETCH_DEPTH][width];
+        this.sketchMask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    /**
+     * Returns the cached content for the request path if the file has not
+     * changed since it was cached, and records the request.
+     */
+    public Entry get(String path) {
+        Entry entry;
+        synchronized (this) {
+            increment(path);
+            entry = this.entries.get(path);
+        }
+        // checking the file takes two system calls, keep them out of the lock
+        boolean current = entry != null && entry.isCurrent();
+        synchronized (this) {
+            if (entry != null && !current && this.entries.get(path) == entry) {
+                remove(path);
+            }
+            if (current) {
+                this.hits++;
+            } else {
+                this.misses++;
+            }
+        }
+        return current ? entry : null;
+    }
+
+    /**
+     * Reads the file into the cache if it is small enough and requested
+     * often enough to deserve a place. Admission is decided before the file
+     * is read, so a file that is not admitted is left for the caller to
+     * stream from disk.
+     * 
+     * @return the new entry, or null if the file was not admitted. The entry
+     *         is returned even if it lost its place while it was being read,
+     *         it is just not kept.
+     */
+    public Entry load(String path, File file) throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (!file.isFile() || length > this.maxFileSize) {
+            return null;
+        }
+        synchronized (this) {
+            if (!admit(path, length)) {
+                return null;
+            }
+        }
+        byte[] data = new byte[(int) length];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    return null;
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        if (file.lastModified() != lastModified || file.length() != length) {
+            // changed while reading
+            return null;
+        }
+        Entry entry = new Entry(file, lastModified, data);
+        synchronized (this) {
+            // other files may have been admitted while this one was read
+            if (admit(path, length)) {
+                remove(path);
+                while (this.size + length > this.maxBytes) {
+                    evictEldest();
+                }
+                this.entries.put(path, entry);
+                this.size += length;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Drops every entry for the file or, if it is a directory, for anything
+     * below it.
+     */
+    public synchronized void invalidate(File file) {
+        String path = file.getAbsolutePath();
+        String prefix = path.endsWith(File.separator) ? path : path + File.separator;
+        Iterator<Entry> it = this.entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            String entryPath = entry.file.getAbsolutePath();
+            if (entryPath.equals(path) || entryPath.startsWith(prefix)) {
+                it.remove();
+                this.size -= entry.data.length;
+            }
+        }
+    }
+
+    /**
+     * Drops all entries.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.size = 0;
+    }
+
+    /**
+     * Checks whether a file of the given size may replace the entries it
+     * would have to evict. Called with the lock held.
+     */
+    private boolean admit(String path, long length) {
+        if (this.size + length <= this.maxBytes) {
+            return true;
+        }
+        int frequency = frequency(path);
+        long freed = this.maxBytes - this.size;
+        for (Map.Entry<String, Entry> victim : this.entries.entrySet()) {
+            if (victim.getKey().equals(path)) {
+                freed += victim.getValue().data.length;
+                continue;
+            }
+            if (frequency(victim.getKey()) >= frequency) {
+                return false;
+            }
+            freed += victim.getValue().data.length;
+            if (freed >= length) {
+                return true;
+            }
+        }
+        return freed >= length;
+    }
+
+    private void evictEldest() {
+        Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+        Entry eldest = it.next().getValue();
+        it.remove();
+        this.size -= eldest.data.length;
+        this.evictions++;
+    }
+
+    private void remove(String path) {
+        Entry entry = this.entries.remove(path);
+        if (entry != null) {
+            this.size -= entry.data.length;
+        }
+    }
+
+    private void increment(String path) {
+        int hash = path.hashCode();
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            int index = index(hash, row);
+            if (this.sketch[row][index] < MAX_FREQUENCY) {
+                this.sketch[row][index]++;
+            }
+        }
+        if (++this.samples >= this.sampleSize) {
+            // age the counts so that past popularity fades
+            for (byte[] counters : this.sketch) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+            }
+            this.samples /= 2;
+        }
+    }
+
+    private int frequency(String path) {
+        int hash = path.hashCode();
+        int frequency = MAX_FREQUENCY;
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            frequency = Math.min(frequency, this.sketch[row][index(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private int index(int hash, int row) {
+        int h = hash * (0x9E3779B9 + 2 * row);
+        h ^= h >>> 16;
+        return h & this.sketchMask;
+    }
+
+    /**
+     * @return the number of requests answered from the cache.
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * @return the number of requests not found in the cache.
+     */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * @return the number of entries dropped to make room for others.
+     */
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    /**
+     * @return the total size of the cached content.
+     */
+    public synchronized long getSize() {
+        return this.size;
+    }
+
+    /**
+     * @return the number of cached files.
+     */
+    public synchronized int getEntryCount() {
+        return this.entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "FileCache[hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + ", size=" + getSize() + ", entries=" + getEntryCount() + "]";
+    }
+}
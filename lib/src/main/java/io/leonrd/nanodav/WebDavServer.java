@@ -34,12 +34,18 @@ package io.leonrd.nanodav;
  */
 
 import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.BufferPool;
 import org.kxml2.io.KXmlParser;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -94,9 +100,35 @@ public class WebDavServer extends NanoHTTPD {
 
     private static final Logger LOG = Logger.getLogger(WebDavServer.class.getName());
 
+    /**
+     * Range requests asking for more ranges than this get the entire file.
+     */
+    private static final int MAX_RANGES = 100;
+
+    /**
+     * Prefix of the temporary files uploads are written to before they are
+     * renamed into place.
+     */
+    private static final String PART_FILE_PREFIX = ".nanodav-";
+
+    private static final String PART_FILE_SUFFIX = ".part";
+
+    /**
+     * Leaves out uploads in progress, so they are neither listed nor copied.
+     */
+    private static final FilenameFilter NO_PART_FILES = new FilenameFilter() {
+
+        @Override
+        public boolean accept(File dir, String name) {
+            return !(name.startsWith(PART_FILE_PREFIX) && name.endsWith(PART_FILE_SUFFIX));
+        }
+    };
+
     private boolean quiet;
     protected File rootDir;
     private DateFormat dateFormat;
+    private FileCache fileCache;
+    private long maxUploadSize;
 
     public WebDavServer(String host, int port, File rootDir, boolean quiet) {
         super(host, port);
@@ -114,6 +146,11 @@ public class WebDavServer extends NanoHTTPD {
         init();
     }
 
+    public WebDavServer(String host, int port, File rootDir, boolean quiet, ServerOptions options) {
+        this(host, port, rootDir, quiet);
+        setServerOptions(options);
+    }
+
     private String appendPathComponent(final String path, final String component) {
         if (path.endsWith("/") || component.startsWith("/")) {
             return path + component;
@@ -186,20 +223,71 @@ public class WebDavServer extends NanoHTTPD {
         return response;
     }
 
+    public FileCache getFileCache() {
+        return this.fileCache;
+    }
+
+    /**
+     * Serves small, frequently requested files from the given in-memory cache.
+     * Null, the default, disables caching.
+     */
+    public void setFileCache(FileCache fileCache) {
+        this.fileCache = fileCache;
+    }
+
+    public long getMaxUploadSize() {
+        return this.maxUploadSize;
+    }
+
+    /**
+     * Limits the size of uploaded files. 0, the default, allows any size.
+     */
+    public void setMaxUploadSize(long maxUploadSize) {
+        this.maxUploadSize = maxUploadSize;
+    }
+
+    private void invalidateCache(File file) {
+        if (this.fileCache != null) {
+            this.fileCache.invalidate(file);
+        }
+    }
+
     /**
      * Used to initialize and customize the server.
      */
     public void init() {
     }
 
-    @Override
-    public Response serve(IHTTPSession session) {
+    /**
+     * Trims the URI of the session and removes URL arguments.
+     */
+    private static String getRequestPath(IHTTPSession session) {
         String uri = session.getUri();
-        // Remove URL arguments
         uri = uri.trim().replace(File.separatorChar, '/');
         if (uri.indexOf('?') >= 0) {
             uri = uri.substring(0, uri.indexOf('?'));
         }
+        return uri;
+    }
+
+    /**
+     * Rejects uploads that are going to fail before their body is sent.
+     */
+    @Override
+    protected Response checkPreconditions(IHTTPSession session) {
+        if (session.getMethod() != Method.PUT) {
+            return null;
+        }
+        String uri = getRequestPath(session);
+        if (uri.contains("../")) {
+            return getForbiddenErrorResponse("Won't serve ../ for security reasons.");
+        }
+        return checkPUT(uri, session.getBodySize());
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        String uri = getRequestPath(session);
 
         // Prohibit getting out of current directory
         if (uri.contains("../")) {
@@ -344,7 +432,7 @@ public class WebDavServer extends NanoHTTPD {
                 "</D:response>\n");
 
         if (depth > 0) {
-            final File files[] = directory.listFiles();
+            final File files[] = directory.listFiles(NO_PART_FILES);
             for (int i = 0; i < files.length; i++) {
                 File file = files[i];
                 String subUri = appendPathComponent(uri, encodeUri(file.getName()));
@@ -383,6 +471,13 @@ public class WebDavServer extends NanoHTTPD {
     }
 
     protected Response handleGET(final String uri, final Map<String, String> headers) {
+        if (this.fileCache != null) {
+            FileCache.Entry cached = this.fileCache.get(uri);
+            if (cached != null) {
+                return serveFile(headers, cached.getFile(), getMimeTypeForFile(uri), cached);
+            }
+        }
+
         if (!canServeUri(uri)) {
             return getNotFoundErrorResponse("");
         }
@@ -397,6 +492,15 @@ public class WebDavServer extends NanoHTTPD {
 
         String mimeTypeForFile = getMimeTypeForFile(uri);
 
+        if (this.fileCache != null) {
+            FileCache.Entry cached = null;
+            try {
+                cached = this.fileCache.load(uri, file);
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Could not cache " + uri, e);
+            }
+            return serveFile(headers, file, mimeTypeForFile, cached);
+        }
         return serveFile(uri, headers, file, mimeTypeForFile);
     }
 
@@ -405,28 +509,17 @@ public class WebDavServer extends NanoHTTPD {
      * ignores all headers and HTTP parameters.
      */
     Response serveFile(String uri, Map<String, String> header, File file, String mime) {
+        return serveFile(header, file, mime, null);
+    }
+
+    /**
+     * Serves the file, from the cached content if there is any.
+     */
+    private Response serveFile(Map<String, String> header, File file, String mime, FileCache.Entry cached) {
         Response res;
         try {
             // Calculate etag
-            String etag = Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
-
-            // Support (simple) skipping:
-            long startFrom = 0;
-            long endAt = -1;
-            String range = header.get("range");
-            if (range != null) {
-                if (range.startsWith("bytes=")) {
-                    range = range.substring("bytes=".length());
-                    int minus = range.indexOf('-');
-                    try {
-                        if (minus > 0) {
-                            startFrom = Long.parseLong(range.substring(0, minus));
-                            endAt = Long.parseLong(range.substring(minus + 1));
-                        }
-                    } catch (NumberFormatException ignored) {
-                    }
-                }
-            }
+            String etag = cached != null ? cached.getEtag() : Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
 
             // get if-range header. If present, it must match etag or else we
             // should ignore the range request
@@ -436,71 +529,251 @@ public class WebDavServer extends NanoHTTPD {
             String ifNoneMatch = header.get("if-none-match");
             boolean headerIfNoneMatchPresentAndMatching = ifNoneMatch != null && (ifNoneMatch.equals("*") || ifNoneMatch.equals(etag));
 
-            // Change return code and add Content-Range header when skipping is
-            // requested
-            long fileLen = file.length();
-
-            if (headerIfRangeMissingOrMatching && range != null && startFrom >= 0 && startFrom < fileLen) {
-                // range request that matches current etag
-                // and the startFrom of the range is satisfiable
-                if (headerIfNoneMatchPresentAndMatching) {
-                    // range request that matches current etag
-                    // and the startFrom of the range is satisfiable
-                    // would return range from file
-                    // respond with not-modified
-                    res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
+            long fileLen = cached != null ? cached.getLength() : file.length();
+
+            // Satisfiable ranges of a valid range request, null to send the
+            // entire file
+            List<long[]> ranges = headerIfRangeMissingOrMatching ? parseRanges(header.get("range"), fileLen) : null;
+
+            if (ranges != null && ranges.isEmpty()) {
+                // 4xx responses are not trumped by if-none-match
+                res = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_HTML, "");
+                res.addHeader("Content-Range", "bytes */" + fileLen);
+                res.addHeader("ETag", etag);
+            } else if (headerIfNoneMatchPresentAndMatching) {
+                // would return the entire file or ranges of it
+                // respond with not-modified
+                res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
+                res.addHeader("ETag", etag);
+            } else if (ranges != null && ranges.size() == 1) {
+                long startFrom = ranges.get(0)[0];
+                long endAt = ranges.get(0)[1];
+                long newLen = endAt - startFrom + 1;
+                res = newFileContentResponse(Response.Status.PARTIAL_CONTENT, mime, file, cached, startFrom, newLen);
+                res.addHeader("Accept-Ranges", "bytes");
+                res.addHeader("Content-Length", "" + newLen);
+                res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
+                res.addHeader("ETag", etag);
+            } else if (ranges != null) {
+                ByteRangesInputStream parts = new ByteRangesInputStream(cached != null ? null : new FileInputStream(file).getChannel(), cached != null ? cached.getData()
+                        : null, ranges, mime, fileLen);
+                res = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, "multipart/byteranges; boundary=" + parts.getBoundary(), parts, parts.getLength());
+                res.addHeader("Accept-Ranges", "bytes");
+                res.addHeader("Content-Length", "" + parts.getLength());
+                res.addHeader("ETag", etag);
+            } else {
+                // supply the file
+                res = newFileContentResponse(Response.Status.OK, mime, file, cached, 0, fileLen);
+                res.addHeader("Accept-Ranges", "bytes");
+                res.addHeader("Content-Length", "" + fileLen);
+                res.addHeader("ETag", etag);
+            }
+        } catch (IOException ioe) {
+            res = getForbiddenErrorResponse("Reading file failed.");
+        }
+
+        return res;
+    }
+
+    /**
+     * Parses a Range header as per RFC 7233. Explicit, open-ended and suffix
+     * ranges are resolved against the file length, unsatisfiable ones are
+     * dropped and overlapping or adjacent ones are coalesced.
+     * 
+     * @return the ranges as inclusive {first, last} byte positions in
+     *         ascending order, an empty list if none is satisfiable, or null
+     *         if the header is missing, malformed or asks for too many ranges,
+     *         in which case the entire file is sent.
+     */
+    static List<long[]> parseRanges(String range, long fileLen) {
+        if (range == null || !range.regionMatches(true, 0, "bytes=", 0, "bytes=".length())) {
+            return null;
+        }
+        String[] specs = range.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<long[]>(specs.length);
+        boolean any = false;
+        for (String spec : specs) {
+            spec = spec.trim();
+            if (spec.length() == 0) {
+                continue;
+            }
+            int minus = spec.indexOf('-');
+            if (minus < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (minus == 0) {
+                    long suffix = Long.parseLong(spec.substring(1).trim());
+                    first = Math.max(0, fileLen - suffix);
+                    last = suffix > 0 ? fileLen - 1 : -1;
                 } else {
-                    if (endAt < 0) {
-                        endAt = fileLen - 1;
-                    }
-                    long newLen = endAt - startFrom + 1;
-                    if (newLen < 0) {
-                        newLen = 0;
+                    first = Long.parseLong(spec.substring(0, minus).trim());
+                    String end = spec.substring(minus + 1).trim();
+                    last = end.length() == 0 ? fileLen - 1 : Math.min(Long.parseLong(end), fileLen - 1);
+                    if (end.length() > 0 && Long.parseLong(end) < first) {
+                        return null;
                     }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first < 0) {
+                return null;
+            }
+            any = true;
+            if (first < fileLen && first <= last) {
+                ranges.add(new long[]{
+                    first,
+                    last
+                });
+            }
+        }
+        if (!any) {
+            return null;
+        }
+        Collections.sort(ranges, new Comparator<long[]>() {
+
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : a[0] == b[0] ? 0 : 1;
+            }
+        });
+        List<long[]> coalesced = new ArrayList<long[]>(ranges.size());
+        for (long[] r : ranges) {
+            long[] previous = coalesced.isEmpty() ? null : coalesced.get(coalesced.size() - 1);
+            if (previous != null && r[0] <= previous[1] + 1) {
+                previous[1] = Math.max(previous[1], r[1]);
+            } else {
+                coalesced.add(r);
+            }
+        }
+        return coalesced;
+    }
+
+    /**
+     * Body of a multipart/byteranges response. Part headers are generated up
+     * front, so the length is known, while the parts themselves are read on
+     * demand with positioned reads from the file or from cached content.
+     */
+    private static final class ByteRangesInputStream extends InputStream {
 
-                    FileInputStream fis = new FileInputStream(file);
-                    fis.skip(startFrom);
+        private final FileChannel file;
 
-                    res = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, mime, fis, newLen);
-                    res.addHeader("Accept-Ranges", "bytes");
-                    res.addHeader("Content-Length", "" + newLen);
-                    res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
-                    res.addHeader("ETag", etag);
-                }
+        private final byte[] data;
+
+        private final List<long[]> ranges;
+
+        private final byte[][] headers;
+
+        private final String boundary;
+
+        private final long length;
+
+        /**
+         * Index of the current part, ranges.size() for the closing boundary.
+         */
+        private int part;
+
+        private int headerPos;
+
+        private long position;
+
+        private long remaining;
+
+        ByteRangesInputStream(FileChannel file, byte[] data, List<long[]> ranges, String mime, long fileLen) throws IOException {
+            this.file = file;
+            this.data = data;
+            this.ranges = ranges;
+            this.boundary = UUID.randomUUID().toString().replace("-", "");
+            this.headers = new byte[ranges.size() + 1][];
+            long length = 0;
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] r = ranges.get(i);
+                this.headers[i] = ("\r\n--" + this.boundary + "\r\n" + "Content-Type: " + mime + "\r\n" + "Content-Range: bytes " + r[0] + "-" + r[1] + "/" + fileLen + "\r\n\r\n")
+                        .getBytes("UTF-8");
+                length += this.headers[i].length + r[1] - r[0] + 1;
+            }
+            this.headers[ranges.size()] = ("\r\n--" + this.boundary + "--\r\n").getBytes("UTF-8");
+            this.length = length + this.headers[ranges.size()].length;
+            startPart(0);
+        }
+
+        String getBoundary() {
+            return this.boundary;
+        }
+
+        long getLength() {
+            return this.length;
+        }
+
+        private void startPart(int part) {
+            this.part = part;
+            this.headerPos = 0;
+            if (part < this.ranges.size()) {
+                this.position = this.ranges.get(part)[0];
+                this.remaining = this.ranges.get(part)[1] - this.position + 1;
             } else {
+                this.remaining = 0;
+            }
+        }
 
-                if (headerIfRangeMissingOrMatching && range != null && startFrom >= fileLen) {
-                    // return the size of the file
-                    // 4xx responses are not trumped by if-none-match
-                    res = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_HTML, "");
-                    res.addHeader("Content-Range", "bytes */" + fileLen);
-                    res.addHeader("ETag", etag);
-                } else if (range == null && headerIfNoneMatchPresentAndMatching) {
-                    // full-file-fetch request
-                    // would return entire file
-                    // respond with not-modified
-                    res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else if (!headerIfRangeMissingOrMatching && headerIfNoneMatchPresentAndMatching) {
-                    // range request that doesn't match current etag
-                    // would return entire (different) file
-                    // respond with not-modified
-
-                    res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else {
-                    // supply the file
-                    res = newFixedFileResponse(file, mime);
-                    res.addHeader("Content-Length", "" + fileLen);
-                    res.addHeader("ETag", etag);
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (this.part < this.headers.length) {
+                byte[] header = this.headers[this.part];
+                if (this.headerPos < header.length) {
+                    int count = Math.min(len, header.length - this.headerPos);
+                    System.arraycopy(header, this.headerPos, b, off, count);
+                    this.headerPos += count;
+                    return count;
                 }
+                if (this.remaining > 0) {
+                    int count = (int) Math.min(len, this.remaining);
+                    if (this.data != null) {
+                        System.arraycopy(this.data, (int) this.position, b, off, count);
+                    } else {
+                        count = this.file.read(ByteBuffer.wrap(b, off, count), this.position);
+                        if (count <= 0) {
+                            throw new EOFException("File got shorter while serving ranges");
+                        }
+                    }
+                    this.position += count;
+                    this.remaining -= count;
+                    return count;
+                }
+                startPart(this.part + 1);
             }
-        } catch (IOException ioe) {
-            res = getForbiddenErrorResponse("Reading file failed.");
+            return -1;
         }
 
-        return res;
+        @Override
+        public void close() throws IOException {
+            if (this.file != null) {
+                this.file.close();
+            }
+        }
+    }
+
+    private static Response newFileContentResponse(Response.IStatus status, String mime, File file, FileCache.Entry cached, long offset, long length) throws IOException {
+        if (cached != null) {
+            return newFixedLengthResponse(status, mime, new ByteArrayInputStream(cached.getData(), (int) offset, (int) length), length);
+        }
+        FileChannel channel = new FileInputStream(file).getChannel();
+        return newFixedFileResponse(status, mime, channel, offset, length);
     }
 
     protected Response handleDELETE(final String uri, final Map<String, String> headers) {
@@ -516,6 +789,7 @@ public class WebDavServer extends NanoHTTPD {
         final String absolutePath = appendPathComponent(rootDir.getAbsolutePath(), uri);
         final File file = new File(absolutePath);
 
+        invalidateCache(file);
         if (!file.delete()) {
             return getInternalErrorResponse("Failed deleting " + uri);
         }
@@ -579,6 +853,10 @@ public class WebDavServer extends NanoHTTPD {
             return newFixedLengthResponse(Response.Status.PRECONDITION_FAILED, MIME_HTML, "Destination " + dstRelativePath + " already exists");
         }
 
+        invalidateCache(dstFile);
+        if (move) {
+            invalidateCache(srcFile);
+        }
         if (existing) {
             dstFile.delete();
         }
@@ -609,7 +887,7 @@ public class WebDavServer extends NanoHTTPD {
                     dstFile.mkdirs();
                 }
 
-                String children[] = srcFile.list();
+                String children[] = srcFile.list(NO_PART_FILES);
                 int childrenLength = children.length;
                 for (int i = 0; i < childrenLength; i++) {
                     File srcChild = new File(srcFile, children[i]);
@@ -627,10 +905,14 @@ public class WebDavServer extends NanoHTTPD {
                 out = new FileOutputStream(dstFile);
 
                 // Transfer bytes from in to out
-                byte[] buf = new byte[1024];
-                int len;
-                while ((len = in.read(buf)) > 0) {
-                    out.write(buf, 0, len);
+                byte[] buf = BufferPool.getDefault().acquire(16 * 1024);
+                try {
+                    int len;
+                    while ((len = in.read(buf)) > 0) {
+                        out.write(buf, 0, len);
+                    }
+                } finally {
+                    BufferPool.getDefault().release(buf);
                 }
             }
         } catch (IOException e) {
@@ -645,43 +927,119 @@ public class WebDavServer extends NanoHTTPD {
         }
     }
 
-    protected Response handlePUT(final String uri, final IHTTPSession session) {
+    /**
+     * Checks whether a PUT of the given size could succeed, without looking
+     * at the body.
+     * 
+     * @return null if the upload may go ahead, otherwise the error response.
+     */
+    protected Response checkPUT(final String uri, final long size) {
         final String dstRelativePath = uri;
         final String dstAbsolutePath = appendPathComponent(rootDir.getAbsolutePath(), uri);
         final File dstFile = new File(dstAbsolutePath);
-        final boolean existing = dstFile.exists();
         final File dstParent = dstFile.getParentFile();
         if (!dstParent.exists() || !dstParent.isDirectory()) {
             return newFixedLengthResponse(Response.Status.CONFLICT, MIME_HTML, "Missing intermediate collection(s) for " + dstRelativePath);
         }
 
-        if (existing && dstFile.isDirectory()) {
+        if (dstFile.isDirectory()) {
             return getMethodNotAllowed("PUT not allowed on existing collection " + dstRelativePath);
         }
-        try {
-            Map<String, String> files = new HashMap<String, String>();
-            session.parseBody(files);
 
-            Set<String> keys = files.keySet();
-            for(String key: keys){
-                String tempLocation = files.get(key);
-                File tempfile = new File(tempLocation);
+        if (this.maxUploadSize > 0 && size > this.maxUploadSize) {
+            return newFixedLengthResponse(Response.Status.PAYLOAD_TOO_LARGE, MIME_HTML, "Uploads are limited to " + this.maxUploadSize + " bytes");
+        }
 
-                if (existing) {
-                    dstFile.delete();
-                }
+        // the new content is written next to the old one before replacing it
+        if (size > dstParent.getUsableSpace()) {
+            return newFixedLengthResponse(Response.Status.INSUFFICIENT_STORAGE, MIME_HTML, "Not enough space left for " + dstRelativePath);
+        }
 
-                copyFileOrDirectory(tempfile, dstFile);
-            }
-        } catch (IOException e) {
-            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_HTML, e.getMessage());
+        return null;
+    }
+
+    protected Response handlePUT(final String uri, final IHTTPSession session) {
+        final String dstAbsolutePath = appendPathComponent(rootDir.getAbsolutePath(), uri);
+        final File dstFile = new File(dstAbsolutePath);
+        final boolean existing = dstFile.exists();
+        final long size = session.getBodySize();
+        Response rejection = checkPUT(uri, size);
+        if (rejection != null) {
+            return rejection;
+        }
+
+        try {
+            receiveFile(session.getInputStream(), size, this.maxUploadSize, dstFile);
         } catch (ResponseException e) {
             return newFixedLengthResponse(e.getStatus(), MIME_HTML, e.getMessage());
+        } catch (EOFException e) {
+            return getBadRequestErrorResponse(e.getMessage());
+        } catch (ProtocolException e) {
+            return getBadRequestErrorResponse(e.getMessage());
+        } catch (IOException e) {
+            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_HTML, e.getMessage());
         }
+        invalidateCache(dstFile);
 
         return newFixedLengthResponse(existing ? Response.Status.NO_CONTENT : Response.Status.CREATED, MIME_HTML, "");
     }
 
+    /**
+     * Streams the request body into a temporary file next to the destination
+     * and renames it into place once it is complete, so the body is written
+     * exactly once and readers never see a partial file. A negative length
+     * reads the body up to its end, but no further than maxLength bytes
+     * unless that is 0.
+     */
+    private static void receiveFile(InputStream in, long length, long maxLength, File dstFile) throws IOException, ResponseException {
+        File tmpFile = File.createTempFile(PART_FILE_PREFIX, PART_FILE_SUFFIX, dstFile.getParentFile());
+        boolean complete = false;
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(tmpFile, "rw");
+            FileChannel channel = out.getChannel();
+            ReadableByteChannel body = Channels.newChannel(in);
+            long position = 0;
+            if (length >= 0) {
+                // reserve the space up front to limit fragmentation
+                out.setLength(length);
+                while (position < length) {
+                    long transferred = channel.transferFrom(body, position, length - position);
+                    if (transferred <= 0) {
+                        throw new EOFException("Request body ended after " + position + " of " + length + " bytes");
+                    }
+                    position += transferred;
+                }
+            } else {
+                long transferred;
+                while ((transferred = channel.transferFrom(body, position, 1024 * 1024)) > 0) {
+                    position += transferred;
+                    if (maxLength > 0 && position > maxLength) {
+                        throw new ResponseException(Response.Status.PAYLOAD_TOO_LARGE, "Uploads are limited to " + maxLength + " bytes");
+                    }
+                }
+            }
+            out.close();
+            out = null;
+            // rename() replaces the destination atomically on POSIX file
+            // systems, elsewhere the destination has to go first
+            if (!tmpFile.renameTo(dstFile) && !(dstFile.delete() && tmpFile.renameTo(dstFile))) {
+                throw new IOException("Failed replacing " + dstFile.getName());
+            }
+            complete = true;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (!complete) {
+                tmpFile.delete();
+            }
+        }
+    }
+
     protected Response handleLOCK(final String uri, final Map<String, String> headers, final IHTTPSession session) {
         if (!isMacFinder(headers)) {
             return getMethodNotAllowed("LOCK method only allowed for Mac Finder");
@@ -710,7 +1068,14 @@ public class WebDavServer extends NanoHTTPD {
 
             // convert PullInputStream to ByteArrayInputStream
             byte[] data = new byte[contentLength];
-            sessionInputStream.read(data);
+            int offset = 0;
+            while (offset < contentLength) {
+                int read = sessionInputStream.read(data, offset, contentLength - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
             byteInputStream = new ByteArrayInputStream(data);
 
             final String ns = "DAV:";
@@ -861,11 +1226,4 @@ public class WebDavServer extends NanoHTTPD {
 
         return newFixedLengthResponse(Response.Status.NO_CONTENT, MIME_HTML, "");
     }
-
-    private Response newFixedFileResponse(File file, String mime) throws FileNotFoundException {
-        Response res;
-        res = newFixedLengthResponse(Response.Status.OK, mime, new FileInputStream(file), (int) file.length());
-        res.addHeader("Accept-Ranges", "bytes");
-        return res;
-    }
 }
@@ -0,0 +1,137 @@
+package fi.iki.elonen;
+
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+import org.junit.Test;
+
+public class BodyInputStreamTest {
+
+    private static InputStream bytes(String data) throws IOException {
+        return new ByteArrayInputStream(data.getBytes("ISO-8859-1"));
+    }
+
+    private static String readAll(InputStream in, int bufferSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[bufferSize];
+        int read;
+        while ((read = in.read(buf, 0, buf.length)) != -1) {
+            out.write(buf, 0, read);
+        }
+        return out.toString("ISO-8859-1");
+    }
+
+    private static String rest(InputStream in) throws IOException {
+        return readAll(in, 64);
+    }
+
+    @Test
+    public void testChunkedBody() throws Exception {
+        InputStream connection = bytes("5\r\nhello\r\n6;name=value\r\n world\r\n0\r\nTrailer: x\r\n\r\nGET / HTTP/1.1\r\n");
+        NanoHTTPD.BodyInputStream body = new NanoHTTPD.BodyInputStream(connection, -1, true);
+        assertFalse(body.isFinished());
+        assertEquals("hello world", readAll(body, 3));
+        assertTrue(body.isFinished());
+        assertEquals(-1, body.read());
+        // the next request is left on the connection
+        assertEquals("GET / HTTP/1.1\r\n", rest(connection));
+    }
+
+    @Test
+    public void testChunkedBodyBytewise() throws Exception {
+        NanoHTTPD.BodyInputStream body = new NanoHTTPD.BodyInputStream(bytes("A\r\n0123456789\r\n1\nx\n0\n\n"), -1, true);
+        StringBuilder read = new StringBuilder();
+        int b;
+        while ((b = body.read()) != -1) {
+            read.append((char) b);
+        }
+        assertEquals("0123456789x", read.toString());
+        assertTrue(body.isFinished());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testBadChunkSize() throws Exception {
+        readAll(new NanoHTTPD.BodyInputStream(bytes("zz\r\nhello\r\n0\r\n\r\n"), -1, true), 16);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testNegativeChunkSize() throws Exception {
+        readAll(new NanoHTTPD.BodyInputStream(bytes("-5\r\nhello\r\n0\r\n\r\n"), -1, true), 16);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testMissingCrlfAfterChunk() throws Exception {
+        readAll(new NanoHTTPD.BodyInputStream(bytes("3\r\nhello\r\n0\r\n\r\n"), -1, true), 16);
+    }
+
+    @Test(expected = EOFException.class)
+    public void testChunkedBodyCutShort() throws Exception {
+        readAll(new NanoHTTPD.BodyInputStream(bytes("5\r\nhel"), -1, true), 16);
+    }
+
+    @Test
+    public void testContentLengthBody() throws Exception {
+        InputStream connection = bytes("hello worldGET");
+        NanoHTTPD.BodyInputStream body = new NanoHTTPD.BodyInputStream(connection, 11, false);
+        assertEquals("hello world", readAll(body, 4));
+        assertTrue(body.isFinished());
+        assertEquals("GET", rest(connection));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testContentLengthBodyCutShort() throws Exception {
+        readAll(new NanoHTTPD.BodyInputStream(bytes("hello"), 11, false), 16);
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        InputStream connection = bytes("5\r\nhello\r\n0\r\n\r\nnext");
+        NanoHTTPD.BodyInputStream body = new NanoHTTPD.BodyInputStream(connection, -1, true);
+        assertTrue(body.discard(1024));
+        assertEquals("next", rest(connection));
+        assertFalse(new NanoHTTPD.BodyInputStream(bytes("hello"), 5000, false).discard(1024));
+    }
+}
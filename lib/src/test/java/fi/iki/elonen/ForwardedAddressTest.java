@@ -0,0 +1,152 @@
+package fi.iki.elonen;
+
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+
+/**
+ * Client addresses taken from the header of a trusted proxy.
+ */
+public class ForwardedAddressTest {
+
+    private static final class AddressServer extends NanoHTTPD {
+
+        AddressServer() {
+            super(0);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            return newFixedLengthResponse(Status.OK, "text/plain", session.getHeaders().get("remote-addr"));
+        }
+    }
+
+    private AddressServer server;
+
+    @After
+    public void tearDown() {
+        if (this.server != null) {
+            this.server.stop();
+        }
+    }
+
+    private void start(String forwardedHeader, boolean nonBlocking) throws IOException {
+        this.server = new AddressServer();
+        NanoHTTPD.ServerOptions options = new NanoHTTPD.ServerOptions();
+        options.setForwardedHeader(forwardedHeader);
+        this.server.setServerOptions(options);
+        this.server.setNonBlocking(nonBlocking);
+        this.server.start(5000);
+    }
+
+    /**
+     * Sends one request with the given header line and returns the address
+     * the server saw.
+     */
+    private String remoteAddress(String header) throws IOException {
+        Socket socket = new Socket("127.0.0.1", this.server.getListeningPort());
+        try {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n" + header + "\r\n\r\n").getBytes("ISO-8859-1"));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                response.write(buffer, 0, read);
+            }
+            String text = response.toString("ISO-8859-1");
+            return text.substring(text.indexOf("\r\n\r\n") + 4);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testLastForwardedForAddress() throws Exception {
+        start("X-Forwarded-For", false);
+        assertEquals("198.51.100.2", remoteAddress("X-Forwarded-For: 203.0.113.7, 198.51.100.2"));
+        assertEquals("2001:db8::1", remoteAddress("X-Forwarded-For: 2001:db8::1"));
+    }
+
+    @Test
+    public void testForwardedForOnNonBlockingEngine() throws Exception {
+        start("X-Forwarded-For", true);
+        assertEquals("198.51.100.2", remoteAddress("X-Forwarded-For: 203.0.113.7, 198.51.100.2"));
+    }
+
+    @Test
+    public void testHeaderIgnoredUnlessConfigured() throws Exception {
+        start(null, false);
+        assertEquals("127.0.0.1", remoteAddress("X-Forwarded-For: 198.51.100.2"));
+    }
+
+    @Test
+    public void testForwardedElement() throws Exception {
+        start("Forwarded", false);
+        assertEquals("192.0.2.60", remoteAddress("Forwarded: for=192.0.2.60;proto=http;by=203.0.113.43"));
+        assertEquals("198.51.100.17", remoteAddress("Forwarded: for=192.0.2.43, For=\"198.51.100.17:8080\""));
+    }
+
+    @Test
+    public void testForwardedIPv6WithPort() throws Exception {
+        start("Forwarded", false);
+        assertEquals("2001:db8:cafe::17", remoteAddress("Forwarded: proto=https; for=\"[2001:db8:cafe::17]:4711\""));
+        assertEquals("2001:db8:cafe::17", remoteAddress("Forwarded: for=\"[2001:db8:cafe::17]\""));
+    }
+
+    @Test
+    public void testUnknownAndObfuscatedNodesKeepPeerAddress() throws Exception {
+        start("Forwarded", false);
+        assertEquals("127.0.0.1", remoteAddress("Forwarded: for=unknown"));
+        assertEquals("127.0.0.1", remoteAddress("Forwarded: for=\"_hidden:_port\""));
+        assertEquals("127.0.0.1", remoteAddress("Forwarded: proto=http"));
+    }
+}
@@ -0,0 +1,139 @@
+package fi.iki.elonen;
+
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+
+/**
+ * Parses request lines and headers through a session reading from a byte
+ * array.
+ */
+public class HeaderParsingTest {
+
+    private static final class CapturingServer extends NanoHTTPD {
+
+        private NanoHTTPD.Method method;
+
+        private String uri;
+
+        private Map<String, String> headers;
+
+        private Map<String, String> parms;
+
+        CapturingServer() {
+            super(0);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            this.method = session.getMethod();
+            this.uri = session.getUri();
+            this.headers = new HashMap<String, String>(session.getHeaders());
+            this.parms = new HashMap<String, String>(session.getParms());
+            return newFixedLengthResponse(Status.OK, "application/octet-stream", "");
+        }
+    }
+
+    private final CapturingServer server = new CapturingServer();
+
+    private String execute(String request) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NanoHTTPD.HTTPSession session = this.server.new HTTPSession(new NanoHTTPD.DefaultTempFileManager(), new ByteArrayInputStream(request.getBytes("ISO-8859-1")), out);
+        session.execute();
+        return out.toString("ISO-8859-1");
+    }
+
+    @Test
+    public void testRequestLineAndHeaders() throws Exception {
+        String response = execute("DELETE /a%20b/c.txt?x=1&y=%41 HTTP/1.1\r\n" //
+                + "Host: example.com\r\n" //
+                + "CONTENT-TYPE: text/plain\r\n" //
+                + "X-Custom:   spaced value\r\n" //
+                + "\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 200 OK"));
+        assertEquals(NanoHTTPD.Method.DELETE, this.server.method);
+        assertEquals("/a b/c.txt", this.server.uri);
+        assertEquals("1", this.server.parms.get("x"));
+        assertEquals("A", this.server.parms.get("y"));
+        assertEquals("example.com", this.server.headers.get("host"));
+        assertEquals("text/plain", this.server.headers.get("content-type"));
+        assertEquals("spaced value", this.server.headers.get("x-custom"));
+        assertNull(this.server.headers.get("X-Custom"));
+    }
+
+    @Test
+    public void testMethodIsMatchedIgnoringCase() throws Exception {
+        execute("propfind / HTTP/1.1\r\nHost: example.com\r\n\r\n");
+        assertEquals(NanoHTTPD.Method.PROPFIND, this.server.method);
+    }
+
+    @Test
+    public void testBareLineFeeds() throws Exception {
+        execute("GET /plain HTTP/1.1\nHost: example.com\n\n");
+        assertEquals("/plain", this.server.uri);
+        assertEquals("example.com", this.server.headers.get("host"));
+    }
+
+    @Test
+    public void testUnknownMethod() throws Exception {
+        String response = execute("BREW /pot HTTP/1.1\r\nHost: example.com\r\n\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 400"));
+        assertNull(this.server.method);
+    }
+
+    @Test
+    public void testOversizedHeader() throws Exception {
+        StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\n");
+        while (request.length() <= NanoHTTPD.HTTPSession.MAX_HEADER_SIZE) {
+            request.append("X-Filler: 0123456789012345678901234567890123456789\r\n");
+        }
+        request.append("\r\n");
+        String response = execute(request.toString());
+        assertTrue(response, response.startsWith("HTTP/1.1 431"));
+        assertNull(this.server.method);
+    }
+}
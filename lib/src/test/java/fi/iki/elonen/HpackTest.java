@@ -0,0 +1,127 @@
+package fi.iki.elonen;
+
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HpackTest {
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static List<String> decode(Hpack.Decoder decoder, byte[] block) throws ProtocolException {
+        List<String> fields = new ArrayList<String>();
+        assertTrue(decoder.decode(block, 0, block.length, fields, Integer.MAX_VALUE));
+        return fields;
+    }
+
+    @Test
+    public void testRequestsWithDynamicTable() throws Exception {
+        // RFC 7541, C.3
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"),
+                decode(decoder, hex("828684410f7777772e6578616d706c652e636f6d")));
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache"),
+                decode(decoder, hex("828684be58086e6f2d6361636865")));
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value"),
+                decode(decoder, hex("828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565")));
+    }
+
+    @Test
+    public void testHuffmanCodedRequests() throws Exception {
+        // RFC 7541, C.4
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"),
+                decode(decoder, hex("828684418cf1e3c2e5f23a6ba0ab90f4ff")));
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache"),
+                decode(decoder, hex("828684be5886a8eb10649cbf")));
+    }
+
+    @Test
+    public void testEncodedFieldsDecodeAgain() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Hpack.encode(":status", "200", out);
+        Hpack.encode(":status", "207", out);
+        Hpack.encode("content-type", "text/plain", out);
+        Hpack.encode("x-custom", "v\u00e4lue", out);
+        byte[] block = out.toByteArray();
+        // fully indexed field
+        assertEquals(0x88, block[0] & 0xff);
+        assertEquals(Arrays.asList(":status", "200", ":status", "207", "content-type", "text/plain", "x-custom", "v\u00e4lue"),
+                decode(new Hpack.Decoder(4096), block));
+    }
+
+    @Test
+    public void testOversizedHeaderListIsReported() throws Exception {
+        byte[] block = hex("828684410f7777772e6578616d706c652e636f6d");
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        List<String> fields = new ArrayList<String>();
+        assertFalse(decoder.decode(block, 0, block.length, fields, 100));
+        // the block was still decoded into the dynamic table
+        assertEquals(Arrays.asList(":authority", "www.example.com"), decode(decoder, hex("be")).subList(0, 2));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testIndexBeyondTables() throws Exception {
+        decode(new Hpack.Decoder(4096), hex("be"));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testTruncatedString() throws Exception {
+        decode(new Hpack.Decoder(4096), hex("410f7777"));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testTableSizeAboveLimit() throws Exception {
+        // dynamic table size update to 8192
+        decode(new Hpack.Decoder(4096), hex("3fe13f"));
+    }
+}
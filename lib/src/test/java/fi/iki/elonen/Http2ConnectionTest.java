@@ -0,0 +1,195 @@
+package fi.iki.elonen;
+
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD.RequestClass;
+
+/**
+ * Streams that wait in the request scheduler when their connection ends.
+ */
+public class Http2ConnectionTest {
+
+    private static final int HEADERS = 0x1;
+
+    private static final int RST_STREAM = 0x3;
+
+    private static final int SETTINGS = 0x4;
+
+    private static final int REFUSED_STREAM = 0x7;
+
+    private NanoHTTPD server;
+
+    private NanoHTTPD.RequestScheduler scheduler;
+
+    private PipedOutputStream client;
+
+    private ByteArrayOutputStream written;
+
+    private Thread connectionThread;
+
+    @Before
+    public void setUp() throws Exception {
+        this.server = new NanoHTTPD(0) {
+        };
+        this.scheduler = this.server.getRequestScheduler();
+        this.scheduler.setLimit(RequestClass.BULK, 1);
+        // the only bulk slot is taken, the stream has to wait
+        assertTrue(this.scheduler.tryAdmit(RequestClass.BULK));
+
+        this.client = new PipedOutputStream();
+        final PipedInputStream in = new PipedInputStream(this.client, 64 * 1024);
+        this.written = new ByteArrayOutputStream();
+        Executor executor = new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+                throw new AssertionError("A waiting stream must not run");
+            }
+        };
+        final Http2Connection connection = new Http2Connection(this.server, executor, in, this.written, null, null);
+        this.connectionThread = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    connection.serve(null);
+                } catch (IOException e) {
+                    // the client went away
+                }
+            }
+        };
+        this.connectionThread.start();
+
+        this.client.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes("ISO-8859-1"));
+        writeFrame(SETTINGS, 0, 0, new byte[0]);
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        Hpack.encode(":method", "GET", block);
+        Hpack.encode(":scheme", "http", block);
+        Hpack.encode(":path", "/big.bin", block);
+        Hpack.encode(":authority", "localhost", block);
+        // END_STREAM | END_HEADERS
+        writeFrame(HEADERS, 0x5, 1, block.toByteArray());
+        this.client.flush();
+        waitForWaiting(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.client.close();
+        this.connectionThread.join(5000);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        this.client.write(new byte[]{
+            (byte) (payload.length >>> 16),
+            (byte) (payload.length >>> 8),
+            (byte) payload.length,
+            (byte) type,
+            (byte) flags,
+            (byte) (streamId >>> 24),
+            (byte) (streamId >>> 16),
+            (byte) (streamId >>> 8),
+            (byte) streamId
+        });
+        this.client.write(payload);
+    }
+
+    private void waitForWaiting(int waiting) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (this.scheduler.getQueueDepth(RequestClass.BULK) != waiting && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(waiting, this.scheduler.getQueueDepth(RequestClass.BULK));
+    }
+
+    /**
+     * @return whether the server sent RST_STREAM with the given code for
+     *         the stream.
+     */
+    private boolean wasReset(int streamId, int code) {
+        byte[] bytes = this.written.toByteArray();
+        int pos = 0;
+        while (pos + 9 <= bytes.length) {
+            int length = (bytes[pos] & 0xff) << 16 | (bytes[pos + 1] & 0xff) << 8 | bytes[pos + 2] & 0xff;
+            int type = bytes[pos + 3] & 0xff;
+            int id = (bytes[pos + 5] & 0x7f) << 24 | (bytes[pos + 6] & 0xff) << 16 | (bytes[pos + 7] & 0xff) << 8 | bytes[pos + 8] & 0xff;
+            if (type == RST_STREAM && id == streamId && length == 4 && pos + 13 <= bytes.length) {
+                int error = (bytes[pos + 9] & 0xff) << 24 | (bytes[pos + 10] & 0xff) << 16 | (bytes[pos + 11] & 0xff) << 8 | bytes[pos + 12] & 0xff;
+                if (error == code) {
+                    return true;
+                }
+            }
+            pos += 9 + length;
+        }
+        return false;
+    }
+
+    @Test
+    public void testCancelledStreamLetsConnectionClose() throws Exception {
+        this.scheduler.cancelDeferred();
+        assertTrue(wasReset(1, REFUSED_STREAM));
+        this.client.close();
+        this.connectionThread.join(5000);
+        assertFalse("the connection is still waiting for the refused stream", this.connectionThread.isAlive());
+        this.scheduler.release(RequestClass.BULK);
+    }
+
+    @Test
+    public void testConnectionClosesWithWaitingStream() throws Exception {
+        this.client.close();
+        this.connectionThread.join(5000);
+        assertFalse("the connection is still waiting for the queued stream", this.connectionThread.isAlive());
+        // the queued stream is admitted, finds its connection closed and
+        // gives its turn back
+        this.scheduler.release(RequestClass.BULK);
+        waitForWaiting(0);
+        assertEquals(0, this.scheduler.getActiveCount(RequestClass.BULK));
+    }
+}
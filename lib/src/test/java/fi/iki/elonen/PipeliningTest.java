@@ -0,0 +1,187 @@
+package fi.iki.elonen;
+
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+
+/**
+ * Round trips of pipelined and kept alive HTTP/1.1 requests, on both engines.
+ */
+public class PipeliningTest {
+
+    private static final class EchoServer extends NanoHTTPD {
+
+        EchoServer() {
+            super(0);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            return newFixedLengthResponse(Status.OK, "application/octet-stream", session.getMethod() + " " + session.getUri());
+        }
+    }
+
+    private EchoServer server;
+
+    @After
+    public void tearDown() {
+        if (this.server != null) {
+            this.server.stop();
+        }
+    }
+
+    private Socket connect(boolean nonBlocking) throws IOException {
+        this.server = new EchoServer();
+        this.server.setNonBlocking(nonBlocking);
+        this.server.start(5000);
+        Socket socket = new Socket("localhost", this.server.getListeningPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("Connection closed in a response header");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * Reads one response and returns its status line and body, separated by
+     * a newline.
+     */
+    private static String readResponse(InputStream in) throws IOException {
+        String status = readLine(in);
+        int length = -1;
+        String line;
+        while ((line = readLine(in)).length() > 0) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                length = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i = 0; i < length; i++) {
+            int b = in.read();
+            if (b == -1) {
+                throw new IOException("Connection closed in a response body");
+            }
+            body.write(b);
+        }
+        return status + "\n" + body.toString("ISO-8859-1");
+    }
+
+    private static void send(OutputStream out, String requests) throws IOException {
+        out.write(requests.getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    private void pipelinedRequests(boolean nonBlocking) throws IOException {
+        Socket socket = connect(nonBlocking);
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            send(out, "GET /a HTTP/1.1\r\nHost: localhost\r\n\r\n" //
+                    + "PUT /b HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello" //
+                    + "DELETE /c HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertEquals("HTTP/1.1 200 OK \nGET /a", readResponse(in));
+            assertEquals("HTTP/1.1 200 OK \nPUT /b", readResponse(in));
+            assertEquals("HTTP/1.1 200 OK \nDELETE /c", readResponse(in));
+
+            // the connection is kept alive for a later request
+            send(out, "GET /d HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertEquals("HTTP/1.1 200 OK \nGET /d", readResponse(in));
+
+            send(out, "GET /e HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            assertEquals("HTTP/1.1 200 OK \nGET /e", readResponse(in));
+            assertEquals(-1, in.read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void requestSplitAcrossWrites(boolean nonBlocking) throws Exception {
+        Socket socket = connect(nonBlocking);
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            send(out, "GET /a HTTP/1.1\r\nHost: localhost\r\n\r\nGET /b HT");
+            assertEquals("HTTP/1.1 200 OK \nGET /a", readResponse(in));
+            Thread.sleep(100);
+            send(out, "TP/1.1\r\nHost: localhost\r\n\r\n");
+            assertEquals("HTTP/1.1 200 OK \nGET /b", readResponse(in));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        pipelinedRequests(false);
+    }
+
+    @Test
+    public void testPipelinedRequestsNonBlocking() throws Exception {
+        pipelinedRequests(true);
+    }
+
+    @Test
+    public void testRequestSplitAcrossWrites() throws Exception {
+        requestSplitAcrossWrites(false);
+    }
+
+    @Test
+    public void testRequestSplitAcrossWritesNonBlocking() throws Exception {
+        requestSplitAcrossWrites(true);
+    }
+}
@@ -0,0 +1,179 @@
+package fi.iki.elonen;
+
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD.ConnectionPhase;
+
+public class TimerWheelTest {
+
+    private static final class Connection implements Closeable {
+
+        private volatile boolean closed;
+
+        @Override
+        public void close() {
+            this.closed = true;
+        }
+    }
+
+    private AtomicLongArray expired;
+
+    private TimerWheel wheel;
+
+    @Before
+    public void setUp() {
+        this.expired = new AtomicLongArray(ConnectionPhase.values().length);
+        this.wheel = new TimerWheel(this.expired);
+        this.wheel.start();
+    }
+
+    @After
+    public void tearDown() {
+        this.wheel.stop();
+    }
+
+    private static void waitFor(Connection connection, long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        while (!connection.closed && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testExpiredPhaseClosesConnection() throws Exception {
+        Connection connection = new Connection();
+        TimerWheel.Deadline deadline = this.wheel.newDeadline(connection);
+        deadline.arm(ConnectionPhase.HEADER, 200);
+        assertEquals(ConnectionPhase.HEADER, deadline.getPhase());
+        waitFor(connection, 2000);
+        assertTrue(connection.closed);
+        assertEquals(1, this.expired.get(ConnectionPhase.HEADER.ordinal()));
+    }
+
+    @Test
+    public void testDisarmedDeadlineLeavesConnectionOpen() throws Exception {
+        Connection connection = new Connection();
+        TimerWheel.Deadline deadline = this.wheel.newDeadline(connection);
+        deadline.arm(ConnectionPhase.KEEP_ALIVE, 200);
+        deadline.disarm();
+        Thread.sleep(600);
+        assertFalse(connection.closed);
+        assertEquals(0, this.expired.get(ConnectionPhase.KEEP_ALIVE.ordinal()));
+    }
+
+    @Test
+    public void testRearmingPostponesExpiry() throws Exception {
+        Connection connection = new Connection();
+        TimerWheel.Deadline deadline = this.wheel.newDeadline(connection);
+        deadline.arm(ConnectionPhase.HEADER, 200);
+        deadline.arm(ConnectionPhase.BODY, 1000);
+        Thread.sleep(500);
+        assertFalse(connection.closed);
+        waitFor(connection, 2000);
+        assertTrue(connection.closed);
+        assertEquals(0, this.expired.get(ConnectionPhase.HEADER.ordinal()));
+        assertEquals(1, this.expired.get(ConnectionPhase.BODY.ordinal()));
+    }
+
+    @Test
+    public void testShortenedDeadlineFiresOnTime() throws Exception {
+        Connection connection = new Connection();
+        TimerWheel.Deadline deadline = this.wheel.newDeadline(connection);
+        deadline.arm(ConnectionPhase.KEEP_ALIVE, 30000);
+        // the first byte of the next request arrives
+        deadline.arm(ConnectionPhase.HEADER, 200);
+        waitFor(connection, 2000);
+        assertTrue(connection.closed);
+        assertEquals(1, this.expired.get(ConnectionPhase.HEADER.ordinal()));
+        assertEquals(0, this.expired.get(ConnectionPhase.KEEP_ALIVE.ordinal()));
+    }
+
+    @Test
+    public void testWriteTimeoutShorterThanPhase() throws Exception {
+        Connection connection = new Connection();
+        TimerWheel.Deadline deadline = this.wheel.newDeadline(connection);
+        deadline.arm(ConnectionPhase.BODY, 30000);
+        deadline.beginWrite(200);
+        waitFor(connection, 2000);
+        assertTrue(connection.closed);
+        assertEquals(1, this.expired.get(ConnectionPhase.RESPONSE.ordinal()));
+        assertEquals(0, this.expired.get(ConnectionPhase.BODY.ordinal()));
+    }
+
+    @Test
+    public void testReceivedBytesExtendBody() throws Exception {
+        Connection connection = new Connection();
+        TimerWheel.Deadline deadline = this.wheel.newDeadline(connection);
+        deadline.arm(ConnectionPhase.BODY, 300, 1000);
+        // each 1000 bytes buy another second
+        deadline.received(1000);
+        Thread.sleep(600);
+        assertFalse(connection.closed);
+        waitFor(connection, 2000);
+        assertTrue(connection.closed);
+    }
+
+    @Test
+    public void testWriteTimeoutCountsAsResponse() throws Exception {
+        Connection connection = new Connection();
+        TimerWheel.Deadline deadline = this.wheel.newDeadline(connection);
+        deadline.beginWrite(200);
+        waitFor(connection, 2000);
+        assertTrue(connection.closed);
+        assertEquals(1, this.expired.get(ConnectionPhase.RESPONSE.ordinal()));
+    }
+
+    @Test
+    public void testZeroTimeoutDisarms() throws Exception {
+        Connection connection = new Connection();
+        TimerWheel.Deadline deadline = this.wheel.newDeadline(connection);
+        deadline.arm(ConnectionPhase.HEADER, 0);
+        assertEquals(null, deadline.getPhase());
+        Thread.sleep(300);
+        assertFalse(connection.closed);
+    }
+}
@@ -0,0 +1,187 @@
+package fi.iki.elonen;
+
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+
+/**
+ * Requests over a Unix domain socket, on both engines. Skipped before
+ * Java 16, the channels are looked up by reflection as in the server.
+ */
+public class UnixDomainServerSocketTest {
+
+    private static final class AddressServer extends NanoHTTPD {
+
+        AddressServer() {
+            super(0);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            return newFixedLengthResponse(Status.OK, "text/plain", session.getUri() + " " + session.getHeaders().get("remote-addr"));
+        }
+    }
+
+    private ProtocolFamily unix;
+
+    private File path;
+
+    private AddressServer server;
+
+    private AddressServer second;
+
+    @Before
+    public void setUp() throws IOException {
+        try {
+            this.unix = Enum.valueOf(StandardProtocolFamily.class, "UNIX");
+        } catch (IllegalArgumentException e) {
+            this.unix = null;
+        }
+        Assume.assumeTrue(this.unix != null);
+        this.path = File.createTempFile("nanohttpd", ".sock");
+        this.path.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (this.server != null) {
+            this.server.stop();
+        }
+        if (this.second != null) {
+            this.second.stop();
+        }
+        if (this.path != null) {
+            this.path.delete();
+        }
+    }
+
+    private AddressServer start(boolean nonBlocking) throws IOException {
+        AddressServer server = new AddressServer();
+        NanoHTTPD.ServerOptions options = new NanoHTTPD.ServerOptions();
+        options.setUnixDomainSocket(this.path);
+        options.setForwardedHeader("X-Forwarded-For");
+        server.setServerOptions(options);
+        server.setNonBlocking(nonBlocking);
+        server.start(5000);
+        return server;
+    }
+
+    private SocketAddress address() throws Exception {
+        return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, this.path.getPath());
+    }
+
+    private SocketChannel open() throws Exception {
+        return (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, this.unix);
+    }
+
+    /**
+     * Sends one request over the socket and returns the response body.
+     */
+    private String get(String uri, String header) throws Exception {
+        SocketChannel channel = open();
+        try {
+            channel.connect(address());
+            channel.write(ByteBuffer.wrap(("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n" + header + "\r\n\r\n").getBytes("ISO-8859-1")));
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            while (channel.read(buffer) != -1) {
+                response.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            String text = response.toString("ISO-8859-1");
+            return text.substring(text.indexOf("\r\n\r\n") + 4);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void testBlockingEngine() throws Exception {
+        this.server = start(false);
+        assertEquals("/a 198.51.100.2", get("/a", "X-Forwarded-For: 198.51.100.2"));
+        assertEquals("/b 203.0.113.7", get("/b", "X-Forwarded-For: 203.0.113.7"));
+    }
+
+    @Test
+    public void testNonBlockingEngine() throws Exception {
+        this.server = start(true);
+        assertEquals("/a 198.51.100.2", get("/a", "X-Forwarded-For: 198.51.100.2"));
+        assertEquals("/b 203.0.113.7", get("/b", "X-Forwarded-For: 203.0.113.7"));
+    }
+
+    @Test
+    public void testStaleSocketIsReplaced() throws Exception {
+        ServerSocketChannel stale = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, this.unix);
+        stale.bind(address());
+        stale.close();
+        assertTrue(this.path.exists());
+        this.server = start(false);
+        assertEquals("/a 198.51.100.2", get("/a", "X-Forwarded-For: 198.51.100.2"));
+    }
+
+    @Test
+    public void testSocketOfRunningServerIsKept() throws Exception {
+        this.server = start(false);
+        try {
+            this.second = start(false);
+            fail("bound to the socket of a running server");
+        } catch (BindException e) {
+            // expected
+        }
+        assertEquals("/a 198.51.100.2", get("/a", "X-Forwarded-For: 198.51.100.2"));
+    }
+}
@@ -0,0 +1,154 @@
+package io.leonrd.nanodav;
+
+
+/*
+ * #%L
+ * NanoDav-WebDavServer
+ * %%
+ * Copyright (C) 2015 Leonard Chioveanu, 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class FileCacheTest {
+
+    private final List<File> files = new ArrayList<File>();
+
+    @After
+    public void tearDown() {
+        for (File file : this.files) {
+            file.delete();
+        }
+    }
+
+    private File file(int length) throws IOException {
+        File file = File.createTempFile("filecache", ".bin");
+        this.files.add(file);
+        write(file, length);
+        return file;
+    }
+
+    private static void write(File file, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static FileCache.Entry request(FileCache cache, File file) throws IOException {
+        String path = file.getAbsolutePath();
+        FileCache.Entry entry = cache.get(path);
+        return entry != null ? entry : cache.load(path, file);
+    }
+
+    @Test
+    public void testHitAfterLoad() throws Exception {
+        FileCache cache = new FileCache(4096, 1024);
+        File file = file(100);
+        FileCache.Entry entry = request(cache, file);
+        assertNotNull(entry);
+        assertEquals(100, entry.getLength());
+        assertSame(entry, request(cache, file));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(100, cache.getSize());
+    }
+
+    @Test
+    public void testLargeFileIsNotCached() throws Exception {
+        FileCache cache = new FileCache(4096, 1024);
+        assertNull(request(cache, file(2000)));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void testChangedFileIsReloaded() throws Exception {
+        FileCache cache = new FileCache(4096, 1024);
+        File file = file(100);
+        assertNotNull(request(cache, file));
+        write(file, 200);
+        file.setLastModified(file.lastModified() - 10000);
+        assertNull(cache.get(file.getAbsolutePath()));
+        assertEquals(0, cache.getSize());
+        assertEquals(200, request(cache, file).getLength());
+    }
+
+    @Test
+    public void testOneHitWonderDoesNotEvictPopularFiles() throws Exception {
+        FileCache cache = new FileCache(1000, 1000);
+        File popular = file(600);
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(request(cache, popular));
+        }
+        // does not fit next to the popular file and is asked for only once
+        assertNull(request(cache, file(600)));
+        assertNotNull(cache.get(popular.getAbsolutePath()));
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void testPopularFileEvictsRareOne() throws Exception {
+        FileCache cache = new FileCache(1000, 1000);
+        File rare = file(600);
+        assertNotNull(request(cache, rare));
+        File popular = file(600);
+        for (int i = 0; i < 3; i++) {
+            request(cache, popular);
+        }
+        assertNotNull(cache.get(popular.getAbsolutePath()));
+        assertNull(cache.get(rare.getAbsolutePath()));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(600, cache.getSize());
+    }
+
+    @Test
+    public void testInvalidateDirectory() throws Exception {
+        FileCache cache = new FileCache(4096, 1024);
+        File file = file(100);
+        assertNotNull(request(cache, file));
+        cache.invalidate(file.getParentFile());
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getSize());
+    }
+}
@@ -0,0 +1,102 @@
+package io.leonrd.nanodav;
+
+
+/*
+ * #%L
+ * NanoDav-WebDavServer
+ * %%
+ * Copyright (C) 2015 Leonard Chioveanu, 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class ParseRangesTest {
+
+    private static void assertRanges(List<long[]> ranges, long... bounds) {
+        assertEquals(bounds.length / 2, ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            assertArrayEquals(new long[]{
+                bounds[i * 2],
+                bounds[i * 2 + 1]
+            }, ranges.get(i));
+        }
+    }
+
+    @Test
+    public void testSingleRanges() {
+        assertRanges(WebDavServer.parseRanges("bytes=0-99", 1000), 0, 99);
+        assertRanges(WebDavServer.parseRanges("bytes=900-", 1000), 900, 999);
+        assertRanges(WebDavServer.parseRanges("bytes=-100", 1000), 900, 999);
+        assertRanges(WebDavServer.parseRanges("BYTES=500-5000", 1000), 500, 999);
+        assertRanges(WebDavServer.parseRanges("bytes=-5000", 1000), 0, 999);
+    }
+
+    @Test
+    public void testMultipleRangesAreSortedAndCoalesced() {
+        assertRanges(WebDavServer.parseRanges("bytes=500-599, 0-99", 1000), 0, 99, 500, 599);
+        assertRanges(WebDavServer.parseRanges("bytes=0-99,50-149,150-199", 1000), 0, 199);
+        assertRanges(WebDavServer.parseRanges("bytes=0-0,-1", 1000), 0, 0, 999, 999);
+    }
+
+    @Test
+    public void testUnsatisfiableRanges() {
+        assertTrue(WebDavServer.parseRanges("bytes=1000-", 1000).isEmpty());
+        assertTrue(WebDavServer.parseRanges("bytes=-0", 1000).isEmpty());
+        assertTrue(WebDavServer.parseRanges("bytes=0-", 0).isEmpty());
+        assertRanges(WebDavServer.parseRanges("bytes=2000-2100,10-19", 1000), 10, 19);
+    }
+
+    @Test
+    public void testIgnoredHeaders() {
+        assertNull(WebDavServer.parseRanges(null, 1000));
+        assertNull(WebDavServer.parseRanges("items=0-99", 1000));
+        assertNull(WebDavServer.parseRanges("bytes=abc", 1000));
+        assertNull(WebDavServer.parseRanges("bytes=x-10", 1000));
+        assertNull(WebDavServer.parseRanges("bytes=99-0", 1000));
+        assertNull(WebDavServer.parseRanges("bytes=,", 1000));
+    }
+
+    @Test
+    public void testTooManyRanges() {
+        // one more than the 100 accepted
+        StringBuilder range = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= 100; i++) {
+            range.append(',').append(i * 2).append('-').append(i * 2);
+        }
+        assertNull(WebDavServer.parseRanges(range.toString(), 100000));
+    }
+}